@@ -0,0 +1,508 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A run format that can be searched without being read: length-prefixed
+ * lines cut into blocks of about {@link #BLOCKSIZE} bytes, followed by a
+ * footer indexing the blocks. See {@link Index}.
+ *
+ * Each line is a varint header, one more than twice its length (plus one
+ * if it has no terminator), and its bytes; a header of 0 ends the lines.
+ * Lines end at '\n', a '\r' before it is part of the line. Any stretch of
+ * whole lines can be read on its own, which is how {@link ParallelMerge}
+ * reads its slices of a run.
+ *
+ * The footer lists for each block its offset, its length in bytes, its
+ * number of lines and its first and last lines, the smallest and largest
+ * of a sorted block. It is followed by the length of the lines, the length
+ * of the footer and the magic number "XSRI".
+ */
+public final class BlockCodec extends RunCodec {
+
+	@Override
+	public String name() {
+		return "block";
+	}
+
+	@Override
+	protected OutputStream compress(OutputStream out) {
+		return new BlockOutputStream(out);
+	}
+
+	@Override
+	protected InputStream decompress(InputStream in) {
+		return new LineInputStream(new BufferedInputStream(in, BUFFERSIZE));
+	}
+
+	/**
+	 * The footer of a run in the block format.
+	 */
+	public static final class Index {
+
+		private Index(long start, long end, long[] offsets, int[] sizes,
+				int[] counts, byte[][] first, byte[][] last) {
+			this.start = start;
+			this.end = end;
+			this.offsets = offsets;
+			this.sizes = sizes;
+			this.counts = counts;
+			this.first = first;
+			this.last = last;
+		}
+
+		/**
+		 * @param f
+		 *                a run written with {@link RunCodec#BLOCK}
+		 * @return its index
+		 * @throws IOException
+		 *                 if the file is not in the block format
+		 */
+		public static Index read(File f) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				long length = raf.length();
+				if (length < TRAILERSIZE)
+					throw new IOException(f + " is not in the block format");
+				raf.seek(length - TRAILERSIZE);
+				long datalength = raf.readLong();
+				int footerlength = raf.readInt();
+				byte[] magic = new byte[INDEXMAGIC.length];
+				raf.readFully(magic);
+				long footer = length - TRAILERSIZE - footerlength;
+				if (!Arrays.equals(magic, INDEXMAGIC) || footerlength < 0
+						|| footer - datalength < 0)
+					throw new IOException(f + " is not in the block format");
+				byte[] bytes = new byte[footerlength];
+				raf.seek(footer);
+				raf.readFully(bytes);
+				long start = footer - datalength;
+				DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(bytes));
+				int blocks = in.readInt();
+				long[] offsets = new long[blocks];
+				int[] sizes = new int[blocks];
+				int[] counts = new int[blocks];
+				byte[][] first = new byte[blocks][];
+				byte[][] last = new byte[blocks][];
+				for (int b = 0; b < blocks; ++b) {
+					offsets[b] = start + in.readLong();
+					sizes[b] = in.readInt();
+					counts[b] = in.readInt();
+					first[b] = readKey(in);
+					last[b] = readKey(in);
+				}
+				// the lines end before the end marker
+				return new Index(start, footer - 1, offsets, sizes, counts,
+						first, last);
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * @return the number of blocks
+		 */
+		public int blocks() {
+			return offsets.length;
+		}
+
+		/**
+		 * @return the number of lines of the run
+		 */
+		public long lines() {
+			long lines = 0;
+			for (int count : counts)
+				lines += count;
+			return lines;
+		}
+
+		/**
+		 * @return the offset in the file of the first line
+		 */
+		public long start() {
+			return start;
+		}
+
+		/**
+		 * @return the offset in the file after the last line
+		 */
+		public long end() {
+			return end;
+		}
+
+		/**
+		 * @return the offset in the file of the first line of the block
+		 */
+		public long offset(int block) {
+			return offsets[block];
+		}
+
+		/**
+		 * @return the length of the block in bytes
+		 */
+		public int size(int block) {
+			return sizes[block];
+		}
+
+		/**
+		 * @return the number of lines of the block
+		 */
+		public int count(int block) {
+			return counts[block];
+		}
+
+		/**
+		 * @return the first line of the block, without terminator
+		 */
+		public byte[] first(int block) {
+			return first[block];
+		}
+
+		/**
+		 * @return the last line of the block, without terminator
+		 */
+		public byte[] last(int block) {
+			return last[block];
+		}
+
+		/**
+		 * @return the block holding the offset, or the number of blocks if
+		 *         it is past the last line
+		 */
+		public int blockAt(long offset) {
+			int b = Arrays.binarySearch(offsets, offset);
+			if (b < 0)
+				b = -b - 2;
+			if (b < 0)
+				return 0;
+			return offset >= end ? offsets.length : b;
+		}
+
+		/**
+		 * @return the first block from the given one whose last line is not
+		 *         smaller than the key, the number of blocks if there is
+		 *         none: the blocks before it can be skipped when looking for
+		 *         the key
+		 */
+		public int lowerBlock(byte[] key, int from, Comparator<byte[]> keycmp) {
+			int lo = from, hi = offsets.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keycmp.compare(last[mid], key) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		private static byte[] readKey(DataInputStream in) throws IOException {
+			byte[] key = new byte[in.readInt()];
+			in.readFully(key);
+			return key;
+		}
+
+		private final long start;
+
+		private final long end;
+
+		private final long[] offsets;
+
+		private final int[] sizes;
+
+		private final int[] counts;
+
+		private final byte[][] first;
+
+		private final byte[][] last;
+	}
+
+	/**
+	 * Reads the lines starting at a line of a run in the block format.
+	 *
+	 * @param in
+	 *                a stream positioned at the start of a line, it ends
+	 *                with a line or with the end marker
+	 * @return the lines, each followed by '\n' if it had one
+	 */
+	public static InputStream lines(InputStream in) {
+		return new LineInputStream(in);
+	}
+
+	/**
+	 * Splits the bytes written into lines and blocks.
+	 */
+	private static final class BlockOutputStream extends OutputStream {
+
+		BlockOutputStream(OutputStream out) {
+			this.out = new BufferedOutputStream(out, BUFFERSIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (b == '\n') {
+				writeLine(true);
+			} else {
+				ensureCapacity(length + 1);
+				line[length++] = (byte) b;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int end = off + len;
+			while (off < end) {
+				int newline = off;
+				while (newline < end && b[newline] != '\n')
+					++newline;
+				int n = newline - off;
+				ensureCapacity(length + n);
+				System.arraycopy(b, off, line, length, n);
+				length += n;
+				off = newline;
+				if (off < end) {
+					writeLine(true);
+					++off;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// a partial line is only written when it is complete or closed
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				if (length > 0)
+					writeLine(false);
+				endBlock();
+				writeVarint(0);
+				byte[] bytes = footer.toByteArray();
+				DataOutputStream data = new DataOutputStream(out);
+				data.writeInt(blocks);
+				data.write(bytes);
+				data.writeLong(written);
+				data.writeInt(4 + bytes.length);
+				data.write(INDEXMAGIC);
+				data.flush();
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeLine(boolean terminated) throws IOException {
+			if (count == 0) {
+				blockstart = written;
+				first = Arrays.copyOf(line, length);
+			}
+			writeVarint(2 * length + (terminated ? 0 : 1) + 1);
+			out.write(line, 0, length);
+			written += length;
+			++count;
+			byte[] t = previous;
+			previous = line;
+			previousLength = length;
+			line = t;
+			length = 0;
+			if (written - blockstart >= BLOCKSIZE)
+				endBlock();
+		}
+
+		private void endBlock() throws IOException {
+			if (count == 0)
+				return;
+			index.writeLong(blockstart);
+			index.writeInt((int) (written - blockstart));
+			index.writeInt(count);
+			writeKey(first, first.length);
+			writeKey(previous, previousLength);
+			++blocks;
+			count = 0;
+		}
+
+		/**
+		 * Writes a line to the index, without the '\r' of a CRLF.
+		 */
+		private void writeKey(byte[] key, int length) throws IOException {
+			if (length > 0 && key[length - 1] == '\r')
+				--length;
+			index.writeInt(length);
+			index.write(key, 0, length);
+		}
+
+		private void writeVarint(int v) throws IOException {
+			while ((v & ~0x7F) != 0) {
+				out.write((v & 0x7F) | 0x80);
+				v >>>= 7;
+				++written;
+			}
+			out.write(v);
+			++written;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > line.length) {
+				byte[] larger = new byte[Math.max(capacity, 2 * line.length)];
+				System.arraycopy(line, 0, larger, 0, length);
+				line = larger;
+			}
+		}
+
+		private final OutputStream out;
+
+		private final ByteArrayOutputStream footer = new ByteArrayOutputStream();
+
+		private final DataOutputStream index = new DataOutputStream(footer);
+
+		/** bytes of lines written */
+		private long written;
+
+		private byte[] line = new byte[256];
+
+		private int length;
+
+		private byte[] previous = new byte[256];
+
+		private int previousLength;
+
+		private long blockstart;
+
+		/** lines of the current block */
+		private int count;
+
+		private byte[] first;
+
+		private int blocks;
+
+		private boolean closed;
+	}
+
+	/**
+	 * Turns length-prefixed lines back into terminated ones.
+	 */
+	private static final class LineInputStream extends InputStream {
+
+		LineInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == limit && !readLine())
+				return -1;
+			return line[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pos == limit && !readLine())
+				return -1;
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(line, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private boolean readLine() throws IOException {
+			if (ended)
+				return false;
+			int header = readHeader();
+			if (header <= 0) {
+				ended = true;
+				return false;
+			}
+			int length = (header - 1) >>> 1;
+			boolean terminated = ((header - 1) & 1) == 0;
+			if (length + 1 > line.length)
+				line = new byte[Math.max(length + 1, 2 * line.length)];
+			int n = 0;
+			while (n < length) {
+				int r = in.read(line, n, length - n);
+				if (r < 0)
+					throw new EOFException("truncated block run");
+				n += r;
+			}
+			limit = length;
+			if (terminated)
+				line[limit++] = '\n';
+			pos = 0;
+			return true;
+		}
+
+		/**
+		 * @return the header of the next line, 0 at the end marker and -1
+		 *         at the end of the stream
+		 */
+		private int readHeader() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = in.read();
+				if (b < 0) {
+					if (shift == 0)
+						return -1;
+					throw new EOFException("truncated block run");
+				}
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+			throw new IOException("corrupt block run");
+		}
+
+		private final InputStream in;
+
+		/** the current line, followed by its '\n' if it has one */
+		private byte[] line = new byte[256];
+
+		private int pos;
+
+		private int limit;
+
+		private boolean ended;
+	}
+
+	/**
+	 * Bytes of lines after which a block ends.
+	 */
+	public static final int BLOCKSIZE = 64 * 1024;
+
+	private static final int BUFFERSIZE = 64 * 1024;
+
+	private static final byte[] INDEXMAGIC = { 'X', 'S', 'R', 'I' };
+
+	/** length of the lines, length of the footer and magic number */
+	private static final int TRAILERSIZE = 8 + 4 + 4;
+
+}
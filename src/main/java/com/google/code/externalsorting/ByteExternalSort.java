@@ -0,0 +1,653 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * External sort of UTF-8 or ASCII files that never decodes the lines: lines
+ * are cut on '\n' in raw byte buffers, compared with
+ * {@link ByteLineComparator} (same order as the default comparator) and
+ * written back as the very same bytes, in the runs and in the merged output.
+ *
+ * Only '\n' (optionally preceded by '\r') ends a line, unlike
+ * {@link java.io.BufferedReader#readLine()} a lone '\r' does not.
+ */
+public class ByteExternalSort {
+
+	/**
+	 * This will simply load the file by blocks of lines, then sort them
+	 * in-memory, and write the result to temporary files that have to be
+	 * merged later.
+	 *
+	 * @param file
+	 *                some flat file
+	 * @param maxtmpfiles
+	 *                maximal number of temporary files
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param usegzip
+	 *                use gzip compression for the temporary files
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(File file, int maxtmpfiles,
+			File tmpdirectory, boolean distinct, int numHeader,
+			boolean usegzip) throws IOException {
+		return sortInBatch(file, maxtmpfiles, tmpdirectory, distinct,
+				numHeader, usegzip, 0);
+	}
+
+	/**
+	 * This will simply load the file by blocks of lines, then sort them
+	 * in-memory, and write the result to temporary files that have to be
+	 * merged later.
+	 *
+	 * @param file
+	 *                some flat file
+	 * @param maxtmpfiles
+	 *                maximal number of temporary files
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param usegzip
+	 *                use gzip compression for the temporary files
+	 * @param offheap
+	 *                direct memory to keep the blocks in (in bytes), or 0
+	 *                to keep them on the heap
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(File file, int maxtmpfiles,
+			File tmpdirectory, boolean distinct, int numHeader,
+			boolean usegzip, long offheap) throws IOException {
+		return sortInBatch(file, maxtmpfiles, tmpdirectory, distinct,
+				numHeader, RunCodec.of(usegzip), offheap);
+	}
+
+	/**
+	 * This will simply load the file by blocks of lines, then sort them
+	 * in-memory, and write the result to temporary files that have to be
+	 * merged later.
+	 *
+	 * @param file
+	 *                some flat file
+	 * @param maxtmpfiles
+	 *                maximal number of temporary files
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param codec
+	 *                compression of the temporary files
+	 * @param offheap
+	 *                direct memory to keep the blocks in (in bytes), or 0
+	 *                to keep them on the heap
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(File file, int maxtmpfiles,
+			File tmpdirectory, boolean distinct, int numHeader,
+			RunCodec codec, long offheap) throws IOException {
+		if (offheap > 0)
+			return sortInBatch(new FileInputStream(file), file.length(),
+					maxtmpfiles, offheap, tmpdirectory, distinct,
+					numHeader, codec, true);
+		return sortInBatch(new FileInputStream(file), file.length(),
+				maxtmpfiles, ExternalSortCallable.estimateAvailableMemory(),
+				tmpdirectory, distinct, numHeader, codec, false);
+	}
+
+	/**
+	 * @param in
+	 *                data source
+	 * @param datalength
+	 *                estimated data volume (in bytes)
+	 * @param maxtmpfiles
+	 *                maximal number of temporary files
+	 * @param maxMemory
+	 *                maximum amount of memory to use (in bytes)
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param usegzip
+	 *                use gzip compression for the temporary files
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(InputStream in, long datalength,
+			int maxtmpfiles, long maxMemory, File tmpdirectory,
+			boolean distinct, int numHeader, boolean usegzip)
+			throws IOException {
+		return sortInBatch(in, datalength, maxtmpfiles, maxMemory,
+				tmpdirectory, distinct, numHeader, RunCodec.of(usegzip),
+				false);
+	}
+
+	/**
+	 * @param in
+	 *                data source
+	 * @param datalength
+	 *                estimated data volume (in bytes)
+	 * @param maxtmpfiles
+	 *                maximal number of temporary files
+	 * @param maxMemory
+	 *                maximum amount of memory to use (in bytes), of direct
+	 *                memory if offheap is set
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param codec
+	 *                compression of the temporary files
+	 * @param offheap
+	 *                keep the blocks in an {@link OffHeapArena} of maxMemory
+	 *                bytes instead of the heap
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(InputStream in, long datalength,
+			int maxtmpfiles, long maxMemory, File tmpdirectory,
+			boolean distinct, int numHeader, RunCodec codec,
+			boolean offheap) throws IOException {
+		List<File> files;
+		SortEngine engine = SortEngine.getDefault();
+		int sortThreads = engine.sortThreadsFor(maxMemory);
+		// one block being read, one being written and one per sort thread
+		int liveblocks = sortThreads + 2;
+		long blocksize;
+		SlabPool pool = null;
+		OffHeapArena arena = null;
+		if (offheap) {
+			arena = new OffHeapArena(maxMemory,
+					SlabPool.slabSizeFor(maxMemory / liveblocks));
+			// a block may overshoot by a slab and an index chunk, and the
+			// budget is a hard limit: more runs rather than a failure
+			long share = maxMemory / liveblocks - 2L * arena.slabSize();
+			if (share < arena.slabSize())
+				throw new IllegalArgumentException("off-heap budget of "
+						+ maxMemory + " bytes is too small");
+			blocksize = Math.min(share, ExternalSortCallable
+					.estimateBestSizeOfBlocks(datalength, maxtmpfiles,
+							share * liveblocks, liveblocks));
+		} else {
+			// the blocks only get half of the heap: the index grows by
+			// copies and the collector needs room to move them
+			maxMemory /= 2;
+			blocksize = ExternalSortCallable.estimateBestSizeOfBlocks(
+					datalength, maxtmpfiles, maxMemory, liveblocks);
+			pool = new SlabPool(SlabPool.slabSizeFor(blocksize));
+		}
+		RunGenerationPipeline pipeline = new RunGenerationPipeline(engine,
+				RunGenerationPipeline.maxLiveBlocks(maxMemory, blocksize,
+						sortThreads));
+		try {
+			ByteFileBuffer fbr = new ByteFileBuffer(in, READBUFFERSIZE);
+			for (int counter = 0; counter < numHeader && !fbr.empty(); ++counter)
+				fbr.reload();
+			while (!fbr.empty()) {
+				// wait until the memory budget allows another block
+				pipeline.acquireBlock();
+				LineBlock block = offheap ? new DirectLineBlock(arena)
+						: new HeapLineBlock(pool);
+				while ((block.memory() < blocksize) && !fbr.empty()) {
+					block.add(fbr.buffer(), fbr.offset(), fbr.length());
+					fbr.reload();
+				}
+				pipeline.submit(new ByteSortAndSaveCallable(block,
+						tmpdirectory, distinct, codec));
+			}
+			files = pipeline.finish();
+		} finally {
+			pipeline.shutdown();
+			in.close();
+		}
+		return files;
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files, in several passes if
+	 * there are too many of them to be opened at once. Unless they are
+	 * compressed, the last pass runs on several threads, see
+	 * {@link ParallelMerge}.
+	 *
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                assumes we used gzip compression for temporary files
+	 * @param planner
+	 *                decides the fan-in and the buffer size of the merges
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(List<File> files, File outputfile,
+			boolean distinct, boolean append, boolean usegzip,
+			MergePlanner planner) throws IOException {
+		return mergeSortedFiles(files, outputfile, distinct, append,
+				usegzip, planner, false);
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files, in several passes if
+	 * there are too many of them to be opened at once. Unless they are
+	 * compressed, the last pass runs on several threads, see
+	 * {@link ParallelMerge}.
+	 *
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                assumes we used gzip compression for temporary files
+	 * @param planner
+	 *                decides the fan-in and the buffer size of the merges
+	 * @param mmap
+	 *                Pass <code>true</code> to memory-map the files instead
+	 *                of reading them, ignored if they are compressed.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(List<File> files, File outputfile,
+			boolean distinct, boolean append, boolean usegzip,
+			MergePlanner planner, boolean mmap) throws IOException {
+		return mergeSortedFiles(files, outputfile, distinct, append,
+				RunCodec.of(usegzip), RunCodec.NONE, planner, mmap);
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files, in several passes if
+	 * there are too many of them to be opened at once. The codec of each
+	 * file is read from its header. Unless they are compressed, the last
+	 * pass runs on several threads, see {@link ParallelMerge}.
+	 *
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param codec
+	 *                compression of the intermediate merges
+	 * @param outputcodec
+	 *                compression of the output file
+	 * @param planner
+	 *                decides the fan-in and the buffer size of the merges
+	 * @param mmap
+	 *                Pass <code>true</code> to memory-map the files instead
+	 *                of reading them, ignored if they are compressed.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(List<File> files, File outputfile,
+			final boolean distinct, boolean append, final RunCodec codec,
+			RunCodec outputcodec, MergePlanner planner, boolean mmap)
+			throws IOException {
+		// runs with disjoint keys need not be merged
+		files = RunStats.concatenateDisjoint(files,
+				ByteLineComparator.INSTANCE, distinct);
+		if (files.size() == 1) {
+			long moved = RunStats.moveTo(files.get(0), outputfile, append,
+					outputcodec, distinct);
+			if (moved >= 0)
+				return (int) moved;
+		}
+		final boolean mapped = mmap && RunCodec.allPlain(files);
+		List<File> runs = planner.reduce(files,
+				ExternalSortCallable.tmpDirectoryOf(files),
+				new MergePlanner.RunMerger() {
+					//@Override
+					public void merge(List<File> inputs, File output,
+							int buffersize) throws IOException {
+						if (mapped)
+							mergeMappedFiles(openOutputStream(output, false,
+									RunCodec.NONE), distinct,
+									openMappedFiles(inputs));
+						else
+							mergeSortedFiles(openOutputStream(output, false,
+									codec), distinct, openSortedFiles(inputs,
+									buffersize));
+					}
+				});
+		ParallelMerge parallel = new ParallelMerge(planner);
+		int rowcounter;
+		// the runs are still plain if they are mapped
+		if (outputcodec == RunCodec.NONE && parallel.ranges(runs) > 1
+				&& ParallelMerge.seekable(runs)) {
+			rowcounter = parallel.mergeSortedByteFiles(runs, outputfile,
+					distinct, append, mapped);
+		} else if (mapped) {
+			rowcounter = mergeMappedFiles(openOutputStream(outputfile,
+					append, outputcodec), distinct, openMappedFiles(runs));
+		} else {
+			List<ByteFileBuffer> bfbs = openSortedFiles(runs,
+					planner.bufferSize(runs.size()));
+			OutputStream out = openOutputStream(outputfile, append,
+					outputcodec);
+			rowcounter = mergeSortedFiles(out, distinct, bfbs);
+		}
+		for (File f : runs)
+			RunStats.delete(f);
+		return rowcounter;
+	}
+
+	/**
+	 * This merges several ByteFileBuffer to an output stream.
+	 *
+	 * @param out
+	 *                where we write the data, it is closed at the end
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param buffers
+	 *                Where the data should be read.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(OutputStream out, boolean distinct,
+			List<ByteFileBuffer> buffers) throws IOException {
+		List<ByteFileBuffer> nonempty = new ArrayList<ByteFileBuffer>();
+		for (ByteFileBuffer bfb : buffers)
+			if (!bfb.empty())
+				nonempty.add(bfb);
+		LoserTree<ByteFileBuffer> lt = new LoserTree<ByteFileBuffer>(nonempty,
+				new PrefixComparator<ByteFileBuffer>() {
+					//@Override
+					public int compare(ByteFileBuffer i, ByteFileBuffer j) {
+						return ByteLineComparator.compare(i.buffer(),
+								i.offset(), i.length(), j.buffer(),
+								j.offset(), j.length());
+					}
+
+					//@Override
+					public long prefix(ByteFileBuffer b) {
+						return ByteLineComparator.prefix(b.buffer(),
+								b.offset(), b.length());
+					}
+				});
+		int rowcounter = 0;
+		byte[] lastLine = new byte[256];
+		int lastLength = -1;
+		try {
+			while (!lt.isEmpty()) {
+				ByteFileBuffer bfb = lt.peek();
+				byte[] b = bfb.buffer();
+				int offset = bfb.offset();
+				int length = bfb.length();
+				// Skip duplicate lines
+				if (!distinct || !ByteLineComparator.equals(b, offset,
+						length, lastLine, 0, lastLength)) {
+					out.write(b, offset, length);
+					out.write(NEWLINE);
+					if (distinct) {
+						if (lastLine.length < length)
+							lastLine = new byte[Math.max(length,
+									2 * lastLine.length)];
+						System.arraycopy(b, offset, lastLine, 0, length);
+						lastLength = length;
+					}
+				}
+				++rowcounter;
+				bfb.reload();
+				if (bfb.empty()) {
+					bfb.close();
+					lt.replay(true);
+				} else {
+					lt.replay(false);
+				}
+			}
+		} finally {
+			out.close();
+			for (ByteFileBuffer bfb : buffers)
+				bfb.close();
+		}
+		return rowcounter;
+	}
+
+	/**
+	 * This merges several memory-mapped runs to an output stream. The lines
+	 * are compared in place, they are only copied to be written.
+	 *
+	 * @param out
+	 *                where we write the data, it is closed at the end
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param buffers
+	 *                Where the data should be read.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeMappedFiles(OutputStream out, boolean distinct,
+			List<MappedFileBuffer> buffers) throws IOException {
+		List<MappedFileBuffer> nonempty = new ArrayList<MappedFileBuffer>();
+		for (MappedFileBuffer mfb : buffers)
+			if (!mfb.empty())
+				nonempty.add(mfb);
+		LoserTree<MappedFileBuffer> lt = new LoserTree<MappedFileBuffer>(
+				nonempty, new PrefixComparator<MappedFileBuffer>() {
+					//@Override
+					public int compare(MappedFileBuffer i, MappedFileBuffer j) {
+						return ByteLineComparator.compare(i.window(),
+								i.offset(), i.length(), j.window(),
+								j.offset(), j.length());
+					}
+
+					//@Override
+					public long prefix(MappedFileBuffer b) {
+						return ByteLineComparator.prefix(b.window(),
+								b.offset(), b.length());
+					}
+				});
+		int rowcounter = 0;
+		byte[] line = new byte[256];
+		int lastLength = -1;
+		try {
+			while (!lt.isEmpty()) {
+				MappedFileBuffer mfb = lt.peek();
+				ByteBuffer w = mfb.window();
+				int offset = mfb.offset();
+				int length = mfb.length();
+				// Skip duplicate lines, the last one written is still in
+				// the line buffer
+				if (!distinct || !ByteLineComparator.equals(w, offset,
+						length, line, 0, lastLength)) {
+					if (line.length < length)
+						line = new byte[Math.max(length, 2 * line.length)];
+					w.position(offset);
+					w.get(line, 0, length);
+					out.write(line, 0, length);
+					out.write(NEWLINE);
+					lastLength = length;
+				}
+				++rowcounter;
+				mfb.reload();
+				if (mfb.empty()) {
+					mfb.close();
+					lt.replay(true);
+				} else {
+					lt.replay(false);
+				}
+			}
+		} finally {
+			out.close();
+			for (MappedFileBuffer mfb : buffers)
+				mfb.close();
+		}
+		return rowcounter;
+	}
+
+	/**
+	 * Memory-maps uncompressed sorted temporary files for merging.
+	 *
+	 * @param files
+	 *                the sorted files
+	 * @return one buffer per file
+	 * @throws IOException
+	 */
+	public static List<MappedFileBuffer> openMappedFiles(List<File> files)
+			throws IOException {
+		List<MappedFileBuffer> mfbs = new ArrayList<MappedFileBuffer>();
+		try {
+			for (File f : files)
+				mfbs.add(new MappedFileBuffer(f,
+						MappedFileBuffer.DEFAULTWINDOWSIZE));
+		} catch (IOException e) {
+			for (MappedFileBuffer mfb : mfbs)
+				mfb.close();
+			throw e;
+		}
+		return mfbs;
+	}
+
+	/**
+	 * Opens sorted temporary files for merging.
+	 *
+	 * @param files
+	 *                the sorted files
+	 * @param usegzip
+	 *                ignored, the codec of each file is read from its
+	 *                header
+	 * @param buffersize
+	 *                size of the read buffer of each file (in bytes)
+	 * @return one buffer per file
+	 * @throws IOException
+	 */
+	public static List<ByteFileBuffer> openSortedFiles(List<File> files,
+			boolean usegzip, int buffersize) throws IOException {
+		return openSortedFiles(files, buffersize);
+	}
+
+	/**
+	 * Opens sorted temporary files for merging, decompressed by the codec
+	 * named in their header.
+	 *
+	 * @param files
+	 *                the sorted files
+	 * @param buffersize
+	 *                size of the read buffer of each file (in bytes)
+	 * @return one buffer per file
+	 * @throws IOException
+	 */
+	public static List<ByteFileBuffer> openSortedFiles(List<File> files,
+			int buffersize) throws IOException {
+		List<ByteFileBuffer> bfbs = new ArrayList<ByteFileBuffer>();
+		try {
+			for (File f : files) {
+				// the budget is shared by the blocks read ahead and the
+				// buffer holding the current lines
+				InputStream in = RunCodec.decode(ReadAheadInputStream.of(
+						new FileInputStream(f), buffersize / 4));
+				bfbs.add(new ByteFileBuffer(in, buffersize / 2));
+			}
+		} catch (IOException e) {
+			for (ByteFileBuffer bfb : bfbs)
+				bfb.close();
+			throw e;
+		}
+		return bfbs;
+	}
+
+	/**
+	 * Opens a file to write sorted lines to.
+	 *
+	 * @param f
+	 *                the file
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                use gzip compression
+	 * @return the buffered stream
+	 * @throws IOException
+	 */
+	public static OutputStream openOutputStream(File f, boolean append,
+			boolean usegzip) throws IOException {
+		return openOutputStream(f, append, RunCodec.of(usegzip));
+	}
+
+	/**
+	 * Opens a file to write sorted lines to.
+	 *
+	 * @param f
+	 *                the file
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param codec
+	 *                the compression, see {@link RunCodec#create(File,
+	 *                boolean)}
+	 * @return the buffered stream
+	 * @throws IOException
+	 */
+	public static OutputStream openOutputStream(File f, boolean append,
+			RunCodec codec) throws IOException {
+		return new BufferedOutputStream(codec.create(f, append),
+				WRITEBUFFERSIZE);
+	}
+
+	/**
+	 * The line separator, as written by {@link java.io.BufferedWriter#newLine()}.
+	 */
+	public static final byte[] NEWLINE = System.getProperty("line.separator")
+			.getBytes(Charset.forName("US-ASCII"));
+
+	/**
+	 * Size of the buffer used to read the input.
+	 */
+	public static final int READBUFFERSIZE = 1024 * 1024;
+
+	/**
+	 * Size of the buffer used to write the runs and the output.
+	 */
+	public static final int WRITEBUFFERSIZE = 64 * 1024;
+
+}
@@ -0,0 +1,153 @@
+package com.google.code.externalsorting;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The byte counterpart of {@link BinaryFileBuffer}: reads lines from a raw
+ * stream and keeps the current line in its buffer, without decoding it.
+ *
+ * Lines end with '\n', a '\r' just before it is dropped as well. The current
+ * line is exposed as a slice of {@link #buffer()} which is only valid until
+ * the next call to {@link #reload()} or {@link #pop()}.
+ */
+public final class ByteFileBuffer {
+
+	/**
+	 * @param in
+	 *                the raw stream
+	 * @param buffersize
+	 *                initial size of the buffer, it grows to hold the
+	 *                longest line
+	 * @throws IOException
+	 */
+	public ByteFileBuffer(InputStream in, int buffersize) throws IOException {
+		this.in = in;
+		this.buf = new byte[Math.max(buffersize, 64)];
+		reload();
+	}
+
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	public boolean empty() {
+		return this.empty;
+	}
+
+	/**
+	 * @return the array holding the current line
+	 */
+	public byte[] buffer() {
+		return this.buf;
+	}
+
+	/**
+	 * @return where the current line starts in {@link #buffer()}
+	 */
+	public int offset() {
+		return this.start;
+	}
+
+	/**
+	 * @return the length of the current line, line terminator excluded
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * @return a copy of the current line, the buffer moves on to the next
+	 *         one
+	 * @throws IOException
+	 */
+	public byte[] pop() throws IOException {
+		byte[] answer = new byte[this.length];
+		System.arraycopy(this.buf, this.start, answer, 0, this.length);
+		reload();
+		return answer;
+	}
+
+	/**
+	 * Moves on to the next line.
+	 *
+	 * @throws IOException
+	 */
+	public void reload() throws IOException {
+		this.pos = this.next;
+		int scan = this.pos;
+		while (true) {
+			for (int i = scan; i < this.limit; ++i) {
+				if (this.buf[i] == '\n') {
+					setLine(i);
+					this.next = i + 1;
+					return;
+				}
+			}
+			if (this.eof) {
+				if (this.pos < this.limit) {
+					// last line without terminator
+					setLine(this.limit);
+					this.next = this.limit;
+				} else {
+					this.empty = true;
+					this.length = 0;
+				}
+				return;
+			}
+			scan = this.limit - this.pos;
+			fill();
+		}
+	}
+
+	private void setLine(int end) {
+		this.start = this.pos;
+		if (end > this.pos && this.buf[end - 1] == '\r')
+			--end;
+		this.length = end - this.pos;
+	}
+
+	/**
+	 * Moves the unread bytes to the front, grows the buffer if they fill it,
+	 * and reads more.
+	 */
+	private void fill() throws IOException {
+		int remaining = this.limit - this.pos;
+		if (remaining == this.buf.length) {
+			byte[] bigger = new byte[this.buf.length * 2];
+			System.arraycopy(this.buf, this.pos, bigger, 0, remaining);
+			this.buf = bigger;
+		} else if (this.pos > 0) {
+			System.arraycopy(this.buf, this.pos, this.buf, 0, remaining);
+		}
+		this.pos = 0;
+		this.limit = remaining;
+		int n = this.in.read(this.buf, this.limit, this.buf.length - this.limit);
+		if (n < 0)
+			this.eof = true;
+		else
+			this.limit += n;
+	}
+
+	private final InputStream in;
+
+	private byte[] buf;
+
+	/** start of the unread bytes */
+	private int pos;
+
+	/** end of the bytes read so far */
+	private int limit;
+
+	/** where the line after the current one starts */
+	private int next;
+
+	private int start;
+
+	private int length;
+
+	private boolean eof;
+
+	private boolean empty;
+
+}
@@ -0,0 +1,176 @@
+package com.google.code.externalsorting;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compares UTF-8 (or ASCII) encoded lines without decoding them. The order
+ * is the order of {@link String#compareTo(String)} on the decoded lines,
+ * that is the order of the UTF-16 code units.
+ *
+ * Plain unsigned byte order is the order of the code points, it only
+ * differs from the UTF-16 order when a character in U+E000..U+FFFF (lead
+ * byte 0xEE or 0xEF) meets a supplementary character (lead byte 0xF0 to
+ * 0xF4), the latter being encoded with surrogates below U+E000 in UTF-16.
+ * Bytes from 0xEE up are always lead bytes, so moving 0xEE and 0xEF after
+ * 0xF0..0xF4 fixes the order and keeps it byte-wise.
+ */
+public final class ByteLineComparator implements PrefixComparator<byte[]> {
+
+	/**
+	 * The shared instance.
+	 */
+	public static final ByteLineComparator INSTANCE = new ByteLineComparator();
+
+	private ByteLineComparator() {
+	}
+
+	/**
+	 * @param cs
+	 *                a character set
+	 * @return <code>true</code> if lines encoded with this character set can
+	 *         be sorted as bytes
+	 */
+	public static boolean supports(Charset cs) {
+		String name = cs.name();
+		return name.equals("UTF-8") || name.equals("US-ASCII");
+	}
+
+	/**
+	 * Rank of each byte value, sorting on the ranks gives the order of
+	 * {@link String#compareTo(String)}.
+	 */
+	static final int[] RANK = new int[256];
+
+	static {
+		for (int b = 0; b < 256; ++b)
+			RANK[b] = b;
+		for (int b = 0xF0; b <= 0xF4; ++b)
+			RANK[b] = b - 2;
+		RANK[0xEE] = 0xF3;
+		RANK[0xEF] = 0xF4;
+	}
+
+	/**
+	 * @param b
+	 *                a byte of an encoded line
+	 * @return its rank, from 0 to 255
+	 */
+	public static int rank(byte b) {
+		return RANK[b & 0xFF];
+	}
+
+	//@Override
+	public int compare(byte[] r1, byte[] r2) {
+		return compare(r1, 0, r1.length, r2, 0, r2.length);
+	}
+
+	//@Override
+	public long prefix(byte[] r) {
+		return prefix(r, 0, r.length);
+	}
+
+	/**
+	 * The prefix of an encoded line: the ranks of its first 8 bytes, padded
+	 * with zeros.
+	 *
+	 * @return the prefix, to be compared as a signed long
+	 */
+	public static long prefix(byte[] b, int offset, int length) {
+		int n = Math.min(length, 8);
+		long p = 0;
+		for (int i = 0; i < n; ++i)
+			p = (p << 8) | RANK[b[offset + i] & 0xFF];
+		// unsigned order to signed order
+		return (p << (8 * (8 - n))) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * The prefix of an encoded line stored in a buffer, as
+	 * {@link #prefix(byte[], int, int)}.
+	 *
+	 * @return the prefix, to be compared as a signed long
+	 */
+	public static long prefix(ByteBuffer b, int offset, int length) {
+		int n = Math.min(length, 8);
+		long p = 0;
+		for (int i = 0; i < n; ++i)
+			p = (p << 8) | RANK[b.get(offset + i) & 0xFF];
+		return (p << (8 * (8 - n))) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Compares two encoded lines stored in arrays.
+	 *
+	 * @return a negative number, zero or a positive number as the first line
+	 *         is less than, equal to or greater than the second one
+	 */
+	public static int compare(byte[] a, int aoffset, int alength, byte[] b,
+			int boffset, int blength) {
+		int n = Math.min(alength, blength);
+		for (int i = 0; i < n; ++i) {
+			byte x = a[aoffset + i];
+			byte y = b[boffset + i];
+			if (x != y)
+				return RANK[x & 0xFF] - RANK[y & 0xFF];
+		}
+		return alength - blength;
+	}
+
+	/**
+	 * Compares two encoded lines stored in buffers, 8 bytes at a time. The
+	 * buffers must be big-endian, the default.
+	 *
+	 * @return a negative number, zero or a positive number as the first line
+	 *         is less than, equal to or greater than the second one
+	 */
+	public static int compare(ByteBuffer a, int aoffset, int alength,
+			ByteBuffer b, int boffset, int blength) {
+		int n = Math.min(alength, blength);
+		int i = 0;
+		for (; i + 8 <= n; i += 8) {
+			long x = a.getLong(aoffset + i);
+			long y = b.getLong(boffset + i);
+			if (x != y) {
+				// the first differing byte is the most significant one
+				int shift = 56 - (Long.numberOfLeadingZeros(x ^ y) & ~7);
+				return RANK[(int) (x >>> shift) & 0xFF]
+						- RANK[(int) (y >>> shift) & 0xFF];
+			}
+		}
+		for (; i < n; ++i) {
+			byte x = a.get(aoffset + i);
+			byte y = b.get(boffset + i);
+			if (x != y)
+				return RANK[x & 0xFF] - RANK[y & 0xFF];
+		}
+		return alength - blength;
+	}
+
+	/**
+	 * @return <code>true</code> if both encoded lines are the same
+	 */
+	public static boolean equals(byte[] a, int aoffset, int alength,
+			byte[] b, int boffset, int blength) {
+		if (alength != blength)
+			return false;
+		for (int i = 0; i < alength; ++i)
+			if (a[aoffset + i] != b[boffset + i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if both encoded lines are the same
+	 */
+	public static boolean equals(ByteBuffer a, int aoffset, int alength,
+			byte[] b, int boffset, int blength) {
+		if (alength != blength)
+			return false;
+		for (int i = 0; i < alength; ++i)
+			if (a.get(aoffset + i) != b[boffset + i])
+				return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * The byte counterpart of {@link SortAndSaveCallable}: sorts a block of
+ * encoded lines and writes them as they are to a temporary file.
+ */
+public class ByteSortAndSaveCallable implements Callable<File>,
+		RunGenerationPipeline.Block {
+
+	private LineBlock block;
+	private File tmpdirectory;
+	private boolean distinct;
+	private RunCodec codec;
+
+	public ByteSortAndSaveCallable(LineBlock block, File tmpdirectory,
+			boolean distinct, boolean usegzip) {
+		this(block, tmpdirectory, distinct, RunCodec.of(usegzip));
+	}
+
+	public ByteSortAndSaveCallable(LineBlock block, File tmpdirectory,
+			boolean distinct, RunCodec codec) {
+		this.block = block;
+		this.tmpdirectory = tmpdirectory;
+		this.distinct = distinct;
+		this.codec = codec;
+	}
+
+	//@Override
+	public File call() throws IOException {
+		sort();
+		return save();
+	}
+
+	//@Override
+	public void sort() {
+		block.sort();
+	}
+
+	//@Override
+	public File save() throws IOException {
+		File newtmpfile = File.createTempFile("sortInBatch",
+				"flatfile", tmpdirectory);
+		newtmpfile.deleteOnExit();
+		OutputStream out = ByteExternalSort.openOutputStream(newtmpfile,
+				false, codec);
+		int count = block.count();
+		byte[] first = count == 0 ? new byte[0] : block.line(0);
+		byte[] last = count == 0 ? new byte[0] : block.line(count - 1);
+		int lines;
+		try {
+			lines = block.writeTo(out, distinct);
+		} finally {
+			out.close();
+			block.release();
+		}
+		new RunStats(first, last, lines, newtmpfile.length(), true, distinct)
+				.write(newtmpfile, true);
+		return newtmpfile;
+	}
+
+}
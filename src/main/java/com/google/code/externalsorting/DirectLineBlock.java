@@ -0,0 +1,158 @@
+package com.google.code.externalsorting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link LineBlock} kept in the direct memory of an {@link OffHeapArena}:
+ * both the lines and the index are stored in slabs of the arena, the index
+ * in chunks of {@link OffHeapArena#slabSize()} bytes so that it never has to
+ * be copied to grow. Each entry of the index takes 16 bytes, the prefix of
+ * the line then its address.
+ *
+ * The slabs are big-endian, which lets the comparison look at 8 bytes at a
+ * time and only rank the first byte that differs.
+ */
+public final class DirectLineBlock extends LineBlock {
+
+	/**
+	 * @param arena
+	 *                where the slabs come from and go back to
+	 */
+	public DirectLineBlock(OffHeapArena arena) {
+		this.arena = arena;
+		this.chunkshift = Integer.numberOfTrailingZeros(arena.slabSize() / 16);
+	}
+
+	@Override
+	public void add(byte[] b, int offset, int length) {
+		int needed = length + 4;
+		if (slabcount == 0 || slabs[slabcount - 1].capacity() - used < needed)
+			newSlab(needed);
+		ByteBuffer slab = slabs[slabcount - 1];
+		slab.putInt(used, length);
+		slab.position(used + 4);
+		slab.put(b, offset, length);
+		if (count == chunkcount << chunkshift)
+			newChunk();
+		set(count++, ByteLineComparator.prefix(b, offset, length),
+				((long) (slabcount - 1) << 32) | used);
+		used += needed;
+		bytes += needed;
+	}
+
+	@Override
+	public long memory() {
+		return allocated;
+	}
+
+	@Override
+	public void release() {
+		for (int i = 0; i < slabcount; ++i) {
+			arena.giveSlab(slabs[i]);
+			slabs[i] = null;
+		}
+		for (int i = 0; i < chunkcount; ++i) {
+			arena.giveSlab(chunks[i]);
+			chunks[i] = null;
+		}
+		slabcount = 0;
+		chunkcount = 0;
+		count = 0;
+		allocated = 0;
+		bytes = 0;
+	}
+
+	@Override
+	protected long entry(int i) {
+		return chunks[i >>> chunkshift].getLong(position(i) + 8);
+	}
+
+	@Override
+	protected long key(int i) {
+		return chunks[i >>> chunkshift].getLong(position(i));
+	}
+
+	@Override
+	protected void set(int i, long key, long r) {
+		ByteBuffer chunk = chunks[i >>> chunkshift];
+		int position = position(i);
+		chunk.putLong(position, key);
+		chunk.putLong(position + 8, r);
+	}
+
+	/**
+	 * @return where the i-th entry starts in its chunk
+	 */
+	private int position(int i) {
+		return (i & ((1 << chunkshift) - 1)) << 4;
+	}
+
+	@Override
+	protected int compare(long a, long b) {
+		ByteBuffer sa = slabs[(int) (a >>> 32)];
+		ByteBuffer sb = slabs[(int) (b >>> 32)];
+		int oa = (int) a;
+		int ob = (int) b;
+		return ByteLineComparator.compare(sa, oa + 4, sa.getInt(oa), sb,
+				ob + 4, sb.getInt(ob));
+	}
+
+	@Override
+	protected void write(OutputStream out, long r) throws IOException {
+		ByteBuffer slab = slabs[(int) (r >>> 32)];
+		int offset = (int) r;
+		int length = slab.getInt(offset);
+		if (scratch.length < length)
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		slab.position(offset + 4);
+		slab.get(scratch, 0, length);
+		out.write(scratch, 0, length);
+	}
+
+	private void newSlab(int needed) {
+		ByteBuffer slab = arena.takeSlab(needed);
+		if (slabcount == slabs.length) {
+			ByteBuffer[] bigger = new ByteBuffer[slabs.length * 2];
+			System.arraycopy(slabs, 0, bigger, 0, slabcount);
+			slabs = bigger;
+		}
+		slabs[slabcount++] = slab;
+		used = 0;
+		allocated += slab.capacity();
+	}
+
+	private void newChunk() {
+		ByteBuffer chunk = arena.takeSlab(arena.slabSize());
+		if (chunkcount == chunks.length) {
+			ByteBuffer[] bigger = new ByteBuffer[chunks.length * 2];
+			System.arraycopy(chunks, 0, bigger, 0, chunkcount);
+			chunks = bigger;
+		}
+		chunks[chunkcount++] = chunk;
+		allocated += chunk.capacity();
+	}
+
+	private final OffHeapArena arena;
+
+	/** log2 of the number of index entries per chunk */
+	private final int chunkshift;
+
+	private ByteBuffer[] slabs = new ByteBuffer[16];
+
+	private int slabcount;
+
+	/** bytes used in the last slab */
+	private int used;
+
+	private ByteBuffer[] chunks = new ByteBuffer[4];
+
+	private int chunkcount;
+
+	private long allocated;
+
+	/** copy of the line being written */
+	private byte[] scratch = new byte[256];
+
+}
@@ -2,14 +2,11 @@ package com.google.code.externalsorting;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -17,14 +14,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 //import java.util.stream.Collectors;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.zip.Deflater;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Goal: offer a generic external-memory sorting program in Java 
@@ -73,9 +63,31 @@ public class ExternalSortCallable {
 		System.out
 		.println("-z or --gzip: use compression for the temporary files");
 		System.out
+		.println("--codec (followed by " + RunCodec.names() + "): compression of the temporary files, -z is gzip");
+		System.out
+		.println("--outputcodec (followed by a codec): compression of the output file (default: none)");
+		System.out
 		.println("-H or --header (followed by an integer): ignore the first few lines");
 		System.out
 		.println("-s or --store (following by a path): where to store the temporary files");
+		System.out
+		.println("-f or --maxopenfiles (followed by an integer): specify an upper bound on the number of files merged at once");
+		System.out
+		.println("-b or --bytes: sort the encoded lines as bytes, without decoding them (UTF-8 or US-ASCII only)");
+		System.out
+		.println("-o or --offheap (followed by a size such as 24g): sort as bytes in that much direct memory instead of the heap, needs -XX:MaxDirectMemorySize");
+		System.out
+		.println("-j or --threads (followed by an integer): number of threads sorting blocks and running the final merge (default: one per processor)");
+		System.out
+		.println("--iothreads (followed by an integer): number of threads writing and merging the temporary files");
+		System.out
+		.println("-r or --replacementselection: generate the temporary files by replacement selection, fewer and larger ones (strings only)");
+		System.out
+		.println("-m or --mmap: merge the uncompressed temporary files through memory maps (bytes only)");
+		System.out
+		.println("--stats: write the smallest and largest lines and the line count of the output to outputfile" + RunStats.SUFFIX);
+		System.out
+		.println("--range (followed by two offsets): only sort the lines of inputfile from the first offset to the second, which must both start a line");
 		System.out.println("-h or --help: display this message");
 	}
 
@@ -107,6 +119,26 @@ public class ExternalSortCallable {
 	 */
 	public static long estimateBestSizeOfBlocks(final long sizeoffile,
 			final int maxtmpfiles, final long maxMemory) {
+		return estimateBestSizeOfBlocks(sizeoffile, maxtmpfiles, maxMemory, 2);
+	}
+
+	/**
+	 * we divide the file into small blocks. If the blocks are too small, we
+	 * shall create too many temporary files. If they are too big, we shall
+	 * not be able to keep enough of them in memory to feed the pipeline.
+	 * 
+	 * @param sizeoffile
+	 *                how much data (in bytes) can we expect
+	 * @param maxtmpfiles
+	 *                how many temporary files can we create (e.g., 1024)
+	 * @param maxMemory
+	 *                Maximum memory to use (in bytes)
+	 * @param liveblocks
+	 *                how many blocks should fit in memory at once
+	 * @return the estimate
+	 */
+	public static long estimateBestSizeOfBlocks(final long sizeoffile,
+			final int maxtmpfiles, final long maxMemory, final int liveblocks) {
 		// we don't want to open up much more than maxtmpfiles temporary
 		// files, better run
 		// out of memory first.
@@ -115,10 +147,10 @@ public class ExternalSortCallable {
 
 		// on the other hand, we don't want to create many temporary
 		// files
-		// for naught. If blocksize is smaller than half the free
+		// for naught. If blocksize is smaller than our share of the free
 		// memory, grow it.
-		if (blocksize < maxMemory / 2) {
-			blocksize = maxMemory / 2;
+		if (blocksize < maxMemory / liveblocks) {
+			blocksize = maxMemory / liveblocks;
 		}
 		System.out.println("blocksize: "+blocksize);
 		return blocksize;
@@ -136,8 +168,19 @@ public class ExternalSortCallable {
 		Charset cs = Charset.defaultCharset();
 		String inputfile = null, outputfile = null;
 		File tempFileStore = null;
-		boolean usegzip = false;
+		RunCodec codec = RunCodec.NONE;
+		RunCodec outputcodec = RunCodec.NONE;
 		int headersize = 0;
+		int maxopenfiles = MergePlanner.DEFAULTMAXOPENFILES;
+		boolean bytes = false;
+		long offheap = 0;
+		boolean replacementselection = false;
+		boolean mmap = false;
+		boolean savestats = false;
+		long rangestart = 0;
+		long rangeend = -1;
+		int sortThreads = 0;
+		int ioThreads = 0;
 		for (int param = 0; param < args.length; ++param) {
 			if (args[param].equals("-v")
 					|| args[param].equals("--verbose")) {
@@ -165,7 +208,15 @@ public class ExternalSortCallable {
 				cs = Charset.forName(args[param]);
 			} else if ((args[param].equals("-z") || args[param]
 					.equals("--gzip"))) {
-				usegzip = true;
+				codec = RunCodec.GZIP;
+			} else if (args[param].equals("--codec")
+					&& args.length > param + 1) {
+				param++;
+				codec = RunCodec.forName(args[param]);
+			} else if (args[param].equals("--outputcodec")
+					&& args.length > param + 1) {
+				param++;
+				outputcodec = RunCodec.forName(args[param]);
 			} else if ((args[param].equals("-H") || args[param]
 					.equals("--header")) && args.length > param + 1) {
 				param++;
@@ -178,6 +229,42 @@ public class ExternalSortCallable {
 					.equals("--store")) && args.length > param + 1) {
 				param++;
 				tempFileStore = new File(args[param]);
+			} else if ((args[param].equals("-b") || args[param]
+					.equals("--bytes"))) {
+				bytes = true;
+			} else if ((args[param].equals("-o") || args[param]
+					.equals("--offheap")) && args.length > param + 1) {
+				param++;
+				offheap = OffHeapArena.parseSize(args[param]);
+				bytes = true;
+			} else if ((args[param].equals("-j") || args[param]
+					.equals("--threads")) && args.length > param + 1) {
+				param++;
+				sortThreads = Integer.parseInt(args[param]);
+			} else if (args[param].equals("--iothreads")
+					&& args.length > param + 1) {
+				param++;
+				ioThreads = Integer.parseInt(args[param]);
+			} else if ((args[param].equals("-r") || args[param]
+					.equals("--replacementselection"))) {
+				replacementselection = true;
+			} else if ((args[param].equals("-m") || args[param]
+					.equals("--mmap"))) {
+				mmap = true;
+			} else if (args[param].equals("--stats")) {
+				savestats = true;
+			} else if (args[param].equals("--range")
+					&& args.length > param + 2) {
+				rangestart = Long.parseLong(args[++param]);
+				rangeend = Long.parseLong(args[++param]);
+			} else if ((args[param].equals("-f") || args[param]
+					.equals("--maxopenfiles")) && args.length > param + 1) {
+				param++;
+				maxopenfiles = Integer.parseInt(args[param]);
+				if (maxopenfiles < 2) {
+					System.err
+					.println("maxopenfiles should be at least 2");
+				}
 			} else {
 				if (inputfile == null)
 					inputfile = args[param];
@@ -194,15 +281,78 @@ public class ExternalSortCallable {
 			displayUsage();
 			return;
 		}
+		if (bytes && !ByteLineComparator.supports(cs)) {
+			System.err.println("cannot sort " + cs.name()
+					+ " as bytes, sorting strings instead");
+			bytes = false;
+			offheap = 0;
+		}
+		if (bytes && replacementselection) {
+			System.err.println("replacement selection does not apply to bytes, using blocks");
+			replacementselection = false;
+		}
+		if (!bytes && mmap) {
+			System.err.println("memory-mapped merges only apply to bytes, reading the files");
+			mmap = false;
+		}
+		// shared with the other sorts of this JVM
+		SortEngine engine = SortEngine.configure(sortThreads, ioThreads);
 		Comparator<String> comparator = defaultcomparator;
-		List<File> l = sortInBatch(new File(inputfile), comparator,
-				maxtmpfiles, cs, tempFileStore, distinct, headersize,
-				usegzip);
+		List<File> l;
+		if (rangeend >= 0) {
+			// a piece of a larger file, read where it is
+			InputStream in = new FileRangeInputStream(new File(inputfile),
+					rangestart, rangeend);
+			long datalength = rangeend - rangestart;
+			if (bytes)
+				l = ByteExternalSort.sortInBatch(in, datalength, maxtmpfiles,
+						offheap > 0 ? offheap : estimateAvailableMemory(),
+						tempFileStore, distinct, headersize, codec,
+						offheap > 0);
+			else if (replacementselection)
+				l = ReplacementSelection.sortInBatch(new BufferedReader(
+						new InputStreamReader(in, cs)), comparator,
+						estimateAvailableMemory(), cs, tempFileStore,
+						distinct, headersize, codec);
+			else
+				l = sortInBatch(new BufferedReader(new InputStreamReader(in,
+						cs)), datalength, comparator, maxtmpfiles,
+						estimateAvailableMemory(), cs, tempFileStore,
+						distinct, headersize, codec);
+		} else if (bytes)
+			l = ByteExternalSort.sortInBatch(new File(inputfile),
+					maxtmpfiles, tempFileStore, distinct, headersize,
+					codec, offheap);
+		else if (replacementselection)
+			l = ReplacementSelection.sortInBatch(new File(inputfile),
+					comparator, cs, tempFileStore, distinct, headersize,
+					codec);
+		else
+			l = sortInBatch(new File(inputfile), comparator,
+					maxtmpfiles, cs, tempFileStore, distinct, headersize,
+					codec);
 		if (verbose)
 			System.out
 			.println("created " + l.size() + " tmp files");
-		mergeSortedFiles(l, new File(outputfile), comparator, cs,
-				distinct, false, usegzip);
+		MergePlanner planner = new MergePlanner(estimateAvailableMemory(),
+				maxopenfiles, engine);
+		// read before the runs are merged and deleted
+		RunStats stats = savestats ? RunStats.merged(l,
+				bytes ? ByteLineComparator.INSTANCE : RunStats
+						.keyComparator(comparator, cs), distinct) : null;
+		int rowcounter;
+		if (bytes)
+			rowcounter = ByteExternalSort.mergeSortedFiles(l, new File(
+					outputfile), distinct, false, codec, outputcodec,
+					planner, mmap);
+		else
+			rowcounter = mergeSortedFiles(l, new File(outputfile),
+					comparator, cs, distinct, false, codec, outputcodec,
+					planner);
+		if (stats != null)
+			stats.count(distinct ? RunStats.countLines(new File(outputfile))
+					: rowcounter, new File(outputfile).length()).write(
+					new File(outputfile), false);
 		System.out.println("ExternalSortCallable: Total time (ms): "+ (System.currentTimeMillis() - startTime));
 	}
 
@@ -226,29 +376,17 @@ public class ExternalSortCallable {
 	public static int mergeSortedFiles(BufferedWriter fbw,
 			final Comparator<String> cmp, boolean distinct,
 			List<BinaryFileBuffer> buffers) throws IOException {
-		PriorityQueue<BinaryFileBuffer> pq = new PriorityQueue<BinaryFileBuffer>(
-				11, new Comparator<BinaryFileBuffer>() {
-					//@Override
-					public int compare(BinaryFileBuffer i,
-							BinaryFileBuffer j) {
-						return cmp.compare(i.peek(), j.peek());
-					}
-				});
-		//System.out.println("buffers.size()="+buffers.size());
-		for (BinaryFileBuffer bfb : buffers) {
-			if (!bfb.empty()) {
-				//System.out.println("peek-"+bfb.peek());
-				pq.add(bfb);
-			}
-		}
+		List<BinaryFileBuffer> nonempty = new ArrayList<BinaryFileBuffer>();
+		for (BinaryFileBuffer bfb : buffers)
+			if (!bfb.empty())
+				nonempty.add(bfb);
+		LoserTree<BinaryFileBuffer> lt = new LoserTree<BinaryFileBuffer>(nonempty,
+				PrefixComparators.onCurrentLine(cmp));
 		int rowcounter = 0;
 		String lastLine = null;
 		try {
-			//System.out.println("while started");
-			//System.out.println("pq.size()="+pq.size());
-			while (pq.size() > 0) {
-				BinaryFileBuffer bfb = pq.poll();
-				//System.out.println("peek-"+bfb.peek());
+			while (!lt.isEmpty()) {
+				BinaryFileBuffer bfb = lt.peek();
 				String r = bfb.pop();
 				// Skip duplicate lines
 				if (!distinct || !r.equals(lastLine)) {
@@ -259,13 +397,14 @@ public class ExternalSortCallable {
 				++rowcounter;
 				if (bfb.empty()) {
 					bfb.fbr.close();
+					lt.replay(true);
 				} else {
-					pq.add(bfb); // add it back
+					lt.replay(false); // replay its matches
 				}
 			}
 		} finally {
 			fbw.close();
-			for (BinaryFileBuffer bfb : pq)
+			for (BinaryFileBuffer bfb : buffers)
 				bfb.close();
 		}
 		return rowcounter;
@@ -392,35 +531,230 @@ public class ExternalSortCallable {
 	public static int mergeSortedFiles(List<File> files, File outputfile,
 			final Comparator<String> cmp, Charset cs, boolean distinct,
 			boolean append, boolean usegzip) throws IOException {
-		ArrayList<BinaryFileBuffer> bfbs = new ArrayList<BinaryFileBuffer>();
-		//System.out.println("merge started, files.size="+files.size());
-		for (File f : files) {
-			final int BUFFERSIZE = 2048;
-			InputStream in = new FileInputStream(f);
-			BufferedReader br;
-			if (usegzip) {
-				br = new BufferedReader(
-						new InputStreamReader(
-								new GZIPInputStream(in,
-										BUFFERSIZE), cs));
-			} else {
-				br = new BufferedReader(new InputStreamReader(
-						in, cs));
-			}
+		return mergeSortedFiles(files, outputfile, cmp, cs, distinct,
+				append, usegzip, new MergePlanner(estimateAvailableMemory(),
+						MergePlanner.DEFAULTMAXOPENFILES, SortEngine.getDefault()));
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files, in several passes if
+	 * there are too many of them to be opened at once. Unless they are
+	 * compressed, the last pass runs on several threads, see
+	 * {@link ParallelMerge}.
+	 * 
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded. (elchetz@gmail.com)
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param cmp
+	 *                The {@link Comparator} to use to compare
+	 *                {@link String}s.
+	 * @param cs
+	 *                The {@link Charset} to be used for the byte to
+	 *                character conversion.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                assumes we used gzip compression for temporary files
+	 * @param planner
+	 *                decides the fan-in and the buffer size of the merges
+	 * @return The number of lines sorted. (P. Beaudoin)
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(List<File> files, File outputfile,
+			Comparator<String> cmp, Charset cs, boolean distinct,
+			boolean append, boolean usegzip, MergePlanner planner)
+			throws IOException {
+		return mergeSortedFiles(files, outputfile, cmp, cs, distinct, append,
+				RunCodec.of(usegzip), RunCodec.NONE, planner);
+	}
 
-			BinaryFileBuffer bfb = new BinaryFileBuffer(br);
-			bfbs.add(bfb);
+	/**
+	 * This merges a bunch of temporary flat files, in several passes if
+	 * there are too many of them to be opened at once. The codec of each
+	 * file is read from its header. Unless they are compressed, the last
+	 * pass runs on several threads, see {@link ParallelMerge}.
+	 * 
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param cmp
+	 *                The {@link Comparator} to use to compare
+	 *                {@link String}s.
+	 * @param cs
+	 *                The {@link Charset} to be used for the byte to
+	 *                character conversion.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param codec
+	 *                compression of the intermediate merges
+	 * @param outputcodec
+	 *                compression of the output file
+	 * @param planner
+	 *                decides the fan-in and the buffer size of the merges
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(List<File> files, File outputfile,
+			final Comparator<String> cmp, final Charset cs,
+			final boolean distinct, boolean append, final RunCodec codec,
+			RunCodec outputcodec, MergePlanner planner) throws IOException {
+		// runs with disjoint keys need not be merged
+		files = RunStats.concatenateDisjoint(files, RunStats.keyComparator(
+				cmp, cs), distinct);
+		if (files.size() == 1) {
+			long moved = RunStats.moveTo(files.get(0), outputfile, append,
+					outputcodec, distinct);
+			if (moved >= 0)
+				return (int) moved;
+		}
+		List<File> runs = planner.reduce(files, tmpDirectoryOf(files),
+				new MergePlanner.RunMerger() {
+					//@Override
+					public void merge(List<File> inputs, File output,
+							int buffersize) throws IOException {
+						mergeSortedFiles(openOutputFile(output, cs, false,
+								codec), cmp, distinct, openSortedFiles(
+								inputs, cs, buffersize));
+					}
+				});
+		ParallelMerge parallel = new ParallelMerge(planner);
+		int rowcounter;
+		if (outputcodec == RunCodec.NONE && ParallelMerge.splittable(cs)
+				&& parallel.ranges(runs) > 1 && ParallelMerge.seekable(runs)) {
+			rowcounter = parallel.mergeSortedFiles(runs, outputfile, cmp, cs,
+					distinct, append);
+		} else {
+			List<BinaryFileBuffer> bfbs = openSortedFiles(runs, cs,
+					planner.bufferSize(runs.size()));
+			BufferedWriter fbw = openOutputFile(outputfile, cs, append,
+					outputcodec);
+			rowcounter = mergeSortedFiles(fbw, cmp, distinct, bfbs);
 		}
-		//System.out.println("merge-bfbs.size="+bfbs.size());
-		BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(outputfile, append), cs));
-		int rowcounter = mergeSortedFiles(fbw, cmp, distinct, bfbs);
-		//System.out.println("merge-rowcounter="+rowcounter);
-		for (File f : files)
-			f.delete();
+		for (File f : runs)
+			RunStats.delete(f);
 		return rowcounter;
 	}
 
+	/**
+	 * Opens sorted temporary files for merging.
+	 * 
+	 * @param files
+	 *                the sorted files
+	 * @param cs
+	 *                The {@link Charset} to be used for the byte to
+	 *                character conversion.
+	 * @param usegzip
+	 *                ignored, the codec of each file is read from its
+	 *                header
+	 * @param buffersize
+	 *                size of the read buffer of each file (in bytes), split
+	 *                in two blocks read ahead in the background
+	 * @return one buffer per file
+	 * @throws IOException
+	 */
+	public static List<BinaryFileBuffer> openSortedFiles(List<File> files,
+			Charset cs, boolean usegzip, int buffersize) throws IOException {
+		return openSortedFiles(files, cs, buffersize);
+	}
+
+	/**
+	 * Opens sorted temporary files for merging, decompressed by the codec
+	 * named in their header.
+	 * 
+	 * @param files
+	 *                the sorted files
+	 * @param cs
+	 *                The {@link Charset} to be used for the byte to
+	 *                character conversion.
+	 * @param buffersize
+	 *                size of the read buffer of each file (in bytes), split
+	 *                in two blocks read ahead in the background
+	 * @return one buffer per file
+	 * @throws IOException
+	 */
+	public static List<BinaryFileBuffer> openSortedFiles(List<File> files,
+			Charset cs, int buffersize) throws IOException {
+		List<BinaryFileBuffer> bfbs = new ArrayList<BinaryFileBuffer>();
+		try {
+			for (File f : files) {
+				InputStream in = RunCodec.decode(ReadAheadInputStream.of(
+						new FileInputStream(f), buffersize / 2));
+				bfbs.add(new BinaryFileBuffer(new BufferedReader(
+						new InputStreamReader(in, cs))));
+			}
+		} catch (IOException e) {
+			for (BinaryFileBuffer bfb : bfbs)
+				bfb.close();
+			throw e;
+		}
+		return bfbs;
+	}
+
+	/**
+	 * Opens a file to write sorted lines to.
+	 * 
+	 * @param f
+	 *                the file
+	 * @param cs
+	 *                The {@link Charset} to be used for the character to
+	 *                byte conversion.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                use gzip compression
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public static BufferedWriter openOutputFile(File f, Charset cs,
+			boolean append, boolean usegzip) throws IOException {
+		return openOutputFile(f, cs, append, RunCodec.of(usegzip));
+	}
+
+	/**
+	 * Opens a file to write sorted lines to.
+	 * 
+	 * @param f
+	 *                the file
+	 * @param cs
+	 *                The {@link Charset} to be used for the character to
+	 *                byte conversion.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param codec
+	 *                the compression, see {@link RunCodec#create(File,
+	 *                boolean)}
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public static BufferedWriter openOutputFile(File f, Charset cs,
+			boolean append, RunCodec codec) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(codec.create(f,
+				append), cs));
+	}
+
+	/**
+	 * @param files
+	 *                some temporary files
+	 * @return the directory holding the first of them, where we put the
+	 *         intermediate merges
+	 */
+	public static File tmpDirectoryOf(List<File> files) {
+		return files.isEmpty() ? null : files.get(0).getAbsoluteFile()
+				.getParentFile();
+	}
+
 	/**
 	 * This sorts a file (input) to an output file (output) using default
 	 * parameters
@@ -485,8 +819,41 @@ public class ExternalSortCallable {
 	public static File sortAndSave(List<String> tmplist,
 			Comparator<String> cmp, Charset cs, File tmpdirectory,
 			boolean distinct, boolean usegzip) throws IOException {
-		// Use following code upto Java 7
-		Collections.sort(tmplist, cmp);
+		return sortAndSave(tmplist, cmp, cs, tmpdirectory, distinct,
+				RunCodec.of(usegzip));
+	}
+
+	/**
+	 * Sort a list and save it to a temporary file
+	 * 
+	 * @return the file containing the sorted data
+	 * @param tmplist
+	 *                data to be sorted
+	 * @param cmp
+	 *                string comparator
+	 * @param cs
+	 *                charset to use for output (can use
+	 *                Charset.defaultCharset())
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param codec
+	 *                compression of the temporary file
+	 * @throws IOException
+	 */
+	public static File sortAndSave(List<String> tmplist,
+			Comparator<String> cmp, Charset cs, File tmpdirectory,
+			boolean distinct, RunCodec codec) throws IOException {
+		// radix sort for the natural order, else prefix keys if available
+		if (StringRadixSort.isNaturalOrder(cmp))
+			StringRadixSort.sort(tmplist);
+		else if (cmp instanceof PrefixComparator)
+			PrefixComparators.sort(tmplist, (PrefixComparator<String>) cmp);
+		else
+			Collections.sort(tmplist, cmp);
 		// Use following code for Java 8
 		//String[] tmplistArray = tmplist.toArray(new String[0]);
 		//Arrays.parallelSort(tmplistArray, cmp);
@@ -495,16 +862,8 @@ public class ExternalSortCallable {
 		File newtmpfile = File.createTempFile("sortInBatch",
 				"flatfile", tmpdirectory);
 		newtmpfile.deleteOnExit();
-		OutputStream out = new FileOutputStream(newtmpfile);
-		int ZIPBUFFERSIZE = 2048;
-		if (usegzip)
-			out = new GZIPOutputStream(out, ZIPBUFFERSIZE) {
-			{
-				this.def.setLevel(Deflater.BEST_SPEED);
-			}
-		};
-		BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
-				out, cs));
+		BufferedWriter fbw = openOutputFile(newtmpfile, cs, false, codec);
+		long lines = 0;
 		String lastLine = null;
 		try {
 			for (String r : tmplist) {
@@ -513,11 +872,16 @@ public class ExternalSortCallable {
 					fbw.write(r);
 					fbw.newLine();
 					lastLine = r;
+					++lines;
 				}
 			}
 		} finally {
 			fbw.close();
 		}
+		if (!tmplist.isEmpty())
+			new RunStats(tmplist.get(0).getBytes(cs), lastLine.getBytes(cs),
+					lines, newtmpfile.length(), true, distinct).write(
+					newtmpfile, true);
 		return newtmpfile;
 	}
 
@@ -597,87 +961,81 @@ public class ExternalSortCallable {
 			final int maxtmpfiles, long maxMemory, final Charset cs,
 			final File tmpdirectory, final boolean distinct,
 			final int numHeader, final boolean usegzip) throws IOException {
-		List<File> files = new ArrayList<File>();
-		long blocksize = estimateBestSizeOfBlocks(datalength,
-				maxtmpfiles, maxMemory);// in
-				// bytes
+		return sortInBatch(fbr, datalength, cmp, maxtmpfiles, maxMemory, cs,
+				tmpdirectory, distinct, numHeader, RunCodec.of(usegzip));
+	}
 
+	/**
+	 * @param fbr
+	 *                data source
+	 * @param datalength
+	 *                estimated data volume (in bytes)
+	 * @param cmp
+	 *                string comparator
+	 * @param maxtmpfiles
+	 *                maximal number of temporary files
+	 * @param maxMemory
+	 *                maximum amount of memory to use (in bytes)
+	 * @param cs
+	 *                character set to use (can use
+	 *                Charset.defaultCharset())
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param codec
+	 *                compression of the temporary files
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(final BufferedReader fbr,
+			final long datalength, final Comparator<String> cmp,
+			final int maxtmpfiles, long maxMemory, final Charset cs,
+			final File tmpdirectory, final boolean distinct,
+			final int numHeader, final RunCodec codec) throws IOException {
+		List<File> files;
+		SortEngine engine = SortEngine.getDefault();
+		int sortThreads = engine.sortThreadsFor(maxMemory);
+		// one block being read, one being written and one per sort thread
+		long blocksize = estimateBestSizeOfBlocks(datalength, maxtmpfiles,
+				maxMemory, sortThreads + 2);// in bytes
+		RunGenerationPipeline pipeline = new RunGenerationPipeline(engine,
+				RunGenerationPipeline.maxLiveBlocks(maxMemory, blocksize,
+						sortThreads));
 		try {
-			//Get ExecutorService from Executors utility class, thread pool size is 10
-			ExecutorService executor = Executors.newFixedThreadPool(4);
-			//create a list to hold the Future object associated with Callable
-			List<Future<File>> futureFileList = new ArrayList<Future<File>>();
-			List<String> tmplist = null;
 			String line = "";
-			try {
-				int counter = 0;
-				while (line != null) {
-					tmplist = new ArrayList<String>();
-					long currentblocksize = 0;// in bytes
-					while ((currentblocksize < blocksize)
-							&& ((line = fbr.readLine()) != null)) {
-						// as long as you have enough
-						// memory
-						if (counter < numHeader) {
-							counter++;
-							continue;
-						}
-						tmplist.add(line);
-						currentblocksize += StringSizeEstimator
-								.estimatedSizeOf(line);
+			int counter = 0;
+			while (line != null) {
+				// wait until the memory budget allows another block
+				pipeline.acquireBlock();
+				List<String> tmplist = new ArrayList<String>();
+				long currentblocksize = 0;// in bytes
+				while ((currentblocksize < blocksize)
+						&& ((line = fbr.readLine()) != null)) {
+					// as long as you have enough
+					// memory
+					if (counter < numHeader) {
+						counter++;
+						continue;
 					}
-
-					//System.out.println("tmplist size="+tmplist.size());
-
-					SortAndSaveCallable sortCallable = new SortAndSaveCallable(tmplist, cmp, 
-							cs, tmpdirectory, distinct, usegzip);
-					//System.out.println("submit callable");
-					//submit Callable tasks to be executed by thread pool
-					Future<File> future = executor.submit(sortCallable);
-					//System.out.println("add future to list");
-					//add Future to the list, we can get return value using Future
-					futureFileList.add(future);
-
-					/*files.add(sortAndSave(tmplist, cmp, cs,
-                                                tmpdirectory, distinct, usegzip));*/
-
-
-					//tmplist.clear();
+					tmplist.add(line);
+					currentblocksize += StringSizeEstimator
+							.estimatedSizeOf(line);
 				}
-			} catch (EOFException oef) {
-				if (tmplist.size() > 0) {
-					/*files.add(sortAndSave(tmplist, cmp, cs,
-                                                tmpdirectory, distinct, usegzip));*/
-					// tmplist.clear();
-					//System.out.println("EOF tmplist size="+tmplist.size());
-
-					SortAndSaveCallable sortCallable = new SortAndSaveCallable(tmplist, cmp, 
-							cs, tmpdirectory, distinct, usegzip);
-					//submit Callable tasks to be executed by thread pool
-					Future<File> future = executor.submit(sortCallable);
-					//add Future to the list, we can get return value using Future
-					futureFileList.add(future);
+				if (tmplist.isEmpty()) {
+					pipeline.releaseBlock();
+					continue;
 				}
+				pipeline.submit(new SortAndSaveCallable(tmplist, cmp,
+						cs, tmpdirectory, distinct, codec));
 			}
-
-			//System.out.println("##### processing future list");
-			for(Future<File> future : futureFileList){
-				try {
-					//print the return value of Future, notice the output delay in console
-					// because Future.get() waits for task to get completed
-					//System.out.println(new Date()+ "::"+fut.get());
-					files.add(future.get());
-					//System.out.println("in for loop future list");
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-			//System.out.println("executor shutdown");
-			//shut down the executor service now
-			executor.shutdown();
-
-			//tmplist.clear();
+			files = pipeline.finish();
 		} finally {
+			pipeline.shutdown();
 			fbr.close();
 		}
 		return files;
@@ -801,21 +1159,62 @@ public class ExternalSortCallable {
 			int maxtmpfiles, Charset cs, File tmpdirectory,
 			boolean distinct, int numHeader, boolean usegzip)
 					throws IOException {
+		return sortInBatch(file, cmp, maxtmpfiles, cs, tmpdirectory,
+				distinct, numHeader, RunCodec.of(usegzip));
+	}
+
+	/**
+	 * This will simply load the file by blocks of lines, then sort them
+	 * in-memory, and write the result to temporary files that have to be
+	 * merged later. You can specify a bound on the number of temporary
+	 * files that will be created.
+	 * 
+	 * @param file
+	 *                some flat file
+	 * @param cmp
+	 *                string comparator
+	 * @param maxtmpfiles
+	 *                maximal number of temporary files
+	 * @param cs
+	 *                character set to use (can use
+	 *                Charset.defaultCharset())
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param codec
+	 *                compression of the temporary files
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(File file, Comparator<String> cmp,
+			int maxtmpfiles, Charset cs, File tmpdirectory,
+			boolean distinct, int numHeader, RunCodec codec)
+					throws IOException {
 		BufferedReader fbr = new BufferedReader(new InputStreamReader(
 				new FileInputStream(file), cs));
 		return sortInBatch(fbr, file.length(), cmp, maxtmpfiles,
 				estimateAvailableMemory(), cs, tmpdirectory, distinct,
-				numHeader, usegzip);
+				numHeader, codec);
 	}
 
 	/**
 	 * default comparator between strings.
 	 */
-	public static Comparator<String> defaultcomparator = new Comparator<String>() {
+	public static Comparator<String> defaultcomparator = new PrefixComparator<String>() {
 		//@Override
 		public int compare(String r1, String r2) {
 			return r1.compareTo(r2);
 		}
+
+		//@Override
+		public long prefix(String r) {
+			return PrefixComparators.stringPrefix(r);
+		}
 	};
 
 	/**
@@ -823,6 +1222,7 @@ public class ExternalSortCallable {
 	 */
 	public static final int DEFAULTMAXTEMPFILES = 1024;
 
+
 }
 
 
@@ -16,7 +16,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 //import java.util.stream.Collectors;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
@@ -221,21 +220,17 @@ public class ExternalSortParallelStreamSort {
 	public static int mergeSortedFiles(BufferedWriter fbw,
 			final Comparator<String> cmp, boolean distinct,
 			List<BinaryFileBuffer> buffers) throws IOException {
-		PriorityQueue<BinaryFileBuffer> pq = new PriorityQueue<BinaryFileBuffer>(
-				11, new Comparator<BinaryFileBuffer>() {
-					public int compare(BinaryFileBuffer i,
-							BinaryFileBuffer j) {
-						return cmp.compare(i.peek(), j.peek());
-					}
-				});
+		List<BinaryFileBuffer> nonempty = new ArrayList<BinaryFileBuffer>();
 		for (BinaryFileBuffer bfb : buffers)
 			if (!bfb.empty())
-				pq.add(bfb);
+				nonempty.add(bfb);
+		LoserTree<BinaryFileBuffer> lt = new LoserTree<BinaryFileBuffer>(nonempty,
+				PrefixComparators.onCurrentLine(cmp));
 		int rowcounter = 0;
 		String lastLine = null;
 		try {
-			while (pq.size() > 0) {
-				BinaryFileBuffer bfb = pq.poll();
+			while (!lt.isEmpty()) {
+				BinaryFileBuffer bfb = lt.peek();
 				String r = bfb.pop();
 				// Skip duplicate lines
 				if (!distinct || !r.equals(lastLine)) {
@@ -246,13 +241,14 @@ public class ExternalSortParallelStreamSort {
 				++rowcounter;
 				if (bfb.empty()) {
 					bfb.fbr.close();
+					lt.replay(true);
 				} else {
-					pq.add(bfb); // add it back
+					lt.replay(false); // replay its matches
 				}
 			}
 		} finally {
 			fbw.close();
-			for (BinaryFileBuffer bfb : pq)
+			for (BinaryFileBuffer bfb : buffers)
 				bfb.close();
 		}
 		return rowcounter;
@@ -380,9 +376,13 @@ public class ExternalSortParallelStreamSort {
 			final Comparator<String> cmp, Charset cs, boolean distinct,
 			boolean append, boolean usegzip) throws IOException {
 		ArrayList<BinaryFileBuffer> bfbs = new ArrayList<BinaryFileBuffer>();
+		// each file is read ahead in two blocks, within half of the memory
+		int blocksize = new MergePlanner(estimateAvailableMemory(),
+				files.size(), 1).bufferSize(files.size()) / 2;
 		for (File f : files) {
 			final int BUFFERSIZE = 2048;
-			InputStream in = new FileInputStream(f);
+			InputStream in = ReadAheadInputStream.of(new FileInputStream(f),
+					blocksize);
 			BufferedReader br;
 			if (usegzip) {
 				br = new BufferedReader(
@@ -748,10 +748,14 @@ public class ExternalSortParallelStreamSort {
 	/**
 	 * default comparator between strings.
 	 */
-	public static Comparator<String> defaultcomparator = new Comparator<String>() {
+	public static Comparator<String> defaultcomparator = new PrefixComparator<String>() {
 		public int compare(String r1, String r2) {
 			return r1.compareTo(r2);
 		}
+
+		public long prefix(String r) {
+			return PrefixComparators.stringPrefix(r);
+		}
 	};
 
 	/**
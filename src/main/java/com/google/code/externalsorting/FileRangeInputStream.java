@@ -0,0 +1,86 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a range of bytes of a file with positional reads on its channel,
+ * so that a piece of a file on a shared store can be sorted in place
+ * instead of being copied out first. The stream is not buffered: the
+ * sorts read it in large chunks.
+ */
+public final class FileRangeInputStream extends InputStream {
+
+	/**
+	 * @param f
+	 *                the file
+	 * @param start
+	 *                offset of the first byte to read
+	 * @param end
+	 *                offset after the last byte to read, the stream ends
+	 *                earlier if the file does
+	 * @throws IOException
+	 */
+	public FileRangeInputStream(File f, long start, long end)
+			throws IOException {
+		if (start < 0 || end < start)
+			throw new IllegalArgumentException("bad range [" + start + ", "
+					+ end + ")");
+		this.channel = new FileInputStream(f).getChannel();
+		this.position = start;
+		this.end = end;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = read(single, 0, 1);
+		return n < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (position >= end)
+			return -1;
+		int n = channel.read(
+				ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)),
+				position);
+		if (n < 0)
+			return -1;
+		position += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, end - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.max(0,
+				Math.min(Integer.MAX_VALUE, Math.min(end, channel.size())
+						- position));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private final FileChannel channel;
+
+	private long position;
+
+	private final long end;
+
+	private final byte[] single = new byte[1];
+
+}
@@ -0,0 +1,265 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Front coding of sorted lines: each line is stored as the length of the
+ * prefix it shares with the line before it and the rest of its bytes.
+ * Adjacent lines of a sorted run often share most of their bytes (log keys,
+ * URLs, identifiers), which this drops at the cost of a byte comparison
+ * per line.
+ *
+ * Every {@link #RESTARTINTERVAL} lines a restart point stores the whole
+ * line, so that a reader starting there needs no earlier line. Each line is
+ * a varint header, 0 at the end of the stream and otherwise one more than
+ * twice the shared length (plus one if the line has no terminator), then
+ * the varint length of the suffix and the suffix. Lines end at '\n', a
+ * '\r' before it is part of the line.
+ */
+public final class FrontCodec extends RunCodec {
+
+	@Override
+	public String name() {
+		return "front";
+	}
+
+	@Override
+	protected OutputStream compress(OutputStream out) {
+		return new FrontOutputStream(out);
+	}
+
+	@Override
+	protected InputStream decompress(InputStream in) {
+		return new FrontInputStream(in);
+	}
+
+	/**
+	 * Splits the bytes written into lines and writes each one front coded.
+	 */
+	private static final class FrontOutputStream extends OutputStream {
+
+		FrontOutputStream(OutputStream out) {
+			this.out = new BufferedOutputStream(out, BUFFERSIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (b == '\n') {
+				writeLine(true);
+			} else {
+				ensureCapacity(length + 1);
+				line[length++] = (byte) b;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int end = off + len;
+			while (off < end) {
+				int newline = off;
+				while (newline < end && b[newline] != '\n')
+					++newline;
+				int n = newline - off;
+				ensureCapacity(length + n);
+				System.arraycopy(b, off, line, length, n);
+				length += n;
+				off = newline;
+				if (off < end) {
+					writeLine(true);
+					++off;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// a partial line is only written when it is complete or closed
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				if (length > 0)
+					writeLine(false);
+				writeVarint(0);
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeLine(boolean terminated) throws IOException {
+			int shared = 0;
+			if (count % RESTARTINTERVAL != 0) {
+				int max = Math.min(length, previousLength);
+				while (shared < max && line[shared] == previous[shared])
+					++shared;
+			}
+			writeVarint(2 * shared + (terminated ? 0 : 1) + 1);
+			writeVarint(length - shared);
+			out.write(line, shared, length - shared);
+			++count;
+			byte[] t = previous;
+			previous = line;
+			previousLength = length;
+			line = t;
+			length = 0;
+		}
+
+		private void writeVarint(int v) throws IOException {
+			while ((v & ~0x7F) != 0) {
+				out.write((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			out.write(v);
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > line.length) {
+				byte[] larger = new byte[Math.max(capacity, 2 * line.length)];
+				System.arraycopy(line, 0, larger, 0, length);
+				line = larger;
+			}
+		}
+
+		private final OutputStream out;
+
+		private byte[] line = new byte[256];
+
+		private int length;
+
+		private byte[] previous = new byte[256];
+
+		private int previousLength;
+
+		/** number of lines written */
+		private long count;
+
+		private boolean closed;
+	}
+
+	/**
+	 * Rebuilds each line from the one before it.
+	 */
+	private static final class FrontInputStream extends InputStream {
+
+		FrontInputStream(InputStream in) {
+			this.in = new BufferedInputStream(in, BUFFERSIZE);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == limit && !readLine())
+				return -1;
+			return line[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pos == limit && !readLine())
+				return -1;
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(line, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Decodes the next line in place of the current one, they share
+		 * its prefix.
+		 */
+		private boolean readLine() throws IOException {
+			if (ended)
+				return false;
+			int header = readVarint();
+			if (header == 0) {
+				ended = true;
+				return false;
+			}
+			int shared = (header - 1) >>> 1;
+			boolean terminated = ((header - 1) & 1) == 0;
+			int suffix = readVarint();
+			if (shared > length || suffix < 0)
+				throw new IOException("corrupt front coded stream");
+			int newlength = shared + suffix;
+			if (newlength + 1 > line.length) {
+				byte[] larger = new byte[Math.max(newlength + 1,
+						2 * line.length)];
+				System.arraycopy(line, 0, larger, 0, shared);
+				line = larger;
+			}
+			readFully(line, shared, suffix);
+			length = newlength;
+			limit = newlength;
+			if (terminated)
+				line[limit++] = '\n';
+			pos = 0;
+			return true;
+		}
+
+		private int readVarint() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = in.read();
+				if (b < 0)
+					throw new EOFException("truncated front coded stream");
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+			throw new IOException("corrupt front coded stream");
+		}
+
+		private void readFully(byte[] b, int off, int len) throws IOException {
+			int n = 0;
+			while (n < len) {
+				int r = in.read(b, off + n, len - n);
+				if (r < 0)
+					throw new EOFException("truncated front coded stream");
+				n += r;
+			}
+		}
+
+		private final InputStream in;
+
+		/** the current line, followed by its '\n' if it has one */
+		private byte[] line = new byte[256];
+
+		/** length of the current line, without the '\n' */
+		private int length;
+
+		private int pos;
+
+		private int limit;
+
+		private boolean ended;
+	}
+
+	/**
+	 * Number of lines between two restart points.
+	 */
+	public static final int RESTARTINTERVAL = 16;
+
+	private static final int BUFFERSIZE = 64 * 1024;
+
+}
@@ -0,0 +1,138 @@
+package com.google.code.externalsorting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link LineBlock} packed into byte array slabs, with long arrays for the
+ * index and the prefixes. Compared to a list of arrays this saves the object header, the
+ * array header and the reference of every line.
+ */
+public final class HeapLineBlock extends LineBlock {
+
+	/**
+	 * @param pool
+	 *                where the slabs come from and go back to
+	 */
+	public HeapLineBlock(SlabPool pool) {
+		this.pool = pool;
+		this.index = pool.takeIndex();
+		this.keys = pool.takeIndex();
+	}
+
+	@Override
+	public void add(byte[] b, int offset, int length) {
+		int needed = length + 4;
+		if (slabcount == 0 || slabs[slabcount - 1].length - used < needed)
+			newSlab(needed);
+		byte[] slab = slabs[slabcount - 1];
+		slab[used] = (byte) (length >>> 24);
+		slab[used + 1] = (byte) (length >>> 16);
+		slab[used + 2] = (byte) (length >>> 8);
+		slab[used + 3] = (byte) length;
+		System.arraycopy(b, offset, slab, used + 4, length);
+		if (count == index.length) {
+			index = grow(index);
+			keys = grow(keys);
+		}
+		keys[count] = ByteLineComparator.prefix(b, offset, length);
+		index[count++] = ((long) (slabcount - 1) << 32) | used;
+		used += needed;
+		bytes += needed;
+	}
+
+	@Override
+	public long memory() {
+		return allocated + 8L * (index.length + keys.length);
+	}
+
+	@Override
+	public void release() {
+		for (int i = 0; i < slabcount; ++i) {
+			pool.giveSlab(slabs[i]);
+			slabs[i] = null;
+		}
+		pool.giveIndex(index);
+		pool.giveIndex(keys);
+		index = new long[0];
+		keys = index;
+		slabcount = 0;
+		count = 0;
+		allocated = 0;
+		bytes = 0;
+	}
+
+	@Override
+	protected long entry(int i) {
+		return index[i];
+	}
+
+	@Override
+	protected long key(int i) {
+		return keys[i];
+	}
+
+	@Override
+	protected void set(int i, long key, long r) {
+		keys[i] = key;
+		index[i] = r;
+	}
+
+	@Override
+	protected int compare(long a, long b) {
+		byte[] sa = slabs[(int) (a >>> 32)];
+		byte[] sb = slabs[(int) (b >>> 32)];
+		int oa = (int) a;
+		int ob = (int) b;
+		return ByteLineComparator.compare(sa, oa + 4, length(sa, oa), sb,
+				ob + 4, length(sb, ob));
+	}
+
+	@Override
+	protected void write(OutputStream out, long r) throws IOException {
+		byte[] slab = slabs[(int) (r >>> 32)];
+		int offset = (int) r;
+		out.write(slab, offset + 4, length(slab, offset));
+	}
+
+	private long[] grow(long[] a) {
+		long[] bigger = new long[a.length + (a.length >> 1)];
+		System.arraycopy(a, 0, bigger, 0, count);
+		return bigger;
+	}
+
+	private void newSlab(int needed) {
+		byte[] slab = needed <= pool.slabSize() ? pool.takeSlab()
+				: new byte[needed];
+		if (slabcount == slabs.length) {
+			byte[][] bigger = new byte[slabs.length * 2][];
+			System.arraycopy(slabs, 0, bigger, 0, slabcount);
+			slabs = bigger;
+		}
+		slabs[slabcount++] = slab;
+		used = 0;
+		allocated += slab.length;
+	}
+
+	private static int length(byte[] slab, int offset) {
+		return ((slab[offset] & 0xFF) << 24) | ((slab[offset + 1] & 0xFF) << 16)
+				| ((slab[offset + 2] & 0xFF) << 8) | (slab[offset + 3] & 0xFF);
+	}
+
+	private final SlabPool pool;
+
+	private byte[][] slabs = new byte[16][];
+
+	private int slabcount;
+
+	/** bytes used in the last slab */
+	private int used;
+
+	private long[] index;
+
+	/** prefixes of the lines, in index order */
+	private long[] keys;
+
+	private long allocated;
+
+}
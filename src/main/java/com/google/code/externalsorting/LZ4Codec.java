@@ -0,0 +1,380 @@
+package com.google.code.externalsorting;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A pure Java codec in the LZ4 block format: greedy matches found through
+ * a hash table of 4-byte sequences, literals and matches encoded in
+ * byte-aligned sequences. It compresses text at several hundred MB/s and
+ * decompresses faster still, where deflate is often slower than the disk.
+ *
+ * The stream is cut into blocks of {@link #BLOCKSIZE} bytes, each written
+ * as its decompressed length, its stored length and the stored bytes. A
+ * block that does not shrink is stored as it is. A decompressed length of
+ * 0 ends the stream.
+ */
+public final class LZ4Codec extends RunCodec {
+
+	@Override
+	public String name() {
+		return "lz4";
+	}
+
+	@Override
+	protected OutputStream compress(OutputStream out) {
+		return new LZ4OutputStream(out);
+	}
+
+	@Override
+	protected InputStream decompress(InputStream in) {
+		return new LZ4InputStream(in);
+	}
+
+	/**
+	 * @param length
+	 *                number of bytes to compress
+	 * @return the largest size of their compressed form
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compresses src[0, length) to dst.
+	 *
+	 * @param table
+	 *                hash table of 1 << {@link #HASHLOG} entries, cleared
+	 *                here
+	 * @return the compressed length
+	 */
+	static int compress(byte[] src, int length, byte[] dst, int[] table) {
+		Arrays.fill(table, 0);
+		int anchor = 0;
+		int d = 0;
+		int i = 0;
+		// the last match must leave room for 5 literals, as in LZ4
+		int matchlimit = length - LASTLITERALS;
+		int limit = length - MFLIMIT;
+		int misses = 0;
+		while (i < limit) {
+			int seq = readInt(src, i);
+			int h = (seq * -1640531535) >>> (32 - HASHLOG);
+			// positions are stored plus one, 0 is an empty slot
+			int ref = table[h] - 1;
+			table[h] = i + 1;
+			if (ref < 0 || i - ref > MAXOFFSET || readInt(src, ref) != seq) {
+				// skip faster through data that does not compress
+				i += 1 + (misses++ >>> SKIPSTRENGTH);
+				continue;
+			}
+			misses = 0;
+			while (i > anchor && ref > 0 && src[i - 1] == src[ref - 1]) {
+				--i;
+				--ref;
+			}
+			int matchlength = MINMATCH;
+			while (i + matchlength < matchlimit
+					&& src[i + matchlength] == src[ref + matchlength])
+				++matchlength;
+			d = writeSequence(src, anchor, i - anchor, i - ref, matchlength,
+					dst, d);
+			i += matchlength;
+			anchor = i;
+		}
+		// last literals, without a match
+		return writeSequence(src, anchor, length - anchor, 0, 0, dst, d);
+	}
+
+	private static int writeSequence(byte[] src, int anchor, int literals,
+			int offset, int matchlength, byte[] dst, int d) {
+		int token = d++;
+		int t = (Math.min(literals, 15) << 4);
+		d = writeLength(literals, dst, d);
+		System.arraycopy(src, anchor, dst, d, literals);
+		d += literals;
+		if (matchlength > 0) {
+			dst[d++] = (byte) offset;
+			dst[d++] = (byte) (offset >>> 8);
+			int m = matchlength - MINMATCH;
+			t |= Math.min(m, 15);
+			d = writeLength(m, dst, d);
+		}
+		dst[token] = (byte) t;
+		return d;
+	}
+
+	/**
+	 * Writes what does not fit in the 4 bits of the token.
+	 */
+	private static int writeLength(int length, byte[] dst, int d) {
+		if (length >= 15) {
+			int rest = length - 15;
+			while (rest >= 255) {
+				dst[d++] = (byte) 255;
+				rest -= 255;
+			}
+			dst[d++] = (byte) rest;
+		}
+		return d;
+	}
+
+	/**
+	 * Decompresses src[0, length) to dst.
+	 *
+	 * @return the decompressed length
+	 * @throws IOException
+	 *                 if the data is corrupt
+	 */
+	static int decompress(byte[] src, int length, byte[] dst)
+			throws IOException {
+		int s = 0;
+		int d = 0;
+		try {
+			while (s < length) {
+				int token = src[s++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[s++] & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, s, dst, d, literals);
+				s += literals;
+				d += literals;
+				if (s >= length)
+					break;
+				int offset = (src[s] & 0xFF) | (src[s + 1] & 0xFF) << 8;
+				s += 2;
+				int matchlength = token & 15;
+				if (matchlength == 15) {
+					int b;
+					do {
+						b = src[s++] & 0xFF;
+						matchlength += b;
+					} while (b == 255);
+				}
+				matchlength += MINMATCH;
+				int ref = d - offset;
+				if (offset == 0 || ref < 0)
+					throw new IOException("corrupt lz4 block");
+				if (offset >= matchlength) {
+					System.arraycopy(dst, ref, dst, d, matchlength);
+					d += matchlength;
+				} else {
+					// overlapping copy repeats the last offset bytes
+					for (int k = 0; k < matchlength; ++k)
+						dst[d++] = dst[ref++];
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("corrupt lz4 block", e);
+		}
+		return d;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8
+				| (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+
+	/**
+	 * Compresses the bytes written, one block at a time.
+	 */
+	private static final class LZ4OutputStream extends OutputStream {
+
+		LZ4OutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == block.length)
+				writeBlock();
+			block[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == block.length)
+					writeBlock();
+				int n = Math.min(len, block.length - count);
+				System.arraycopy(b, off, block, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writeBlock();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				writeBlock();
+				writeInt(0);
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeBlock() throws IOException {
+			if (count == 0)
+				return;
+			int n = LZ4Codec.compress(block, count, compressed, table);
+			writeInt(count);
+			if (n < count) {
+				writeInt(n);
+				out.write(compressed, 0, n);
+			} else {
+				writeInt(count);
+				out.write(block, 0, count);
+			}
+			count = 0;
+		}
+
+		private void writeInt(int v) throws IOException {
+			header[0] = (byte) (v >>> 24);
+			header[1] = (byte) (v >>> 16);
+			header[2] = (byte) (v >>> 8);
+			header[3] = (byte) v;
+			out.write(header, 0, 4);
+		}
+
+		private final OutputStream out;
+
+		private final byte[] block = new byte[BLOCKSIZE];
+
+		private int count;
+
+		private final byte[] compressed = new byte[maxCompressedLength(BLOCKSIZE)];
+
+		private final int[] table = new int[1 << HASHLOG];
+
+		private final byte[] header = new byte[4];
+
+		private boolean closed;
+	}
+
+	/**
+	 * Decompresses one block at a time.
+	 */
+	private static final class LZ4InputStream extends InputStream {
+
+		LZ4InputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == limit && !readBlock())
+				return -1;
+			return block[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pos == limit && !readBlock())
+				return -1;
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(block, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private boolean readBlock() throws IOException {
+			if (ended)
+				return false;
+			int length = readInt();
+			if (length == 0) {
+				ended = true;
+				return false;
+			}
+			int stored = readInt();
+			if (length < 0 || length > BLOCKSIZE || stored < 0
+					|| stored > length)
+				throw new IOException("corrupt lz4 stream");
+			if (stored == length) {
+				readFully(block, stored);
+			} else {
+				readFully(compressed, stored);
+				if (decompress(compressed, stored, block) != length)
+					throw new IOException("corrupt lz4 block");
+			}
+			pos = 0;
+			limit = length;
+			return true;
+		}
+
+		private int readInt() throws IOException {
+			readFully(header, 4);
+			return (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16
+					| (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
+		}
+
+		private void readFully(byte[] b, int len) throws IOException {
+			int n = 0;
+			while (n < len) {
+				int r = in.read(b, n, len - n);
+				if (r < 0)
+					throw new EOFException("truncated lz4 stream");
+				n += r;
+			}
+		}
+
+		private final InputStream in;
+
+		private final byte[] block = new byte[BLOCKSIZE];
+
+		private final byte[] compressed = new byte[maxCompressedLength(BLOCKSIZE)];
+
+		private final byte[] header = new byte[4];
+
+		private int pos;
+
+		private int limit;
+
+		private boolean ended;
+	}
+
+	/** decompressed size of a block */
+	public static final int BLOCKSIZE = 64 * 1024;
+
+	private static final int HASHLOG = 12;
+
+	private static final int MINMATCH = 4;
+
+	private static final int LASTLITERALS = 5;
+
+	private static final int MFLIMIT = 12;
+
+	private static final int MAXOFFSET = 65535;
+
+	private static final int SKIPSTRENGTH = 6;
+
+}
@@ -0,0 +1,244 @@
+package com.google.code.externalsorting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A block of encoded lines copied into large slabs, with a primitive index of
+ * their addresses. Sorting only moves the 8 byte index entries, the lines
+ * themselves stay where they were copied.
+ *
+ * Each line is stored as a 4 byte length followed by its bytes, the index
+ * entry of a line is (slab number &lt;&lt; 32 | offset in the slab). Beside
+ * each entry the index keeps the {@link ByteLineComparator#prefix} of the
+ * line, most comparisons are decided on the prefixes without reading the
+ * slabs. Where the slabs and the index live is up to the subclasses: {@link HeapLineBlock}
+ * keeps them on the Java heap, {@link DirectLineBlock} in the direct memory
+ * of an {@link OffHeapArena}.
+ */
+public abstract class LineBlock {
+
+	/**
+	 * Copies a line into the block.
+	 *
+	 * @param b
+	 *                array holding the line
+	 * @param offset
+	 *                where the line starts
+	 * @param length
+	 *                length of the line
+	 */
+	public abstract void add(byte[] b, int offset, int length);
+
+	/**
+	 * @return the memory held by the block (in bytes)
+	 */
+	public abstract long memory();
+
+	/**
+	 * Gives the slabs and the index back to where they came from, the block
+	 * is empty afterwards.
+	 */
+	public abstract void release();
+
+	/**
+	 * @return the number of lines in the block
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * @return the size of the lines and their lengths (in bytes)
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Sorts the index with {@link ByteLineComparator}.
+	 */
+	public void sort() {
+		introsort(0, count, 2 * (32 - Integer.numberOfLeadingZeros(count)));
+	}
+
+	/**
+	 * Writes the lines in index order, each followed by a line separator.
+	 *
+	 * @param out
+	 *                where to write the lines
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @return the number of lines written
+	 * @throws IOException
+	 */
+	public int writeTo(OutputStream out, boolean distinct) throws IOException {
+		int lines = 0;
+		long last = -1;
+		long lastkey = 0;
+		for (int i = 0; i < count; ++i) {
+			long r = entry(i);
+			long key = key(i);
+			// Skip duplicate lines
+			if (distinct && last >= 0 && key == lastkey
+					&& compare(r, last) == 0)
+				continue;
+			write(out, r);
+			out.write(ByteExternalSort.NEWLINE);
+			last = r;
+			lastkey = key;
+			++lines;
+		}
+		return lines;
+	}
+
+	/**
+	 * @param i
+	 *                position of the line in index order
+	 * @return a copy of the line, without separator
+	 * @throws IOException
+	 */
+	public byte[] line(int i) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, entry(i));
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the i-th entry of the index
+	 */
+	protected abstract long entry(int i);
+
+	/**
+	 * @return the prefix of the line of the i-th entry of the index
+	 */
+	protected abstract long key(int i);
+
+	/**
+	 * Replaces the i-th entry of the index and its prefix.
+	 */
+	protected abstract void set(int i, long key, long r);
+
+	/**
+	 * Compares the lines of two index entries with
+	 * {@link ByteLineComparator}.
+	 */
+	protected abstract int compare(long a, long b);
+
+	/**
+	 * Writes the bytes of the line of an index entry, without separator.
+	 */
+	protected abstract void write(OutputStream out, long r)
+			throws IOException;
+
+	/**
+	 * Quicksort of the index entries [lo, hi), falling back to heapsort when
+	 * the recursion gets too deep and to insertion sort on small ranges.
+	 */
+	private void introsort(int lo, int hi, int depth) {
+		while (hi - lo > INSERTIONSORTTHRESHOLD) {
+			if (depth-- == 0) {
+				heapsort(lo, hi);
+				return;
+			}
+			// median of three goes first and is the pivot
+			int mid = (lo + hi) >>> 1;
+			if (compare(mid, lo) < 0)
+				swap(mid, lo);
+			if (compare(hi - 1, mid) < 0) {
+				swap(hi - 1, mid);
+				if (compare(mid, lo) < 0)
+					swap(mid, lo);
+			}
+			swap(lo, mid);
+			long pivotkey = key(lo);
+			long pivot = entry(lo);
+			int i = lo - 1;
+			int j = hi;
+			while (true) {
+				do {
+					++i;
+				} while (compare(key(i), entry(i), pivotkey, pivot) < 0);
+				do {
+					--j;
+				} while (compare(key(j), entry(j), pivotkey, pivot) > 0);
+				if (i >= j)
+					break;
+				swap(i, j);
+			}
+			// recurse on the smaller half, loop on the larger one
+			if (j + 1 - lo < hi - j - 1) {
+				introsort(lo, j + 1, depth);
+				lo = j + 1;
+			} else {
+				introsort(j + 1, hi, depth);
+				hi = j + 1;
+			}
+		}
+		for (int i = lo + 1; i < hi; ++i) {
+			long key = key(i);
+			long r = entry(i);
+			int j = i - 1;
+			while (j >= lo && compare(key(j), entry(j), key, r) > 0) {
+				set(j + 1, key(j), entry(j));
+				--j;
+			}
+			set(j + 1, key, r);
+		}
+	}
+
+	private void heapsort(int lo, int hi) {
+		int n = hi - lo;
+		for (int i = n / 2 - 1; i >= 0; --i)
+			siftDown(lo, i, n);
+		for (int end = n - 1; end > 0; --end) {
+			swap(lo, lo + end);
+			siftDown(lo, 0, end);
+		}
+	}
+
+	private void siftDown(int lo, int i, int n) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n)
+				return;
+			if (child + 1 < n && compare(lo + child, lo + child + 1) < 0)
+				++child;
+			if (compare(lo + i, lo + child) >= 0)
+				return;
+			swap(lo + i, lo + child);
+			i = child;
+		}
+	}
+
+	/**
+	 * Compares the lines of the i-th and j-th entries.
+	 */
+	private int compare(int i, int j) {
+		return compare(key(i), entry(i), key(j), entry(j));
+	}
+
+	private int compare(long ka, long a, long kb, long b) {
+		if (ka != kb)
+			return ka < kb ? -1 : 1;
+		return compare(a, b);
+	}
+
+	private void swap(int i, int j) {
+		long tkey = key(i);
+		long t = entry(i);
+		set(i, key(j), entry(j));
+		set(j, tkey, t);
+	}
+
+	/** number of lines */
+	protected int count;
+
+	/** size of the lines and their lengths */
+	protected long bytes;
+
+	private static final int INSERTIONSORTTHRESHOLD = 16;
+
+}
@@ -0,0 +1,155 @@
+package com.google.code.externalsorting;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Loser tree (tournament tree) used for the k-way merge of sorted runs.
+ *
+ * Each internal node remembers the loser of the match played there, the
+ * overall winner is kept on top. Once the winning source has been advanced,
+ * only the matches on the path from its leaf to the root are replayed, that
+ * is about log2(k) comparisons per record instead of the 2*log2(k) of a
+ * binary heap poll() followed by add().
+ *
+ * The tree does not read the sources itself: the caller takes the record
+ * out of {@link #peek()}, advances that source and then calls
+ * {@link #replay(boolean)}. Exhausted sources lose every match. Equal
+ * records are returned in the order of the sources.
+ *
+ * If the comparator is a {@link PrefixComparator}, the prefix of the
+ * current record of each source is cached and the matches compare the
+ * prefixes first.
+ *
+ * @param <T>
+ *                the type of the sources, compared on their current record
+ */
+public final class LoserTree<T> {
+
+	/**
+	 * @param sources
+	 *                the sources to merge, none of them may be exhausted
+	 * @param cmp
+	 *                compares two sources on their current record
+	 */
+	@SuppressWarnings("unchecked")
+	public LoserTree(List<? extends T> sources, Comparator<? super T> cmp) {
+		this.sources = new ArrayList<T>(sources);
+		this.cmp = cmp;
+		this.k = sources.size();
+		this.exhausted = new boolean[k];
+		if (cmp instanceof PrefixComparator) {
+			this.prefixcmp = (PrefixComparator<? super T>) cmp;
+			this.prefixes = new long[k];
+			for (int i = 0; i < k; ++i)
+				this.prefixes[i] = prefixcmp.prefix(this.sources.get(i));
+		} else {
+			this.prefixcmp = null;
+			this.prefixes = null;
+		}
+		this.tree = new int[Math.max(k, 1)];
+		this.live = k;
+		build();
+	}
+
+	/**
+	 * @return <code>true</code> once every source is exhausted
+	 */
+	public boolean isEmpty() {
+		return live == 0;
+	}
+
+	/**
+	 * @return the number of sources that are not exhausted yet
+	 */
+	public int size() {
+		return live;
+	}
+
+	/**
+	 * @return the source holding the smallest record
+	 */
+	public T peek() {
+		return sources.get(tree[0]);
+	}
+
+	/**
+	 * Restores the tree after the source returned by {@link #peek()} was
+	 * advanced.
+	 *
+	 * @param winnerExhausted
+	 *                Pass <code>true</code> if that source has no more
+	 *                records.
+	 */
+	public void replay(boolean winnerExhausted) {
+		int winner = tree[0];
+		if (winnerExhausted) {
+			exhausted[winner] = true;
+			--live;
+		} else if (prefixes != null) {
+			prefixes[winner] = prefixcmp.prefix(sources.get(winner));
+		}
+		for (int node = (winner + k) >>> 1; node > 0; node >>>= 1) {
+			int challenger = tree[node];
+			if (beats(challenger, winner)) {
+				tree[node] = winner;
+				winner = challenger;
+			}
+		}
+		tree[0] = winner;
+	}
+
+	private void build() {
+		if (k == 0)
+			return;
+		// winners of the matches, leaves are stored at k..2k-1
+		int[] winners = new int[2 * k];
+		for (int i = 0; i < k; ++i)
+			winners[k + i] = i;
+		for (int node = k - 1; node > 0; --node) {
+			int a = winners[2 * node];
+			int b = winners[2 * node + 1];
+			if (beats(a, b)) {
+				winners[node] = a;
+				tree[node] = b;
+			} else {
+				winners[node] = b;
+				tree[node] = a;
+			}
+		}
+		tree[0] = k == 1 ? 0 : winners[1];
+	}
+
+	private boolean beats(int a, int b) {
+		if (exhausted[a])
+			return false;
+		if (exhausted[b])
+			return true;
+		if (prefixes != null && prefixes[a] != prefixes[b])
+			return prefixes[a] < prefixes[b];
+		int c = cmp.compare(sources.get(a), sources.get(b));
+		return c < 0 || (c == 0 && a < b);
+	}
+
+	private final List<T> sources;
+
+	private final Comparator<? super T> cmp;
+
+	private final PrefixComparator<? super T> prefixcmp;
+
+	/** prefixes of the current records, if cmp is a PrefixComparator */
+	private final long[] prefixes;
+
+	private final int k;
+
+	private final boolean[] exhausted;
+
+	/**
+	 * tree[0] is the overall winner, tree[1..k-1] the losers.
+	 */
+	private final int[] tree;
+
+	private int live;
+
+}
@@ -0,0 +1,198 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A counterpart of {@link ByteFileBuffer} for uncompressed runs: the run is
+ * memory-mapped with {@link FileChannel#map} and the lines are found and
+ * compared in the mapped region, without reading them into the heap. The
+ * current line is a slice of {@link #window()}, valid until the next call
+ * to {@link #reload()}.
+ *
+ * Large runs are mapped one window at a time. A line crossing the end of a
+ * window starts the next one, a line longer than a window gets a larger
+ * one. The windows are unmapped by the garbage collector.
+ */
+public final class MappedFileBuffer {
+
+	/**
+	 * @param f
+	 *                an uncompressed run
+	 * @param windowsize
+	 *                how many bytes of the run are mapped at once
+	 * @throws IOException
+	 */
+	public MappedFileBuffer(File f, int windowsize) throws IOException {
+		this(f, 0, f.length(), windowsize);
+	}
+
+	/**
+	 * @param f
+	 *                an uncompressed run
+	 * @param start
+	 *                where the lines to read start, at the beginning of a
+	 *                line
+	 * @param end
+	 *                where they end
+	 * @param windowsize
+	 *                how many bytes of the run are mapped at once
+	 * @throws IOException
+	 */
+	public MappedFileBuffer(File f, long start, long end, int windowsize)
+			throws IOException {
+		this.raf = new RandomAccessFile(f, "r");
+		this.end = end;
+		this.windowsize = Math.max(windowsize, 4096);
+		try {
+			map(start, this.windowsize);
+			reload();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	public void close() throws IOException {
+		this.raf.close();
+	}
+
+	public boolean empty() {
+		return this.empty;
+	}
+
+	/**
+	 * @return the mapped region holding the current line, big-endian
+	 */
+	public ByteBuffer window() {
+		return this.window;
+	}
+
+	/**
+	 * @return where the current line starts in {@link #window()}
+	 */
+	public int offset() {
+		return this.start;
+	}
+
+	/**
+	 * @return the length of the current line, line terminator excluded
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * Moves on to the next line.
+	 *
+	 * @throws IOException
+	 */
+	public void reload() throws IOException {
+		int pos = this.next;
+		int scan = pos;
+		while (true) {
+			int newline = indexOfNewline(scan);
+			if (newline >= 0) {
+				setLine(pos, newline);
+				this.next = newline + 1;
+				return;
+			}
+			if (this.base + this.limit >= this.end) {
+				if (pos < this.limit) {
+					// last line without terminator
+					setLine(pos, this.limit);
+					this.next = this.limit;
+				} else {
+					this.empty = true;
+					this.length = 0;
+				}
+				return;
+			}
+			// the line goes on after the window: map the next one from
+			// the start of the line, twice as large if the line fills it
+			int size = pos == 0 ? grow(this.limit) : this.windowsize;
+			scan = this.limit - pos;
+			map(this.base + pos, size);
+			pos = 0;
+		}
+	}
+
+	private void setLine(int from, int newline) {
+		this.start = from;
+		if (newline > from && this.window.get(newline - 1) == '\r')
+			--newline;
+		this.length = newline - from;
+	}
+
+	/**
+	 * @return the position of the first '\n' of the window at or after
+	 *         from, -1 if there is none
+	 */
+	private int indexOfNewline(int from) {
+		ByteBuffer w = this.window;
+		int i = from;
+		// look at 8 bytes at a time: the high bit of each byte of t is set
+		// if that byte is a '\n'
+		for (; i + 8 <= this.limit; i += 8) {
+			long v = w.getLong(i) ^ NEWLINES;
+			long t = ~(((v & LOW7) + LOW7) | v | LOW7);
+			if (t != 0)
+				return i + (Long.numberOfLeadingZeros(t) >>> 3);
+		}
+		for (; i < this.limit; ++i)
+			if (w.get(i) == '\n')
+				return i;
+		return -1;
+	}
+
+	private void map(long position, int size) throws IOException {
+		long length = Math.min(size, this.end - position);
+		this.window = this.raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+				position, length);
+		this.base = position;
+		this.limit = (int) length;
+	}
+
+	private static int grow(int size) throws IOException {
+		if (size >= Integer.MAX_VALUE / 2)
+			throw new IOException("line too long to be mapped");
+		return size * 2;
+	}
+
+	private final RandomAccessFile raf;
+
+	/** end of the lines in the file */
+	private final long end;
+
+	private final int windowsize;
+
+	private ByteBuffer window;
+
+	/** position of the window in the file */
+	private long base;
+
+	/** number of bytes mapped */
+	private int limit;
+
+	/** where the line after the current one starts */
+	private int next;
+
+	private int start;
+
+	private int length;
+
+	private boolean empty;
+
+	/**
+	 * Default number of bytes of a run mapped at once.
+	 */
+	public static final int DEFAULTWINDOWSIZE = 64 * 1024 * 1024;
+
+	private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+	private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+
+}
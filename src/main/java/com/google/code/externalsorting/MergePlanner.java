@@ -0,0 +1,308 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Plans the merge of the sorted runs.
+ *
+ * If all the runs can be opened at once with a reasonable buffer each, they
+ * are merged in a single pass as before. Otherwise the fan-in is derived from
+ * the memory budget and the open-file limit, and intermediate merges reduce
+ * the number of runs until the final merge can open them all. Like a Huffman
+ * code, the smallest runs are always merged first so that the total number
+ * of bytes rewritten is minimal. Intermediate merges that do not depend on
+ * each other run in parallel.
+ */
+public class MergePlanner {
+
+	/**
+	 * Merges some sorted runs into a new sorted run.
+	 */
+	public interface RunMerger {
+		/**
+		 * @param inputs
+		 *                the sorted runs to merge
+		 * @param output
+		 *                where to write the merged run
+		 * @param buffersize
+		 *                size of the read buffer of each input (in bytes)
+		 * @throws IOException
+		 */
+		void merge(List<File> inputs, File output, int buffersize)
+				throws IOException;
+	}
+
+	/**
+	 * @param maxMemory
+	 *                Maximum memory to use for the read buffers (in bytes)
+	 * @param maxOpenFiles
+	 *                how many runs may be open at the same time
+	 * @param parallelism
+	 *                how many intermediate merges may run at the same time
+	 */
+	public MergePlanner(long maxMemory, int maxOpenFiles, int parallelism) {
+		this(maxMemory, maxOpenFiles, parallelism, SortEngine.getDefault());
+	}
+
+	/**
+	 * @param maxMemory
+	 *                Maximum memory to use for the read buffers (in bytes)
+	 * @param maxOpenFiles
+	 *                how many runs may be open at the same time
+	 * @param engine
+	 *                runs the intermediate merges, up to one per I/O thread
+	 *                at the same time
+	 */
+	public MergePlanner(long maxMemory, int maxOpenFiles, SortEngine engine) {
+		this(maxMemory, maxOpenFiles, engine.ioThreads(), engine);
+	}
+
+	private MergePlanner(long maxMemory, int maxOpenFiles, int parallelism,
+			SortEngine engine) {
+		this.maxMemory = maxMemory;
+		this.maxOpenFiles = Math.max(2, maxOpenFiles);
+		this.parallelism = Math.max(1, parallelism);
+		this.engine = engine;
+	}
+
+	/**
+	 * @return the engine running the merges
+	 */
+	public SortEngine engine() {
+		return engine;
+	}
+
+	/**
+	 * @return the largest number of runs merged in one pass when the merge
+	 *         runs alone
+	 */
+	public int singlePassFanIn() {
+		return (int) Math.max(2,
+				Math.min(maxOpenFiles, maxMemory / MINBUFFERSIZE));
+	}
+
+	/**
+	 * @return the number of runs merged by each intermediate merge, so
+	 *         that parallel merges stay within the budget together, but
+	 *         never so few that we pay for many more passes
+	 */
+	public int fanIn() {
+		int single = singlePassFanIn();
+		return Math.max(Math.min(MINFANIN, single), single / parallelism);
+	}
+
+	/**
+	 * @return how many intermediate merges may run at the same time
+	 *         without going over the open-file limit
+	 */
+	public int concurrency() {
+		return Math.max(1, Math.min(parallelism, singlePassFanIn() / fanIn()));
+	}
+
+	/**
+	 * @param openFiles
+	 *                number of runs sharing the memory budget
+	 * @return the read buffer size for each of them (in bytes)
+	 */
+	public int bufferSize(int openFiles) {
+		// half of the budget is left for the lines in flight and the
+		// decoders
+		long size = maxMemory / 2 / Math.max(1, openFiles);
+		return (int) Math.max(MINBUFFERSIZE, Math.min(MAXBUFFERSIZE, size));
+	}
+
+	/**
+	 * Runs the intermediate merges needed before the final merge. The
+	 * merged runs are deleted.
+	 *
+	 * @param runs
+	 *                the sorted runs
+	 * @param tmpdirectory
+	 *                location of the intermediate runs (set to null for
+	 *                default location)
+	 * @param merger
+	 *                how to merge runs
+	 * @return the runs left for the final merge, at most
+	 *         {@link #singlePassFanIn()} of them
+	 * @throws IOException
+	 */
+	public List<File> reduce(List<File> runs, final File tmpdirectory,
+			final RunMerger merger) throws IOException {
+		if (runs.size() <= singlePassFanIn())
+			return runs;
+		final int fanin = fanIn();
+		final int concurrency = concurrency();
+		final int buffersize = bufferSize(fanin * concurrency);
+		PriorityQueue<Step> queue = new PriorityQueue<Step>(runs.size(),
+				new Comparator<Step>() {
+					//@Override
+					public int compare(Step a, Step b) {
+						return a.bytes < b.bytes ? -1
+								: (a.bytes == b.bytes ? 0 : 1);
+					}
+				});
+		for (File f : runs)
+			queue.add(new Step(f));
+		// the first merge takes just enough runs for every later merge,
+		// the final one included, to take exactly fanin runs
+		int take = (runs.size() - 2) % (fanin - 1) + 2;
+		List<Step> steps = new ArrayList<Step>();
+		while (queue.size() > fanin) {
+			List<Step> inputs = new ArrayList<Step>(take);
+			for (int i = 0; i < take; ++i)
+				inputs.add(queue.poll());
+			Step step = new Step(inputs);
+			steps.add(step);
+			queue.add(step);
+			take = fanin;
+		}
+		System.out.println("MergePlanner: " + runs.size() + " runs, "
+				+ steps.size() + " intermediate merges of up to " + fanin
+				+ " runs, " + concurrency + " at a time, buffer size "
+				+ buffersize);
+
+		// steps only depend on earlier steps, which are submitted first to
+		// a FIFO pool, so they cannot deadlock on them; the permits keep
+		// the merges of this plan within the budget
+		final Semaphore permits = new Semaphore(concurrency);
+		try {
+			for (final Step step : steps) {
+				acquire(permits);
+				step.future = engine.ioExecutor().submit(new Callable<File>() {
+					//@Override
+					public File call() throws IOException {
+						try {
+							List<File> inputs = new ArrayList<File>();
+							for (Step input : step.inputs)
+								inputs.add(input.get());
+							File output = File.createTempFile(
+									"mergeInBatch", "flatfile", tmpdirectory);
+							output.deleteOnExit();
+							merger.merge(inputs, output, buffersize);
+							for (File f : inputs)
+								RunStats.delete(f);
+							return output;
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			}
+			List<File> remaining = new ArrayList<File>(queue.size());
+			for (Step step : queue)
+				remaining.add(step.get());
+			return remaining;
+		} catch (IOException e) {
+			for (Step step : steps)
+				step.discard();
+			throw e;
+		}
+	}
+
+	private static void acquire(Semaphore permits) throws IOException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while merging");
+		}
+	}
+
+	/**
+	 * A run, either one of the initial runs or the output of an
+	 * intermediate merge.
+	 */
+	private static final class Step {
+		Step(File file) {
+			this.file = file;
+			this.inputs = null;
+			this.bytes = file.length();
+		}
+
+		Step(List<Step> inputs) {
+			this.file = null;
+			this.inputs = inputs;
+			long total = 0;
+			for (Step input : inputs)
+				total += input.bytes;
+			this.bytes = total;
+		}
+
+		File get() throws IOException {
+			if (file != null)
+				return file;
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while merging");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				if (e.getCause() instanceof Error)
+					throw (Error) e.getCause();
+				throw new IOException(e.getCause());
+			}
+		}
+
+		void discard() {
+			if (future == null)
+				return;
+			future.cancel(true);
+			try {
+				future.get().delete();
+			} catch (Exception e) {
+				// nothing to clean up
+			}
+		}
+
+		final File file;
+
+		final List<Step> inputs;
+
+		final long bytes;
+
+		volatile Future<File> future;
+	}
+
+	private final long maxMemory;
+
+	private final int maxOpenFiles;
+
+	private final int parallelism;
+
+	private final SortEngine engine;
+
+	/**
+	 * Smallest read buffer given to a run, smaller reads turn the merge into
+	 * random I/O.
+	 */
+	public static final int MINBUFFERSIZE = 64 * 1024;
+
+	/**
+	 * Largest read buffer given to a run.
+	 */
+	public static final int MAXBUFFERSIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Intermediate merges take at least that many runs when the open-file
+	 * limit allows it.
+	 */
+	public static final int MINFANIN = 8;
+
+	/**
+	 * Default maximal number of runs open at the same time.
+	 */
+	public static final int DEFAULTMAXOPENFILES = 512;
+
+}
@@ -0,0 +1,134 @@
+package com.google.code.externalsorting;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct memory for the {@link DirectLineBlock}s, handed out as slabs of a
+ * fixed size and limited to an explicit budget. The lines and their index
+ * then live outside of the Java heap: the block size does not depend on
+ * -Xmx anymore and the garbage collector never scans them.
+ *
+ * The slabs are recycled, not freed, until the arena itself is dropped. The
+ * JVM must be allowed to allocate the whole budget, with
+ * -XX:MaxDirectMemorySize (which defaults to the maximum heap size).
+ */
+public final class OffHeapArena {
+
+	/**
+	 * @param budget
+	 *                maximum amount of direct memory to allocate (in bytes)
+	 * @param slabsize
+	 *                size of each slab (in bytes), rounded down to a power
+	 *                of two
+	 */
+	public OffHeapArena(long budget, int slabsize) {
+		this.budget = budget;
+		this.slabsize = Integer.highestOneBit(Math.max(slabsize, 64));
+	}
+
+	/**
+	 * Parses a size such as "512m" or "24g".
+	 *
+	 * @param size
+	 *                a number of bytes, with an optional k, m, g or t
+	 *                suffix
+	 * @return the number of bytes
+	 * @throws NumberFormatException
+	 *                 if the size cannot be parsed
+	 */
+	public static long parseSize(String size) {
+		String s = size.trim().toLowerCase();
+		int shift = 0;
+		if (s.endsWith("b"))
+			s = s.substring(0, s.length() - 1);
+		switch (s.isEmpty() ? ' ' : s.charAt(s.length() - 1)) {
+		case 'k':
+			shift = 10;
+			break;
+		case 'm':
+			shift = 20;
+			break;
+		case 'g':
+			shift = 30;
+			break;
+		case 't':
+			shift = 40;
+			break;
+		default:
+			break;
+		}
+		if (shift > 0)
+			s = s.substring(0, s.length() - 1);
+		long n = Long.parseLong(s);
+		if (n < 0 || n > (Long.MAX_VALUE >> shift))
+			throw new NumberFormatException("invalid size: " + size);
+		return n << shift;
+	}
+
+	/**
+	 * @return the budget (in bytes)
+	 */
+	public long budget() {
+		return budget;
+	}
+
+	/**
+	 * @return the direct memory allocated so far (in bytes)
+	 */
+	public long allocated() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return the size of the slabs handed out, a power of two
+	 */
+	public int slabSize() {
+		return slabsize;
+	}
+
+	/**
+	 * @param needed
+	 *                minimum capacity of the slab (in bytes)
+	 * @return a slab, recycled if possible, of {@link #slabSize()} bytes
+	 *         unless more are needed
+	 * @throws IllegalStateException
+	 *                 if the budget does not allow a new slab
+	 */
+	public ByteBuffer takeSlab(int needed) {
+		if (needed <= slabsize) {
+			ByteBuffer slab = slabs.poll();
+			if (slab != null)
+				return slab;
+			needed = slabsize;
+		}
+		if (allocated.addAndGet(needed) > budget) {
+			allocated.addAndGet(-needed);
+			throw new IllegalStateException("off-heap budget of " + budget
+					+ " bytes exhausted");
+		}
+		return ByteBuffer.allocateDirect(needed);
+	}
+
+	/**
+	 * @param slab
+	 *                a slab that is not used anymore
+	 */
+	public void giveSlab(ByteBuffer slab) {
+		if (slab.capacity() == slabsize)
+			slabs.offer(slab);
+		else
+			// left to the garbage collector
+			allocated.addAndGet(-slab.capacity());
+	}
+
+	private final long budget;
+
+	private final int slabsize;
+
+	private final AtomicLong allocated = new AtomicLong();
+
+	private final ConcurrentLinkedQueue<ByteBuffer> slabs = new ConcurrentLinkedQueue<ByteBuffer>();
+
+}
@@ -0,0 +1,654 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Final merge of sorted runs on several threads.
+ *
+ * Lines are sampled at regular offsets of the runs and sorted, and every
+ * range of keys between two consecutive splitters is merged by a thread of
+ * its own from its slice of every run. The slices are found by a binary
+ * search on the byte offsets of each run, the lines equal to a splitter all
+ * go to the same range. The first range is written to the output file, the
+ * others to part files in the same directory, appended to the output in
+ * order once they are all done.
+ *
+ * The runs must be seekable: plain files whose line terminator is the
+ * single byte '\n' in their character set, or runs in the block format of
+ * {@link BlockCodec}, which are sampled from their index and searched block
+ * by block. Compressed runs are merged on a single thread as before.
+ */
+public final class ParallelMerge {
+
+	/**
+	 * @param planner
+	 *                decides the buffer size and the number of files open at
+	 *                once; the ranges are merged on the sort pool of its
+	 *                engine
+	 */
+	public ParallelMerge(MergePlanner planner) {
+		this.planner = planner;
+	}
+
+	/**
+	 * @param cs
+	 *                the character set of the runs
+	 * @return <code>true</code> if a run in that character set can be cut
+	 *         at any '\n' byte
+	 */
+	public static boolean splittable(Charset cs) {
+		return Arrays.equals("\n".getBytes(cs), new byte[] { '\n' });
+	}
+
+	/**
+	 * @param runs
+	 *                the sorted runs
+	 * @return <code>true</code> if they are all plain or in the block
+	 *         format, so that they can be cut into slices
+	 * @throws IOException
+	 */
+	public static boolean seekable(List<File> runs) throws IOException {
+		for (File f : runs) {
+			RunCodec codec = RunCodec.detect(f);
+			if (codec != RunCodec.NONE && codec != RunCodec.BLOCK)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param runs
+	 *                the sorted runs, at most
+	 *                {@link MergePlanner#singlePassFanIn()} of them
+	 * @return the number of key ranges worth merging in parallel, 1 if the
+	 *         runs should be merged on a single thread
+	 */
+	public int ranges(List<File> runs) {
+		if (runs.isEmpty())
+			return 1;
+		long total = 0;
+		for (File f : runs)
+			total += f.length();
+		long ranges = Math.min(planner.engine().sortThreads(),
+				planner.singlePassFanIn() / runs.size());
+		return (int) Math.max(1, Math.min(ranges, total / MINRANGESIZE));
+	}
+
+	/**
+	 * Merges seekable sorted runs of lines.
+	 *
+	 * @param runs
+	 *                the sorted runs, see {@link #seekable(List)}
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param cmp
+	 *                The {@link Comparator} to use to compare
+	 *                {@link String}s.
+	 * @param cs
+	 *                The {@link Charset} of the runs, see
+	 *                {@link #splittable(Charset)}.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public int mergeSortedFiles(List<File> runs, File outputfile,
+			final Comparator<String> cmp, final Charset cs,
+			final boolean distinct, boolean append) throws IOException {
+		Comparator<byte[]> keycmp = new Comparator<byte[]>() {
+			//@Override
+			public int compare(byte[] a, byte[] b) {
+				return cmp.compare(new String(a, cs), new String(b, cs));
+			}
+		};
+		return merge(runs, outputfile, append, keycmp, new RangeMerger() {
+			//@Override
+			public int merge(List<Slice> slices, File output,
+					boolean append, int buffersize) throws IOException {
+				List<BinaryFileBuffer> bfbs = new ArrayList<BinaryFileBuffer>();
+				try {
+					for (Slice slice : slices)
+						bfbs.add(new BinaryFileBuffer(new BufferedReader(
+								new InputStreamReader(slice.open(
+										buffersize / 2), cs))));
+				} catch (IOException e) {
+					for (BinaryFileBuffer bfb : bfbs)
+						bfb.close();
+					throw e;
+				}
+				return ExternalSortCallable.mergeSortedFiles(
+						ExternalSortCallable.openOutputFile(output, cs,
+								append, false), cmp, distinct, bfbs);
+			}
+		});
+	}
+
+	/**
+	 * Merges seekable sorted runs of lines as bytes, in the order of
+	 * {@link ByteLineComparator}.
+	 *
+	 * @param runs
+	 *                the sorted runs, see {@link #seekable(List)}
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param mmap
+	 *                Pass <code>true</code> to read the runs through
+	 *                {@link MappedFileBuffer}s, they must all be plain.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public int mergeSortedByteFiles(List<File> runs, File outputfile,
+			final boolean distinct, boolean append, final boolean mmap)
+			throws IOException {
+		return merge(runs, outputfile, append, ByteLineComparator.INSTANCE,
+				new RangeMerger() {
+					//@Override
+					public int merge(List<Slice> slices, File output,
+							boolean append, int buffersize)
+							throws IOException {
+						if (mmap) {
+							List<MappedFileBuffer> mfbs = new ArrayList<MappedFileBuffer>();
+							try {
+								for (Slice slice : slices)
+									mfbs.add(new MappedFileBuffer(slice.file,
+											slice.start, slice.end,
+											MappedFileBuffer.DEFAULTWINDOWSIZE));
+							} catch (IOException e) {
+								for (MappedFileBuffer mfb : mfbs)
+									mfb.close();
+								throw e;
+							}
+							return ByteExternalSort.mergeMappedFiles(
+									ByteExternalSort.openOutputStream(output,
+											append, false), distinct, mfbs);
+						}
+						List<ByteFileBuffer> bfbs = new ArrayList<ByteFileBuffer>();
+						try {
+							for (Slice slice : slices)
+								bfbs.add(new ByteFileBuffer(slice
+										.open(buffersize / 4), buffersize / 2));
+						} catch (IOException e) {
+							for (ByteFileBuffer bfb : bfbs)
+								bfb.close();
+							throw e;
+						}
+						return ByteExternalSort.mergeSortedFiles(
+								ByteExternalSort.openOutputStream(output,
+										append, false), distinct, bfbs);
+					}
+				});
+	}
+
+	/**
+	 * Merges the slices of the runs that fall in one range of keys.
+	 */
+	private interface RangeMerger {
+		/**
+		 * @param slices
+		 *                the slice of each run
+		 * @param output
+		 *                where to write the merged lines
+		 * @param append
+		 *                whether to append to the output
+		 * @param buffersize
+		 *                size of the read buffer of each slice (in bytes)
+		 * @return the number of lines merged
+		 * @throws IOException
+		 */
+		int merge(List<Slice> slices, File output, boolean append,
+				int buffersize) throws IOException;
+	}
+
+	private int merge(final List<File> runs, File outputfile, boolean append,
+			Comparator<byte[]> keycmp, final RangeMerger merger)
+			throws IOException {
+		final boolean[] blocks = new boolean[runs.size()];
+		for (int i = 0; i < runs.size(); ++i)
+			blocks[i] = RunCodec.detect(runs.get(i)) == RunCodec.BLOCK;
+		final long[][] cuts = split(runs, blocks, ranges(runs), keycmp);
+		int ranges = cuts[0].length - 1;
+		final int buffersize = planner.bufferSize(runs.size() * ranges);
+		System.out.println("ParallelMerge: " + runs.size() + " runs, "
+				+ ranges + " ranges, buffer size " + buffersize);
+		File directory = outputfile.getAbsoluteFile().getParentFile();
+		List<File> parts = new ArrayList<File>();
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		boolean done = false;
+		try {
+			for (int r = 0; r < ranges; ++r) {
+				final File output;
+				final boolean appendoutput;
+				if (r == 0) {
+					output = outputfile;
+					appendoutput = append;
+				} else {
+					output = File.createTempFile("mergeRange", "part",
+							directory);
+					output.deleteOnExit();
+					parts.add(output);
+					appendoutput = false;
+				}
+				final int range = r;
+				futures.add(planner.engine().sortPool()
+						.submit(new Callable<Integer>() {
+							//@Override
+							public Integer call() throws IOException {
+								List<Slice> slices = new ArrayList<Slice>();
+								for (int i = 0; i < runs.size(); ++i)
+									slices.add(new Slice(runs.get(i),
+											blocks[i], cuts[i][range],
+											cuts[i][range + 1]));
+								return merger.merge(slices, output,
+										appendoutput, buffersize);
+							}
+						}));
+			}
+			int rowcounter = 0;
+			for (Future<Integer> future : futures)
+				rowcounter += get(future);
+			concatenate(outputfile, parts);
+			done = true;
+			return rowcounter;
+		} finally {
+			if (!done)
+				for (Future<Integer> future : futures)
+					future.cancel(true);
+			for (File part : parts)
+				part.delete();
+		}
+	}
+
+	/**
+	 * @return for each run, the offsets where the slices of the ranges
+	 *         start, followed by the end of its lines; every row has the
+	 *         same number of ranges, maybe fewer than asked for if the
+	 *         samples have duplicates
+	 */
+	private static long[][] split(List<File> runs, boolean[] blocks,
+			int ranges, Comparator<byte[]> keycmp) throws IOException {
+		List<Probe> probes = new ArrayList<Probe>(runs.size());
+		try {
+			long total = 0;
+			for (int i = 0; i < runs.size(); ++i) {
+				Probe probe = blocks[i] ? new BlockProbe(runs.get(i))
+						: new PlainProbe(runs.get(i));
+				probes.add(probe);
+				total += probe.end - probe.start;
+			}
+			List<byte[]> splitters = new ArrayList<byte[]>();
+			if (ranges > 1 && total > 0) {
+				// sample every run in proportion of its size, so that the
+				// ranges hold about the same number of bytes
+				List<byte[]> samples = new ArrayList<byte[]>();
+				for (Probe probe : probes)
+					probe.sample((int) Math.max(1, SAMPLESPERRANGE * ranges
+							* (probe.end - probe.start) / total), samples);
+				Collections.sort(samples, keycmp);
+				for (int r = 1; r < ranges; ++r) {
+					byte[] s = samples.get(r * samples.size() / ranges);
+					if (splitters.isEmpty()
+							|| keycmp.compare(splitters.get(splitters.size() - 1),
+									s) < 0)
+						splitters.add(s);
+				}
+			}
+			long[][] cuts = new long[runs.size()][splitters.size() + 2];
+			for (int i = 0; i < runs.size(); ++i) {
+				Probe probe = probes.get(i);
+				cuts[i][0] = probe.start;
+				for (int r = 0; r < splitters.size(); ++r)
+					cuts[i][r + 1] = probe.lowerBound(splitters.get(r),
+							cuts[i][r], keycmp);
+				cuts[i][splitters.size() + 1] = probe.end;
+			}
+			return cuts;
+		} finally {
+			for (Probe probe : probes)
+				probe.close();
+		}
+	}
+
+	/**
+	 * Appends the parts to the output, in order.
+	 */
+	private static void concatenate(File outputfile, List<File> parts)
+			throws IOException {
+		if (parts.isEmpty())
+			return;
+		FileChannel out = new FileOutputStream(outputfile, true).getChannel();
+		try {
+			for (File part : parts) {
+				FileChannel in = new FileInputStream(part).getChannel();
+				try {
+					long size = in.size();
+					long position = 0;
+					while (position < size)
+						position += in.transferTo(position, size - position,
+								out);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int get(Future<Integer> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while merging");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Looks up the lines of a run.
+	 */
+	private abstract static class Probe {
+
+		Probe(File f, long start, long end) throws IOException {
+			this.raf = new RandomAccessFile(f, "r");
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Adds k lines spread evenly over the run to the samples.
+		 */
+		abstract void sample(int k, List<byte[]> samples) throws IOException;
+
+		/**
+		 * @return the offset of the first line of the run not smaller than
+		 *         the key, or its end, searching from the line starting at
+		 *         lo
+		 */
+		abstract long lowerBound(byte[] key, long lo,
+				Comparator<byte[]> keycmp) throws IOException;
+
+		void close() throws IOException {
+			raf.close();
+		}
+
+		final RandomAccessFile raf;
+
+		/** offset of the first line */
+		final long start;
+
+		/** offset after the last line */
+		final long end;
+	}
+
+	/**
+	 * Reads the lines of a plain run at arbitrary offsets.
+	 */
+	private static final class PlainProbe extends Probe {
+
+		PlainProbe(File f) throws IOException {
+			super(f, 0, f.length());
+		}
+
+		@Override
+		void sample(int k, List<byte[]> samples) throws IOException {
+			for (long i = 0; i < k; ++i) {
+				long start = lineStart(end * (2 * i + 1) / (2 * k));
+				if (start < end)
+					samples.add(line(start));
+			}
+		}
+
+		@Override
+		long lowerBound(byte[] key, long lo, Comparator<byte[]> keycmp)
+				throws IOException {
+			// every line starting before lo is smaller than the key, the
+			// line starting at hi is not
+			long hi = end;
+			while (hi - lo > SCANWINDOW) {
+				long mid = lineStart(lo + (hi - lo) / 2);
+				if (mid >= hi)
+					break;
+				if (keycmp.compare(line(mid), key) < 0)
+					lo = next;
+				else
+					hi = mid;
+			}
+			while (lo < hi && keycmp.compare(line(lo), key) < 0)
+				lo = next;
+			return lo;
+		}
+
+		/**
+		 * @return the offset of the first line starting at or after pos,
+		 *         the length of the run if there is none
+		 */
+		private long lineStart(long pos) throws IOException {
+			if (pos <= 0)
+				return 0;
+			return endOfLine(pos - 1) + 1;
+		}
+
+		/**
+		 * @return the line starting at start, without its terminator;
+		 *         {@link #next} is set to the start of the following line
+		 */
+		private byte[] line(long start) throws IOException {
+			long eol = endOfLine(start);
+			next = Math.min(eol + 1, end);
+			if (eol > start && eol < end && byteAt(eol - 1) == '\r')
+				--eol;
+			byte[] line = new byte[(int) (eol - start)];
+			raf.seek(start);
+			raf.readFully(line);
+			return line;
+		}
+
+		/**
+		 * @return the offset of the first '\n' at or after pos, the length
+		 *         of the run if there is none
+		 */
+		private long endOfLine(long pos) throws IOException {
+			while (pos < end) {
+				raf.seek(pos);
+				int n = raf.read(chunk);
+				if (n <= 0)
+					break;
+				for (int i = 0; i < n; ++i)
+					if (chunk[i] == '\n')
+						return pos + i;
+				pos += n;
+			}
+			return end;
+		}
+
+		private int byteAt(long pos) throws IOException {
+			raf.seek(pos);
+			return raf.read();
+		}
+
+		/** start of the line after the last one read */
+		private long next;
+
+		private final byte[] chunk = new byte[4096];
+	}
+
+	/**
+	 * Looks up the lines of a run in the block format through its index:
+	 * the samples are the first lines of the blocks, and a search only
+	 * reads the one block that may hold the key.
+	 */
+	private static final class BlockProbe extends Probe {
+
+		BlockProbe(File f) throws IOException {
+			this(f, BlockCodec.Index.read(f));
+		}
+
+		private BlockProbe(File f, BlockCodec.Index index) throws IOException {
+			super(f, index.start(), index.end());
+			this.index = index;
+		}
+
+		@Override
+		void sample(int k, List<byte[]> samples) {
+			int blocks = index.blocks();
+			for (long i = 0; i < k && blocks > 0; ++i)
+				samples.add(index.first((int) (blocks * (2 * i + 1) / (2 * k))));
+		}
+
+		@Override
+		long lowerBound(byte[] key, long lo, Comparator<byte[]> keycmp)
+				throws IOException {
+			int b = index.lowerBlock(key, index.blockAt(lo), keycmp);
+			if (b == index.blocks())
+				return end;
+			long from = Math.max(lo, index.offset(b));
+			long to = index.offset(b) + index.size(b);
+			byte[] block = new byte[(int) (to - from)];
+			raf.seek(from);
+			raf.readFully(block);
+			int pos = 0;
+			while (pos < block.length) {
+				int header = 0;
+				int p = pos;
+				for (int shift = 0;; shift += 7) {
+					int v = block[p++];
+					header |= (v & 0x7F) << shift;
+					if ((v & 0x80) == 0)
+						break;
+				}
+				int length = (header - 1) >>> 1;
+				int linelength = length;
+				if (((header - 1) & 1) == 0 && length > 0
+						&& block[p + length - 1] == '\r')
+					--linelength;
+				if (keycmp.compare(Arrays.copyOfRange(block, p, p
+						+ linelength), key) >= 0)
+					return from + pos;
+				pos = p + length;
+			}
+			return to;
+		}
+
+		private final BlockCodec.Index index;
+	}
+
+	/**
+	 * The part of a run that falls in a range of keys.
+	 */
+	private static final class Slice {
+
+		Slice(File file, boolean blocks, long start, long end) {
+			this.file = file;
+			this.blocks = blocks;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * @param blocksize
+		 *                size of the blocks read ahead (in bytes)
+		 * @return the lines of the slice, each followed by its terminator
+		 */
+		InputStream open(int blocksize) throws IOException {
+			InputStream in = ReadAheadInputStream.of(new SliceInputStream(
+					file, start, end), blocksize);
+			return blocks ? BlockCodec.lines(in) : in;
+		}
+
+		final File file;
+
+		/** whether the run is in the block format */
+		final boolean blocks;
+
+		final long start;
+
+		final long end;
+	}
+
+	/**
+	 * The bytes of a file from start to end.
+	 */
+	private static final class SliceInputStream extends InputStream {
+
+		SliceInputStream(File f, long start, long end) throws IOException {
+			this.in = new FileInputStream(f);
+			this.in.getChannel().position(start);
+			this.remaining = end - start;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b >= 0)
+				--remaining;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private final FileInputStream in;
+
+		private long remaining;
+	}
+
+	private final MergePlanner planner;
+
+	/** smallest amount of input worth a thread of its own (in bytes) */
+	private static final long MINRANGESIZE = 8 * 1024 * 1024;
+
+	/** lines sampled per range to choose the splitters */
+	private static final int SAMPLESPERRANGE = 64;
+
+	/** below this many bytes the binary search becomes a scan */
+	private static final long SCANWINDOW = 4096;
+
+}
@@ -0,0 +1,27 @@
+package com.google.code.externalsorting;
+
+import java.util.Comparator;
+
+/**
+ * A comparator that can also map each object to an 8 byte key prefix
+ * preserving its order: if prefix(a) &lt; prefix(b) (as signed longs) then
+ * compare(a, b) &lt; 0. Equal prefixes tell nothing, the objects then have
+ * to be compared in full.
+ *
+ * The block sorts and the merges cache the prefixes in primitive arrays
+ * and only call {@link #compare(Object, Object)} on ties, which saves most
+ * of the pointer chasing to the data of the objects.
+ *
+ * @param <T>
+ *                the type of objects that may be compared
+ */
+public interface PrefixComparator<T> extends Comparator<T> {
+
+	/**
+	 * @param o
+	 *                an object
+	 * @return its order preserving prefix
+	 */
+	long prefix(T o);
+
+}
@@ -0,0 +1,154 @@
+package com.google.code.externalsorting;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Helpers for the {@link PrefixComparator}s.
+ */
+public final class PrefixComparators {
+
+	private PrefixComparators() {
+	}
+
+	/**
+	 * The prefix of a string in the order of
+	 * {@link String#compareTo(String)}: its first 4 UTF-16 code units, padded
+	 * with zeros.
+	 *
+	 * @param s
+	 *                a string
+	 * @return the prefix, to be compared as a signed long
+	 */
+	public static long stringPrefix(String s) {
+		int n = Math.min(s.length(), 4);
+		long p = 0;
+		for (int i = 0; i < n; ++i)
+			p = (p << 16) | s.charAt(i);
+		// unsigned order to signed order
+		return (p << (16 * (4 - n))) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Compares two prefixes.
+	 *
+	 * @return a negative number, zero or a positive number as the first
+	 *         prefix is less than, equal to or greater than the second one
+	 */
+	public static int compare(long p1, long p2) {
+		return p1 < p2 ? -1 : (p1 == p2 ? 0 : 1);
+	}
+
+	/**
+	 * Compares {@link BinaryFileBuffer}s on their current line.
+	 *
+	 * @param cmp
+	 *                string comparator
+	 * @return a comparator of buffers, a {@link PrefixComparator} if cmp is
+	 *         one
+	 */
+	@SuppressWarnings("unchecked")
+	public static Comparator<BinaryFileBuffer> onCurrentLine(
+			final Comparator<String> cmp) {
+		if (cmp instanceof PrefixComparator) {
+			final PrefixComparator<String> pcmp = (PrefixComparator<String>) cmp;
+			return new PrefixComparator<BinaryFileBuffer>() {
+				//@Override
+				public int compare(BinaryFileBuffer i, BinaryFileBuffer j) {
+					return pcmp.compare(i.peek(), j.peek());
+				}
+
+				//@Override
+				public long prefix(BinaryFileBuffer b) {
+					return pcmp.prefix(b.peek());
+				}
+			};
+		}
+		return new Comparator<BinaryFileBuffer>() {
+			//@Override
+			public int compare(BinaryFileBuffer i, BinaryFileBuffer j) {
+				return cmp.compare(i.peek(), j.peek());
+			}
+		};
+	}
+
+	/**
+	 * Sorts a list, like {@link java.util.Collections#sort(List, Comparator)}
+	 * (the sort is stable), comparing the cached prefixes first.
+	 *
+	 * @param list
+	 *                the objects to sort
+	 * @param cmp
+	 *                their comparator
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> void sort(List<T> list, PrefixComparator<? super T> cmp) {
+		int n = list.size();
+		Object[] a = list.toArray();
+		long[] keys = new long[n];
+		for (int i = 0; i < n; ++i)
+			keys[i] = cmp.prefix((T) a[i]);
+		mergesort(a.clone(), keys.clone(), a, keys, 0, n,
+				(PrefixComparator<Object>) cmp);
+		ListIterator<T> i = list.listIterator();
+		for (Object o : a) {
+			i.next();
+			i.set((T) o);
+		}
+	}
+
+	/**
+	 * Sorts src[lo, hi) into dst[lo, hi), both holding the same objects
+	 * on entry.
+	 */
+	private static void mergesort(Object[] src, long[] srckeys, Object[] dst,
+			long[] dstkeys, int lo, int hi, PrefixComparator<Object> cmp) {
+		if (hi - lo <= INSERTIONSORTTHRESHOLD) {
+			for (int i = lo + 1; i < hi; ++i) {
+				Object o = dst[i];
+				long key = dstkeys[i];
+				int j = i - 1;
+				while (j >= lo && compare(dstkeys[j], dst[j], key, o, cmp) > 0) {
+					dst[j + 1] = dst[j];
+					dstkeys[j + 1] = dstkeys[j];
+					--j;
+				}
+				dst[j + 1] = o;
+				dstkeys[j + 1] = key;
+			}
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		// the halves are sorted into src, then merged into dst
+		mergesort(dst, dstkeys, src, srckeys, lo, mid, cmp);
+		mergesort(dst, dstkeys, src, srckeys, mid, hi, cmp);
+		if (compare(srckeys[mid - 1], src[mid - 1], srckeys[mid], src[mid],
+				cmp) <= 0) {
+			System.arraycopy(src, lo, dst, lo, hi - lo);
+			System.arraycopy(srckeys, lo, dstkeys, lo, hi - lo);
+			return;
+		}
+		for (int i = lo, p = lo, q = mid; i < hi; ++i) {
+			if (q >= hi
+					|| (p < mid && compare(srckeys[p], src[p], srckeys[q],
+							src[q], cmp) <= 0)) {
+				dst[i] = src[p];
+				dstkeys[i] = srckeys[p++];
+			} else {
+				dst[i] = src[q];
+				dstkeys[i] = srckeys[q++];
+			}
+		}
+	}
+
+	private static int compare(long k1, Object o1, long k2, Object o2,
+			PrefixComparator<Object> cmp) {
+		if (k1 != k2)
+			return k1 < k2 ? -1 : 1;
+		return cmp.compare(o1, o2);
+	}
+
+	private static final int INSERTIONSORTTHRESHOLD = 16;
+
+}
@@ -0,0 +1,172 @@
+package com.google.code.externalsorting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Double-buffered read-ahead over a stream: while the merge consumes one
+ * block, the next one is read by a background thread. A run then never
+ * makes the merge wait for the disk (or the network, for a shared store)
+ * as long as the other runs give the read time to complete.
+ *
+ * The blocks should be as large as the memory budget allows, see
+ * {@link MergePlanner#bufferSize(int)}: the stream holds two of them.
+ */
+public final class ReadAheadInputStream extends InputStream {
+
+	/**
+	 * @param in
+	 *                the stream to read ahead of, closed with this one
+	 * @param blocksize
+	 *                size of each of the two blocks (in bytes)
+	 * @param executor
+	 *                runs the reads, should not be waiting on this stream
+	 */
+	public ReadAheadInputStream(InputStream in, int blocksize,
+			ExecutorService executor) {
+		this.in = in;
+		this.executor = executor;
+		this.current = new byte[Math.max(blocksize, MINBLOCKSIZE)];
+		this.pending = fill(new byte[this.current.length]);
+	}
+
+	/**
+	 * @param in
+	 *                the stream to read ahead of, closed with this one
+	 * @param blocksize
+	 *                size of each of the two blocks (in bytes)
+	 * @return a stream reading ahead on the read-ahead pool of the default
+	 *         {@link SortEngine}
+	 */
+	public static ReadAheadInputStream of(InputStream in, int blocksize) {
+		return new ReadAheadInputStream(in, blocksize, SortEngine
+				.getDefault().readAheadExecutor());
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == limit && !advance())
+			return -1;
+		return current[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos == limit && !advance())
+			return -1;
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return limit - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (pending != null) {
+			// the read in flight must not run on a closed stream
+			try {
+				pending.get();
+			} catch (Exception e) {
+				// the stream is being closed anyway
+			}
+			pending = null;
+		}
+		in.close();
+	}
+
+	/**
+	 * Swaps in the block read in the background and starts reading the
+	 * next one into the block just consumed.
+	 *
+	 * @return <code>false</code> at the end of the stream
+	 */
+	private boolean advance() throws IOException {
+		while (pending != null) {
+			Filled filled = get(pending);
+			byte[] consumed = current;
+			current = filled.block;
+			pos = 0;
+			limit = filled.length;
+			// a short block means the end of the stream was reached
+			pending = filled.length == current.length ? fill(consumed)
+					: null;
+			if (limit > 0)
+				return true;
+		}
+		return false;
+	}
+
+	private Future<Filled> fill(final byte[] block) {
+		return executor.submit(new Callable<Filled>() {
+			//@Override
+			public Filled call() throws IOException {
+				int n = 0;
+				while (n < block.length) {
+					int r = in.read(block, n, block.length - n);
+					if (r < 0)
+						break;
+					n += r;
+				}
+				return new Filled(block, n);
+			}
+		});
+	}
+
+	private static Filled get(Future<Filled> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while reading ahead");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * A block and how many bytes were read into it.
+	 */
+	private static final class Filled {
+		Filled(byte[] block, int length) {
+			this.block = block;
+			this.length = length;
+		}
+
+		final byte[] block;
+
+		final int length;
+	}
+
+	private final InputStream in;
+
+	private final ExecutorService executor;
+
+	/** the block being consumed */
+	private byte[] current;
+
+	private int pos;
+
+	private int limit;
+
+	/** the read of the next block, null at the end of the stream */
+	private Future<Filled> pending;
+
+	private static final int MINBLOCKSIZE = 8 * 1024;
+
+}
@@ -0,0 +1,280 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Run generation by replacement selection, an alternative to the fixed
+ * blocks of {@link ExternalSortCallable#sortInBatch(File, Comparator, int,
+ * Charset, File, boolean, int, boolean)}.
+ *
+ * The lines stream through a heap that fills the memory budget: the
+ * smallest line is written to the current run and replaced by the next
+ * line of the input. A line smaller than the last one written cannot go
+ * to the current run anymore, it is tagged for the next one and sinks
+ * below all the lines of the current run. On random input the runs are
+ * about twice as large as the heap, sorted or nearly sorted input gives a
+ * single run. The runs are fewer, the merge is cheaper.
+ *
+ * Lines are written as soon as they leave the heap, on a single thread.
+ */
+public final class ReplacementSelection {
+
+	private ReplacementSelection() {
+	}
+
+	/**
+	 * @param file
+	 *                some flat file
+	 * @param cmp
+	 *                string comparator
+	 * @param cs
+	 *                character set to use (can use
+	 *                Charset.defaultCharset())
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param codec
+	 *                compression of the temporary files
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(File file, Comparator<String> cmp,
+			Charset cs, File tmpdirectory, boolean distinct, int numHeader,
+			RunCodec codec) throws IOException {
+		BufferedReader fbr = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), cs));
+		return sortInBatch(fbr, cmp,
+				ExternalSortCallable.estimateAvailableMemory(), cs,
+				tmpdirectory, distinct, numHeader, codec);
+	}
+
+	/**
+	 * @param fbr
+	 *                data source, it is closed at the end
+	 * @param cmp
+	 *                string comparator
+	 * @param maxMemory
+	 *                maximum amount of memory to use (in bytes), the heap
+	 *                gets half of it
+	 * @param cs
+	 *                character set to use (can use
+	 *                Charset.defaultCharset())
+	 * @param tmpdirectory
+	 *                location of the temporary files (set to null for
+	 *                default location)
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param numHeader
+	 *                number of lines to preclude before sorting starts
+	 * @param codec
+	 *                compression of the temporary files
+	 * @return a list of temporary flat files
+	 * @throws IOException
+	 */
+	public static List<File> sortInBatch(BufferedReader fbr,
+			Comparator<String> cmp, long maxMemory, Charset cs,
+			File tmpdirectory, boolean distinct, int numHeader,
+			RunCodec codec) throws IOException {
+		List<File> files = new ArrayList<File>();
+		long budget = maxMemory / 2;
+		Heap heap = new Heap(cmp);
+		BufferedWriter fbw = null;
+		boolean done = false;
+		try {
+			for (int counter = 0; counter < numHeader; ++counter)
+				if (fbr.readLine() == null)
+					break;
+			int currentRun = 0;
+			String first = null;
+			String last = null;
+			long lines = 0;
+			String line;
+			while (true) {
+				// top up the heap
+				while (heap.memory < budget
+						&& (line = fbr.readLine()) != null) {
+					// too small for the current run: wait for the next one
+					if (last != null && cmp.compare(line, last) < 0)
+						heap.push(line, currentRun + 1);
+					else
+						heap.push(line, currentRun);
+				}
+				if (heap.size == 0)
+					break;
+				int run = heap.topRun();
+				String r = heap.pop();
+				if (fbw == null || run != currentRun) {
+					if (fbw != null) {
+						fbw.close();
+						saveStats(files.get(files.size() - 1), first, last,
+								lines, cs, distinct);
+					}
+					File newtmpfile = File.createTempFile("sortInBatch",
+							"flatfile", tmpdirectory);
+					newtmpfile.deleteOnExit();
+					files.add(newtmpfile);
+					fbw = ExternalSortCallable.openOutputFile(newtmpfile, cs,
+							false, codec);
+					currentRun = run;
+					first = r;
+					last = null;
+					lines = 0;
+				}
+				// Skip duplicate lines
+				if (!distinct || !r.equals(last)) {
+					fbw.write(r);
+					fbw.newLine();
+					++lines;
+				}
+				last = r;
+			}
+			if (fbw != null) {
+				fbw.close();
+				saveStats(files.get(files.size() - 1), first, last, lines,
+						cs, distinct);
+			}
+			done = true;
+		} finally {
+			fbr.close();
+			if (fbw != null)
+				fbw.close();
+			if (!done)
+				for (File f : files)
+					RunStats.delete(f);
+		}
+		return files;
+	}
+
+	private static void saveStats(File run, String first, String last,
+			long lines, Charset cs, boolean distinct) throws IOException {
+		new RunStats(first.getBytes(cs), last.getBytes(cs), lines,
+				run.length(), true, distinct).write(run, true);
+	}
+
+	/**
+	 * Binary min-heap of lines ordered on (run, line), with the prefixes
+	 * of the lines cached if the comparator declares them.
+	 */
+	private static final class Heap {
+
+		Heap(Comparator<String> cmp) {
+			this.cmp = cmp;
+			this.prefixcmp = cmp instanceof PrefixComparator
+					? (PrefixComparator<String>) cmp : null;
+		}
+
+		void push(String line, int run) {
+			if (size == lines.length) {
+				int capacity = size + (size >> 1);
+				String[] biggerlines = new String[capacity];
+				System.arraycopy(lines, 0, biggerlines, 0, size);
+				lines = biggerlines;
+				int[] biggerruns = new int[capacity];
+				System.arraycopy(runs, 0, biggerruns, 0, size);
+				runs = biggerruns;
+				long[] biggerkeys = new long[capacity];
+				System.arraycopy(keys, 0, biggerkeys, 0, size);
+				keys = biggerkeys;
+			}
+			long key = prefixcmp != null ? prefixcmp.prefix(line) : 0;
+			memory += StringSizeEstimator.estimatedSizeOf(line) + ENTRYSIZE;
+			// sift up
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (compare(run, key, line, runs[parent], keys[parent],
+						lines[parent]) >= 0)
+					break;
+				set(i, lines[parent], runs[parent], keys[parent]);
+				i = parent;
+			}
+			set(i, line, run, key);
+		}
+
+		int topRun() {
+			return runs[0];
+		}
+
+		String pop() {
+			String top = lines[0];
+			memory -= StringSizeEstimator.estimatedSizeOf(top) + ENTRYSIZE;
+			--size;
+			String line = lines[size];
+			int run = runs[size];
+			long key = keys[size];
+			lines[size] = null;
+			// sift down
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size
+						&& compare(runs[child + 1], keys[child + 1],
+								lines[child + 1], runs[child], keys[child],
+								lines[child]) < 0)
+					++child;
+				if (compare(run, key, line, runs[child], keys[child],
+						lines[child]) <= 0)
+					break;
+				set(i, lines[child], runs[child], keys[child]);
+				i = child;
+			}
+			if (size > 0)
+				set(i, line, run, key);
+			return top;
+		}
+
+		private void set(int i, String line, int run, long key) {
+			lines[i] = line;
+			runs[i] = run;
+			keys[i] = key;
+		}
+
+		private int compare(int run1, long key1, String line1, int run2,
+				long key2, String line2) {
+			if (run1 != run2)
+				return run1 < run2 ? -1 : 1;
+			if (key1 != key2)
+				return key1 < key2 ? -1 : 1;
+			return cmp.compare(line1, line2);
+		}
+
+		private final Comparator<String> cmp;
+
+		private final PrefixComparator<String> prefixcmp;
+
+		private String[] lines = new String[INITIALCAPACITY];
+
+		private int[] runs = new int[INITIALCAPACITY];
+
+		private long[] keys = new long[INITIALCAPACITY];
+
+		int size;
+
+		/** estimated memory held by the lines and the arrays */
+		long memory;
+
+		private static final int INITIALCAPACITY = 1024;
+
+		/** reference, run and prefix of a line in the arrays */
+		private static final int ENTRYSIZE = 8 + 4 + 8;
+
+	}
+
+}
@@ -0,0 +1,332 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of the temporary files and of the output.
+ *
+ * The built-in codecs are {@link #NONE}, {@link #GZIP} (deflate at its
+ * fastest level, as -z always did), {@link #LZ4}, much faster than deflate
+ * for a lower ratio, {@link #FRONT}, which drops the prefix each line of a
+ * sorted run shares with the one before it, and {@link #BLOCK}, which
+ * indexes the lines so that a run can be searched. More codecs can be added as services: a
+ * subclass with a public no-argument constructor, listed in
+ * META-INF/services/com.google.code.externalsorting.RunCodec, is found by
+ * {@link #forName(String)}.
+ *
+ * Files written by a codec start with a header naming it, so that readers
+ * do not need to be told how a file was written: {@link #decode(InputStream)}
+ * finds out. The header is 0x89 'X' 'S' 'R', the length of the name and the
+ * name in ASCII; 0x89 cannot start UTF-8 text. Gzip files are recognized by
+ * their own magic number and get no header, plain files get none either.
+ */
+public abstract class RunCodec {
+
+	/**
+	 * @return the name selecting this codec, in ASCII
+	 */
+	public abstract String name();
+
+	/**
+	 * @param out
+	 *                where to write the compressed bytes
+	 * @return a stream compressing to out, closing it when closed
+	 * @throws IOException
+	 */
+	protected abstract OutputStream compress(OutputStream out)
+			throws IOException;
+
+	/**
+	 * @param in
+	 *                the compressed bytes, positioned after the header
+	 * @return a stream decompressing in, closing it when closed
+	 * @throws IOException
+	 */
+	protected abstract InputStream decompress(InputStream in)
+			throws IOException;
+
+	/**
+	 * Writes the header of this codec. Codecs whose data identifies itself
+	 * can override this to write nothing.
+	 *
+	 * @param out
+	 *                the underlying stream
+	 * @throws IOException
+	 */
+	protected void writeHeader(OutputStream out) throws IOException {
+		byte[] name = name().getBytes(ASCII);
+		out.write(MAGIC);
+		out.write(name.length);
+		out.write(name);
+	}
+
+	/**
+	 * @param out
+	 *                the underlying stream
+	 * @return a stream writing the header then compressing to out
+	 * @throws IOException
+	 */
+	public final OutputStream encode(OutputStream out) throws IOException {
+		writeHeader(out);
+		return compress(out);
+	}
+
+	/**
+	 * Opens a file to write compressed data to.
+	 *
+	 * @param f
+	 *                the file
+	 * @param append
+	 *                Pass <code>true</code> to append to the file, which
+	 *                must then be empty unless the codec is {@link #NONE}
+	 *                or {@link #GZIP}, whose streams can be concatenated.
+	 * @return the stream, not buffered
+	 * @throws IOException
+	 */
+	public OutputStream create(File f, boolean append) throws IOException {
+		if (append && f.length() > 0 && this != NONE && this != GZIP)
+			throw new IllegalArgumentException("cannot append to " + f
+					+ " with the " + name() + " codec");
+		OutputStream out = new FileOutputStream(f, append);
+		try {
+			return encode(out);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the header of a stream, if any.
+	 *
+	 * @param in
+	 *                a stream written by one of the codecs, or a plain
+	 *                stream
+	 * @return the decompressed stream
+	 * @throws IOException
+	 *                 if the header names an unknown codec
+	 */
+	public static InputStream decode(InputStream in) throws IOException {
+		PushbackInputStream pb = new PushbackInputStream(in, MAGIC.length);
+		byte[] head = new byte[MAGIC.length];
+		int n = readFully(pb, head, 0, head.length);
+		if (n == MAGIC.length && matches(head, MAGIC)) {
+			int length = pb.read();
+			if (length < 0)
+				throw new IOException("truncated codec header");
+			byte[] name = new byte[length];
+			if (readFully(pb, name, 0, length) < length)
+				throw new IOException("truncated codec header");
+			return forName(new String(name, ASCII)).decompress(pb);
+		}
+		if (n > 0)
+			pb.unread(head, 0, n);
+		if (n >= 2 && matches(head, GZIPMAGIC))
+			return GZIP.decompress(pb);
+		return pb;
+	}
+
+	/**
+	 * @param f
+	 *                a file written by one of the codecs
+	 * @return the codec of the file, from its header
+	 * @throws IOException
+	 */
+	public static RunCodec detect(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] head = new byte[MAGIC.length + 1 + 255];
+			int n = readFully(in, head, 0, head.length);
+			if (n > MAGIC.length && matches(head, MAGIC)
+					&& n >= MAGIC.length + 1 + (head[MAGIC.length] & 0xFF))
+				return forName(new String(head, MAGIC.length + 1,
+						head[MAGIC.length] & 0xFF, ASCII));
+			if (n >= 2 && matches(head, GZIPMAGIC))
+				return GZIP;
+			return NONE;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param files
+	 *                some files written by the codecs
+	 * @return <code>true</code> if none of them is compressed, so that they
+	 *         can be read at any offset
+	 * @throws IOException
+	 */
+	public static boolean allPlain(List<File> files) throws IOException {
+		for (File f : files)
+			if (detect(f) != NONE)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param name
+	 *                the name of a built-in codec or of a codec registered
+	 *                as a service
+	 * @return the codec
+	 * @throws IllegalArgumentException
+	 *                 if there is no such codec
+	 */
+	public static RunCodec forName(String name) {
+		RunCodec codec = codecs().get(name.toLowerCase());
+		if (codec == null)
+			throw new IllegalArgumentException("unknown codec: " + name
+					+ ", available: " + codecs().keySet());
+		return codec;
+	}
+
+	/**
+	 * @param usegzip
+	 *                the former flag
+	 * @return {@link #GZIP} or {@link #NONE}
+	 */
+	public static RunCodec of(boolean usegzip) {
+		return usegzip ? GZIP : NONE;
+	}
+
+	/**
+	 * @return the names of the codecs available
+	 */
+	public static Collection<String> names() {
+		return Collections.unmodifiableSet(codecs().keySet());
+	}
+
+	@Override
+	public String toString() {
+		return name();
+	}
+
+	private static synchronized Map<String, RunCodec> codecs() {
+		if (registry == null) {
+			Map<String, RunCodec> m = new LinkedHashMap<String, RunCodec>();
+			m.put(NONE.name(), NONE);
+			m.put(GZIP.name(), GZIP);
+			m.put(LZ4.name(), LZ4);
+			m.put(FRONT.name(), FRONT);
+			m.put(BLOCK.name(), BLOCK);
+			for (RunCodec codec : ServiceLoader.load(RunCodec.class))
+				if (!m.containsKey(codec.name().toLowerCase()))
+					m.put(codec.name().toLowerCase(), codec);
+			registry = m;
+		}
+		return registry;
+	}
+
+	private static boolean matches(byte[] head, byte[] magic) {
+		for (int i = 0; i < magic.length; ++i)
+			if (head[i] != magic[i])
+				return false;
+		return true;
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len)
+			throws IOException {
+		int n = 0;
+		while (n < len) {
+			int r = in.read(b, off + n, len - n);
+			if (r < 0)
+				break;
+			n += r;
+		}
+		return n;
+	}
+
+	/**
+	 * No compression, no header.
+	 */
+	public static final RunCodec NONE = new RunCodec() {
+		@Override
+		public String name() {
+			return "none";
+		}
+
+		@Override
+		protected void writeHeader(OutputStream out) {
+		}
+
+		@Override
+		protected OutputStream compress(OutputStream out) {
+			return out;
+		}
+
+		@Override
+		protected InputStream decompress(InputStream in) {
+			return in;
+		}
+	};
+
+	/**
+	 * Deflate at its fastest level, in the gzip format.
+	 */
+	public static final RunCodec GZIP = new RunCodec() {
+		@Override
+		public String name() {
+			return "gzip";
+		}
+
+		@Override
+		protected void writeHeader(OutputStream out) {
+			// gzip streams have their own magic number
+		}
+
+		@Override
+		protected OutputStream compress(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, ZIPBUFFERSIZE) {
+				{
+					this.def.setLevel(Deflater.BEST_SPEED);
+				}
+			};
+		}
+
+		@Override
+		protected InputStream decompress(InputStream in) throws IOException {
+			return new GZIPInputStream(in, ZIPBUFFERSIZE);
+		}
+	};
+
+	/**
+	 * The LZ4 block format, see {@link LZ4Codec}.
+	 */
+	public static final RunCodec LZ4 = new LZ4Codec();
+
+	/**
+	 * Front coding of sorted lines, see {@link FrontCodec}.
+	 */
+	public static final RunCodec FRONT = new FrontCodec();
+
+	/**
+	 * Indexed blocks of lines, see {@link BlockCodec}.
+	 */
+	public static final RunCodec BLOCK = new BlockCodec();
+
+	private static Map<String, RunCodec> registry;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte[] MAGIC = { (byte) 0x89, 'X', 'S', 'R' };
+
+	private static final byte[] GZIPMAGIC = { 0x1f, (byte) 0x8b };
+
+	private static final int ZIPBUFFERSIZE = 64 * 1024;
+
+}
@@ -0,0 +1,241 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded reader -&gt; sorter -&gt; writer pipeline used to generate the sorted
+ * runs.
+ *
+ * The reading thread asks for a block with {@link #acquireBlock()} before it
+ * starts filling it, so it blocks (backpressure) as soon as the configured
+ * number of blocks is alive in memory. A block stays alive until its sorted
+ * run has been written. Blocks are sorted on the sort pool of a
+ * {@link SortEngine} and handed over to its I/O pool as soon as they are
+ * sorted, so that reading, sorting and writing overlap.
+ */
+public class RunGenerationPipeline {
+
+	/**
+	 * A block of lines that can be sorted in memory and saved as a run.
+	 */
+	public interface Block {
+		/**
+		 * Sorts the block in memory.
+		 */
+		void sort();
+
+		/**
+		 * Writes the sorted block to a new temporary file and releases
+		 * the block.
+		 * 
+		 * @return the file containing the sorted data
+		 * @throws IOException
+		 */
+		File save() throws IOException;
+	}
+
+	private final SortEngine engine;
+	private final Semaphore blockPermits;
+	private final List<RunTask> runs = new ArrayList<RunTask>();
+	private final List<Future<?>> sorts = new ArrayList<Future<?>>();
+	private volatile boolean closed;
+
+	/**
+	 * @param engine
+	 *                the threads sorting and writing the blocks
+	 * @param maxLiveBlocks
+	 *                maximal number of blocks held in memory at once, the
+	 *                one being read included
+	 */
+	public RunGenerationPipeline(SortEngine engine, int maxLiveBlocks) {
+		this.engine = engine;
+		this.blockPermits = new Semaphore(maxLiveBlocks);
+	}
+
+	/**
+	 * Number of blocks we may keep alive without going over the memory
+	 * budget: one being read, one being written and one per sort thread,
+	 * as long as they fit.
+	 *
+	 * @param maxMemory
+	 *                Maximum memory to use (in bytes)
+	 * @param blocksize
+	 *                estimated size of a block (in bytes)
+	 * @param sortThreads
+	 *                number of threads sorting blocks
+	 * @return the number of live blocks, at least one
+	 */
+	public static int maxLiveBlocks(long maxMemory, long blocksize,
+			int sortThreads) {
+		long fit = blocksize > 0 ? maxMemory / blocksize : 1;
+		return (int) Math.max(1, Math.min(sortThreads + 2, fit));
+	}
+
+	/**
+	 * Waits until the memory budget allows one more block. Must be
+	 * followed by either {@link #submit(Block)} or
+	 * {@link #releaseBlock()}.
+	 *
+	 * @throws IOException
+	 *                 if a previous block failed or we were interrupted
+	 */
+	public void acquireBlock() throws IOException {
+		checkFailures();
+		try {
+			blockPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a free block");
+		}
+	}
+
+	/**
+	 * Gives back a block acquired with {@link #acquireBlock()} that turned
+	 * out to be empty.
+	 */
+	public void releaseBlock() {
+		blockPermits.release();
+	}
+
+	/**
+	 * Hands over a filled block. The block is released once its run has
+	 * been written.
+	 *
+	 * @param block
+	 *                the block to sort and save
+	 */
+	public void submit(final Block block) {
+		final RunTask run = new RunTask(block);
+		runs.add(run);
+		sorts.add(engine.sortPool().submit(new Runnable() {
+			//@Override
+			public void run() {
+				if (closed) {
+					run.cancel(false);
+					return;
+				}
+				try {
+					block.sort();
+				} catch (Throwable t) {
+					run.fail(t);
+					return;
+				}
+				try {
+					engine.ioExecutor().execute(run);
+				} catch (RejectedExecutionException e) {
+					// the engine was shut down while sorting
+					run.cancel(false);
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Waits for all the submitted blocks to be written.
+	 *
+	 * @return the runs, in the order the blocks were submitted
+	 * @throws IOException
+	 *                 if any block could not be sorted or saved
+	 */
+	public List<File> finish() throws IOException {
+		List<File> files = new ArrayList<File>(runs.size());
+		for (RunTask run : runs)
+			files.add(get(run));
+		return files;
+	}
+
+	/**
+	 * Cancels the blocks that are not sorted yet, the threads belong to the
+	 * engine and keep running. If {@link #finish()} did not complete, the
+	 * runs written so far are deleted.
+	 */
+	public void shutdown() {
+		closed = true;
+		for (Future<?> sort : sorts)
+			sort.cancel(false);
+		for (RunTask run : runs) {
+			if (!run.isDone()) {
+				cleanup();
+				return;
+			}
+		}
+	}
+
+	private void cleanup() {
+		for (RunTask run : runs) {
+			run.cancel(false);
+			if (run.isDone() && !run.isCancelled()) {
+				try {
+					RunStats.delete(run.get());
+				} catch (Exception e) {
+					// nothing was written
+				}
+			}
+		}
+	}
+
+	private void checkFailures() throws IOException {
+		for (RunTask run : runs)
+			if (run.isDone())
+				get(run);
+	}
+
+	private static File get(RunTask run) throws IOException {
+		try {
+			return run.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a sorted run");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * The write half of a block, gives the block back to the budget once
+	 * the run is on disk or the block failed.
+	 */
+	private final class RunTask extends FutureTask<File> {
+
+		RunTask(final Block block) {
+			super(new Callable<File>() {
+				//@Override
+				public File call() throws IOException {
+					return block.save();
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				blockPermits.release();
+			}
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+			blockPermits.release();
+		}
+	}
+
+}
@@ -0,0 +1,439 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Statistics of a run: its smallest and largest lines, its number of lines,
+ * its size, whether it is sorted and whether its lines are distinct. They
+ * are written next to the run, in a file named after it with the
+ * {@link #SUFFIX} suffix.
+ *
+ * The runs of input whose keys grow with time, logs for instance, hold
+ * ranges of keys that do not overlap. Such runs need not be merged: they
+ * are concatenated in the order of their keys, see
+ * {@link #concatenateDisjoint(List, Comparator, boolean)}.
+ */
+public final class RunStats {
+
+	/**
+	 * @param min
+	 *                the smallest line, encoded and without terminator
+	 * @param max
+	 *                the largest line, encoded and without terminator
+	 * @param lines
+	 *                number of lines
+	 * @param bytes
+	 *                size of the run (in bytes)
+	 * @param sorted
+	 *                whether the lines are in order
+	 * @param distinct
+	 *                whether duplicate lines were discarded
+	 */
+	public RunStats(byte[] min, byte[] max, long lines, long bytes,
+			boolean sorted, boolean distinct) {
+		this.min = min;
+		this.max = max;
+		this.lines = lines;
+		this.bytes = bytes;
+		this.sorted = sorted;
+		this.distinct = distinct;
+	}
+
+	public byte[] min() {
+		return min;
+	}
+
+	public byte[] max() {
+		return max;
+	}
+
+	public long lines() {
+		return lines;
+	}
+
+	public long bytes() {
+		return bytes;
+	}
+
+	public boolean sorted() {
+		return sorted;
+	}
+
+	public boolean distinct() {
+		return distinct;
+	}
+
+	/**
+	 * @return the file holding the statistics of the run
+	 */
+	public static File sidecar(File run) {
+		return new File(run.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Writes the statistics next to the run, to be deleted on exit if the
+	 * run is a temporary file.
+	 *
+	 * @param run
+	 *                the run they describe
+	 * @param temporary
+	 *                whether to delete them when the JVM exits
+	 * @throws IOException
+	 */
+	public void write(File run, boolean temporary) throws IOException {
+		File f = sidecar(run);
+		if (temporary)
+			f.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(lines);
+			out.writeLong(bytes);
+			out.writeBoolean(sorted);
+			out.writeBoolean(distinct);
+			out.writeInt(min.length);
+			out.write(min);
+			out.writeInt(max.length);
+			out.write(max);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param run
+	 *                a run
+	 * @return its statistics, null if there are none or if they do not
+	 *         match its size any more
+	 * @throws IOException
+	 */
+	public static RunStats read(File run) throws IOException {
+		File f = sidecar(run);
+		if (!f.isFile())
+			return null;
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			if (in.readInt() != MAGIC)
+				return null;
+			long lines = in.readLong();
+			long bytes = in.readLong();
+			boolean sorted = in.readBoolean();
+			boolean distinct = in.readBoolean();
+			byte[] min = new byte[in.readInt()];
+			in.readFully(min);
+			byte[] max = new byte[in.readInt()];
+			in.readFully(max);
+			if (bytes != run.length())
+				return null;
+			return new RunStats(min, max, lines, bytes, sorted, distinct);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Deletes a run and its statistics.
+	 *
+	 * @param run
+	 *                the run
+	 * @return <code>true</code> if the run was deleted
+	 */
+	public static boolean delete(File run) {
+		sidecar(run).delete();
+		return run.delete();
+	}
+
+	/**
+	 * @param runs
+	 *                some runs
+	 * @param keycmp
+	 *                the order of the runs
+	 * @param distinct
+	 *                whether the merge discards duplicate lines
+	 * @return the statistics of the result of merging them, without its
+	 *         number of lines and size; null unless every run has sorted
+	 *         statistics
+	 * @throws IOException
+	 */
+	public static RunStats merged(List<File> runs, Comparator<byte[]> keycmp,
+			boolean distinct) throws IOException {
+		byte[] min = null;
+		byte[] max = null;
+		for (File run : runs) {
+			RunStats stats = read(run);
+			if (stats == null || !stats.sorted)
+				return null;
+			if (stats.lines == 0)
+				continue;
+			if (min == null || keycmp.compare(stats.min, min) < 0)
+				min = stats.min;
+			if (max == null || keycmp.compare(stats.max, max) > 0)
+				max = stats.max;
+		}
+		if (min == null)
+			min = max = new byte[0];
+		return new RunStats(min, max, 0, 0, true, distinct);
+	}
+
+	/**
+	 * @param lines
+	 *                number of lines of the run
+	 * @param bytes
+	 *                size of the run (in bytes)
+	 * @return these statistics for a run of that many lines and bytes
+	 */
+	public RunStats count(long lines, long bytes) {
+		return new RunStats(min, max, lines, bytes, sorted, distinct);
+	}
+
+	/**
+	 * Counts the lines of a run by reading it, for the merges that discard
+	 * duplicate lines: they only count the lines they read.
+	 *
+	 * @param run
+	 *                a run written by one of the codecs, or a plain file
+	 * @return its number of lines
+	 * @throws IOException
+	 */
+	public static long countLines(File run) throws IOException {
+		InputStream in = RunCodec.decode(new BufferedInputStream(
+				new FileInputStream(run)));
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			long lines = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				for (int i = 0; i < n; ++i)
+					if (buffer[i] == '\n')
+						++lines;
+			return lines;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Concatenates the runs whose ranges of keys do not overlap, so that
+	 * the merge has fewer runs to read at once: the runs are sorted by
+	 * their smallest line and each one goes at the end of the first chain
+	 * whose largest line is smaller than its smallest. Each chain of more
+	 * than one run is copied to a new run with
+	 * {@link FileChannel#transferTo}, the runs it was made of are deleted.
+	 *
+	 * Only the plain and gzip runs can be concatenated, nothing is done
+	 * unless every run has sorted statistics, and distinct ones if
+	 * duplicate lines are to be discarded.
+	 *
+	 * @param runs
+	 *                the sorted runs
+	 * @param keycmp
+	 *                the order of the runs
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines are
+	 *                discarded: the runs of a chain must then not share a
+	 *                line
+	 * @return the runs left to merge, each of them sorted
+	 * @throws IOException
+	 */
+	public static List<File> concatenateDisjoint(List<File> runs,
+			final Comparator<byte[]> keycmp, boolean distinct)
+			throws IOException {
+		if (runs.size() < 2)
+			return runs;
+		List<File> remaining = new ArrayList<File>();
+		// chains of runs, by the codec they are written with
+		List<List<File>> chains = new ArrayList<List<File>>();
+		List<RunStats> tails = new ArrayList<RunStats>();
+		List<RunCodec> codecs = new ArrayList<RunCodec>();
+		final List<File> candidates = new ArrayList<File>();
+		final List<RunStats> stats = new ArrayList<RunStats>();
+		for (File run : runs) {
+			RunStats s = read(run);
+			if (s == null || !s.sorted || distinct && !s.distinct)
+				return runs;
+			RunCodec codec = RunCodec.detect(run);
+			if (s.lines == 0 || codec != RunCodec.NONE
+					&& codec != RunCodec.GZIP) {
+				remaining.add(run);
+			} else {
+				candidates.add(run);
+				stats.add(s);
+			}
+		}
+		Integer[] order = new Integer[candidates.size()];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			//@Override
+			public int compare(Integer a, Integer b) {
+				return keycmp.compare(stats.get(a).min, stats.get(b).min);
+			}
+		});
+		for (int i : order) {
+			File run = candidates.get(i);
+			RunStats s = stats.get(i);
+			RunCodec codec = RunCodec.detect(run);
+			int c = 0;
+			for (; c < chains.size(); ++c) {
+				int cmp = keycmp.compare(tails.get(c).max, s.min);
+				if (codecs.get(c) == codec && (cmp < 0 || cmp == 0 && !distinct))
+					break;
+			}
+			if (c == chains.size()) {
+				chains.add(new ArrayList<File>());
+				tails.add(null);
+				codecs.add(codec);
+			}
+			chains.get(c).add(run);
+			tails.set(c, s);
+		}
+		int concatenated = 0;
+		int made = 0;
+		for (List<File> chain : chains) {
+			if (chain.size() == 1) {
+				remaining.add(chain.get(0));
+				continue;
+			}
+			File output = File.createTempFile("chainInBatch", "flatfile",
+					chain.get(0).getAbsoluteFile().getParentFile());
+			output.deleteOnExit();
+			RunStats first = read(chain.get(0));
+			RunStats last = read(chain.get(chain.size() - 1));
+			long lines = 0;
+			for (File run : chain)
+				lines += read(run).lines;
+			concatenate(chain, output, false);
+			new RunStats(first.min, last.max, lines, output.length(), true,
+					distinct).write(output, true);
+			for (File run : chain)
+				delete(run);
+			remaining.add(output);
+			concatenated += chain.size();
+			++made;
+		}
+		if (concatenated > 0)
+			System.out.println("RunStats: concatenated " + concatenated
+					+ " runs with disjoint keys into " + made + ", "
+					+ remaining.size() + " runs left to merge");
+		return Collections.unmodifiableList(remaining);
+	}
+
+	/**
+	 * Moves a run to the output without merging it, if it can be used as
+	 * it is: it must have statistics and be written with the codec of the
+	 * output, plain or gzip.
+	 *
+	 * @param run
+	 *                the only run left to merge
+	 * @param output
+	 *                The output {@link File} to merge the results to.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param outputcodec
+	 *                compression of the output file
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines are
+	 *                discarded.
+	 * @return the number of lines moved, -1 if the run has to be merged
+	 * @throws IOException
+	 */
+	public static long moveTo(File run, File output, boolean append,
+			RunCodec outputcodec, boolean distinct) throws IOException {
+		RunStats s = read(run);
+		if (s == null || !s.sorted || distinct && !s.distinct)
+			return -1;
+		RunCodec codec = RunCodec.detect(run);
+		if (codec != outputcodec || codec != RunCodec.NONE
+				&& codec != RunCodec.GZIP)
+			return -1;
+		if (append || !(output.delete() || !output.exists())
+				|| !run.renameTo(output))
+			concatenate(Collections.singletonList(run), output, append);
+		delete(run);
+		return s.lines;
+	}
+
+	/**
+	 * Appends the runs to a file, in order, without reading them.
+	 *
+	 * @param runs
+	 *                the runs
+	 * @param output
+	 *                the file to write them to
+	 * @param append
+	 *                Pass <code>true</code> to append to the file
+	 * @throws IOException
+	 */
+	public static void concatenate(List<File> runs, File output,
+			boolean append) throws IOException {
+		FileChannel out = new FileOutputStream(output, append).getChannel();
+		try {
+			for (File run : runs) {
+				FileChannel in = new FileInputStream(run).getChannel();
+				try {
+					long size = in.size();
+					long position = 0;
+					while (position < size)
+						position += in.transferTo(position, size - position,
+								out);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param cmp
+	 *                an order of lines
+	 * @param cs
+	 *                the character set of the lines
+	 * @return the same order of encoded lines
+	 */
+	public static Comparator<byte[]> keyComparator(
+			final Comparator<String> cmp, final Charset cs) {
+		return new Comparator<byte[]>() {
+			//@Override
+			public int compare(byte[] a, byte[] b) {
+				return cmp.compare(new String(a, cs), new String(b, cs));
+			}
+		};
+	}
+
+	private final byte[] min;
+
+	private final byte[] max;
+
+	private final long lines;
+
+	private final long bytes;
+
+	private final boolean sorted;
+
+	private final boolean distinct;
+
+	/**
+	 * Suffix of the file holding the statistics of a run.
+	 */
+	public static final String SUFFIX = ".stats";
+
+	private static final int MAGIC = 0x58535253;
+
+}
@@ -0,0 +1,91 @@
+package com.google.code.externalsorting;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Recycles the slabs and index arrays of the {@link HeapLineBlock}s, so that
+ * run generation keeps reusing the same few large arrays instead of
+ * allocating a new object per line.
+ */
+public final class SlabPool {
+
+	/**
+	 * @param slabsize
+	 *                size of each slab (in bytes), rounded down to a power
+	 *                of two less the array header, so that large slabs fill
+	 *                whole regions of the heap instead of wasting the end of
+	 *                their last one
+	 */
+	public SlabPool(int slabsize) {
+		this.slabsize = Integer.highestOneBit(slabsize) - ARRAYHEADER;
+	}
+
+	/**
+	 * Picks a slab size for blocks of the given size: big enough to keep
+	 * the number of slabs low, small enough not to waste much of the last
+	 * one.
+	 *
+	 * @param blocksize
+	 *                size of a block (in bytes)
+	 * @return the slab size (in bytes)
+	 */
+	public static int slabSizeFor(long blocksize) {
+		return (int) Math.max(MINSLABSIZE, Math.min(MAXSLABSIZE, blocksize / 8));
+	}
+
+	/**
+	 * @return the size of the slabs handed out
+	 */
+	public int slabSize() {
+		return slabsize;
+	}
+
+	/**
+	 * @return a slab, recycled if possible
+	 */
+	public byte[] takeSlab() {
+		byte[] slab = slabs.poll();
+		return slab != null ? slab : new byte[slabsize];
+	}
+
+	/**
+	 * @param slab
+	 *                a slab that is not used anymore
+	 */
+	public void giveSlab(byte[] slab) {
+		if (slab.length == slabsize)
+			slabs.offer(slab);
+	}
+
+	/**
+	 * @return an index array, recycled if possible
+	 */
+	public long[] takeIndex() {
+		long[] index = indexes.poll();
+		return index != null ? index : new long[INITIALINDEXSIZE];
+	}
+
+	/**
+	 * @param index
+	 *                an index array that is not used anymore
+	 */
+	public void giveIndex(long[] index) {
+		indexes.offer(index);
+	}
+
+	private final int slabsize;
+
+	private final ConcurrentLinkedQueue<byte[]> slabs = new ConcurrentLinkedQueue<byte[]>();
+
+	private final ConcurrentLinkedQueue<long[]> indexes = new ConcurrentLinkedQueue<long[]>();
+
+	private static final int MINSLABSIZE = 64 * 1024;
+
+	private static final int MAXSLABSIZE = 16 * 1024 * 1024;
+
+	private static final int INITIALINDEXSIZE = 1024;
+
+	/** room left for the header of a byte array */
+	private static final int ARRAYHEADER = 16;
+
+}
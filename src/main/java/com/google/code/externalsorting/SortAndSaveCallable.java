@@ -2,10 +2,7 @@ package com.google.code.externalsorting;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.Collections;
 //import java.util.ArrayList;
@@ -13,8 +10,6 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.Callable;
 //import java.util.stream.Collectors;
-import java.util.zip.Deflater;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * This tread class will sort the provided temporary file.
@@ -22,47 +17,77 @@ import java.util.zip.GZIPOutputStream;
  * @author Aniket Kokate
  * 
  */
-public class SortAndSaveCallable implements Callable<File> {
+public class SortAndSaveCallable implements Callable<File>,
+		RunGenerationPipeline.Block {
 
 	private List<String> tmplist;
 	private Comparator<String> cmp;
 	private Charset cs;
 	private File tmpdirectory;
 	private boolean distinct;
-	private boolean usegzip;
+	private RunCodec codec;
 
 	public SortAndSaveCallable(List<String> tmplist,
 			Comparator<String> cmp, Charset cs, File tmpdirectory,
 			boolean distinct, boolean usegzip) {
+		this(tmplist, cmp, cs, tmpdirectory, distinct, RunCodec.of(usegzip));
+	}
+
+	public SortAndSaveCallable(List<String> tmplist,
+			Comparator<String> cmp, Charset cs, File tmpdirectory,
+			boolean distinct, RunCodec codec) {
 		this.tmplist = tmplist;
 		this.cmp = cmp;
 		this.cs = cs;
 		this.tmpdirectory = tmpdirectory;
 		this.distinct = distinct;
-		this.usegzip = usegzip;
+		this.codec = codec;
 	}
 
 	//@Override
 	public File call() throws IOException {
-		Collections.sort(tmplist, cmp);
+		sort();
+		return save();
+	}
+
+	/**
+	 * Sorts the block in memory. This is the CPU bound half of
+	 * {@link #call()}, a pipeline may run it on a different thread than
+	 * {@link #save()}. The default order is sorted with
+	 * {@link StringRadixSort}, the other {@link PrefixComparator}s compare
+	 * the cached prefixes first.
+	 */
+	public void sort() {
+		if (StringRadixSort.isNaturalOrder(cmp))
+			StringRadixSort.sort(tmplist);
+		else if (cmp instanceof PrefixComparator)
+			PrefixComparators.sort(tmplist, (PrefixComparator<String>) cmp);
+		else
+			Collections.sort(tmplist, cmp);
 		//String[] tmplistArray = tmplist.toArray(new String[0]);
 		//Arrays.parallelSort(tmplistArray, cmp);
 		/*tmplist = tmplist.parallelStream().sorted(cmp)        		
 				.collect(Collectors.toCollection(ArrayList<String>::new));*/
+	}
+
+	/**
+	 * Writes the sorted block to a new temporary file, with its
+	 * {@link RunStats}, and releases the block. This is the I/O bound half
+	 * of {@link #call()}.
+	 * 
+	 * @return the file containing the sorted data
+	 * @throws IOException
+	 */
+	public File save() throws IOException {
 		File newtmpfile = File.createTempFile("sortInBatch",
 				"flatfile", tmpdirectory);
 		newtmpfile.deleteOnExit();
-		OutputStream out = new FileOutputStream(newtmpfile);
 		//System.out.println("callable newtmpfile-rec size-"+tmplist.size()+"-"+newtmpfile.getPath());
-		int ZIPBUFFERSIZE = 2048;
-		if (usegzip)
-			out = new GZIPOutputStream(out, ZIPBUFFERSIZE) {
-			{
-				this.def.setLevel(Deflater.BEST_SPEED);
-			}
-		};
-		BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
-				out, cs));
+		BufferedWriter fbw = ExternalSortCallable.openOutputFile(newtmpfile,
+				cs, false, codec);
+		String first = tmplist.isEmpty() ? "" : tmplist.get(0);
+		String last = tmplist.isEmpty() ? "" : tmplist.get(tmplist.size() - 1);
+		long lines = 0;
 		String lastLine = null;
 		try {
 			//System.out.println("callable tmplist size="+tmplist.size());
@@ -73,6 +98,7 @@ public class SortAndSaveCallable implements Callable<File> {
 					fbw.write(r);
 					fbw.newLine();
 					lastLine = r;
+					++lines;
 				}
 			}
 			//System.out.println("callable processed tmplist size="+tmplist.size());
@@ -80,6 +106,8 @@ public class SortAndSaveCallable implements Callable<File> {
 			fbw.close();
 			tmplist.clear();
 		}
+		new RunStats(first.getBytes(cs), last.getBytes(cs), lines,
+				newtmpfile.length(), true, distinct).write(newtmpfile, true);
 
 		return newtmpfile;
 	}
@@ -0,0 +1,191 @@
+package com.google.code.externalsorting;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The worker threads of the sorts: a fork/join pool sorting the blocks in
+ * memory, a FIFO pool writing the runs and running the intermediate
+ * merges, and a pool reading the runs ahead of the merges (see
+ * {@link ReadAheadInputStream}). The reads get threads of their own because
+ * the merges running on the I/O threads wait for them. The pools are shared
+ * by all the sorts of a JVM instead of being created per call, so that
+ * concurrent sorts (several JPPF tasks on a node) share the cores instead of
+ * each starting its own threads.
+ *
+ * The default engine uses every available processor for sorting. How many
+ * threads a sort actually keeps busy also depends on its memory budget, see
+ * {@link #sortThreadsFor(long)}. All threads are daemons and die after a
+ * while when idle, an engine that is not used anymore does not need to be
+ * shut down.
+ */
+public final class SortEngine {
+
+	/**
+	 * @param sortThreads
+	 *                number of threads sorting blocks in memory
+	 * @param ioThreads
+	 *                number of threads writing runs and merging them
+	 */
+	public SortEngine(int sortThreads, int ioThreads) {
+		this.sortThreads = Math.max(1, sortThreads);
+		this.ioThreads = Math.max(1, ioThreads);
+		this.sortPool = new ForkJoinPool(this.sortThreads);
+		this.ioExecutor = newExecutor(this.ioThreads, "sort-io-");
+		// the reads wait on the disk, not on the processors
+		this.readAheadExecutor = newExecutor(2 * this.ioThreads,
+				"sort-readahead-");
+	}
+
+	private static ExecutorService newExecutor(int threads,
+			final String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+				threads, KEEPALIVESECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					//@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name
+								+ threadNumber.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @return the engine shared by the sorts of this JVM, created with
+	 *         {@link #defaultSortThreads()} and {@link #defaultIOThreads()}
+	 *         unless {@link #configure(int, int)} was called first
+	 */
+	public static synchronized SortEngine getDefault() {
+		if (defaultEngine == null)
+			defaultEngine = new SortEngine(defaultSortThreads(),
+					defaultIOThreads());
+		return defaultEngine;
+	}
+
+	/**
+	 * Sets the size of the shared engine. The engine is only replaced if
+	 * its size changes, sorts already running keep the previous one.
+	 *
+	 * @param sortThreads
+	 *                number of threads sorting blocks in memory, 0 for the
+	 *                default
+	 * @param ioThreads
+	 *                number of threads writing runs and merging them, 0 for
+	 *                the default
+	 * @return the shared engine
+	 */
+	public static synchronized SortEngine configure(int sortThreads,
+			int ioThreads) {
+		if (sortThreads <= 0)
+			sortThreads = defaultSortThreads();
+		if (ioThreads <= 0)
+			ioThreads = defaultIOThreads();
+		if (defaultEngine == null || defaultEngine.sortThreads != sortThreads
+				|| defaultEngine.ioThreads != ioThreads)
+			defaultEngine = new SortEngine(sortThreads, ioThreads);
+		return defaultEngine;
+	}
+
+	/**
+	 * @return one sort thread per available processor
+	 */
+	public static int defaultSortThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return a quarter of the available processors, between 2 and 8
+	 */
+	public static int defaultIOThreads() {
+		return Math.max(2, Math.min(8,
+				Runtime.getRuntime().availableProcessors() / 4));
+	}
+
+	/**
+	 * @return the number of threads sorting blocks in memory
+	 */
+	public int sortThreads() {
+		return sortThreads;
+	}
+
+	/**
+	 * @return the number of threads writing runs and merging them
+	 */
+	public int ioThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * Every sort thread needs a block of its own, plus one block being read
+	 * and one being written. With a small budget using all the threads
+	 * would only cut the input into many small runs.
+	 *
+	 * @param maxMemory
+	 *                the memory budget of a sort (in bytes)
+	 * @return how many blocks that sort should sort at the same time
+	 */
+	public int sortThreadsFor(long maxMemory) {
+		long fit = maxMemory / MINBLOCKSIZE - 2;
+		return (int) Math.max(1, Math.min(sortThreads, fit));
+	}
+
+	/**
+	 * @return the pool sorting blocks in memory
+	 */
+	public ForkJoinPool sortPool() {
+		return sortPool;
+	}
+
+	/**
+	 * @return the FIFO pool writing runs and merging them
+	 */
+	public ExecutorService ioExecutor() {
+		return ioExecutor;
+	}
+
+	/**
+	 * @return the pool reading the runs ahead of the merges, twice as large
+	 *         as the I/O pool
+	 */
+	public ExecutorService readAheadExecutor() {
+		return readAheadExecutor;
+	}
+
+	/**
+	 * Stops the threads once the submitted work is done.
+	 */
+	public void shutdown() {
+		sortPool.shutdown();
+		ioExecutor.shutdown();
+		readAheadExecutor.shutdown();
+	}
+
+	private final int sortThreads;
+
+	private final int ioThreads;
+
+	private final ForkJoinPool sortPool;
+
+	private final ExecutorService ioExecutor;
+
+	private final ExecutorService readAheadExecutor;
+
+	private static SortEngine defaultEngine;
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	/** smallest block worth a sort thread of its own */
+	private static final long MINBLOCKSIZE = 4 * 1024 * 1024;
+
+	private static final long KEEPALIVESECONDS = 60;
+
+}
@@ -0,0 +1,273 @@
+package com.google.code.externalsorting;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * In-place MSD radix sort (American flag sort) of strings in the order of
+ * {@link String#compareTo(String)}, used instead of a comparison sort when
+ * a block is sorted with the default comparator.
+ *
+ * Each pass reads the current UTF-16 code unit of every string once into a
+ * key array, then counts and permutes on the keys alone. When the code
+ * units of a range span at most 256 values there is one bucket per value
+ * (a single pass per character for ASCII text), otherwise the range is
+ * first split on the high byte. One more bucket holds the strings that
+ * already ended. Ranges of at most {@link #INSERTIONSORTTHRESHOLD} strings
+ * are finished by an insertion sort that skips the common prefix. Large
+ * ranges are split sequentially, then their buckets are sorted in parallel
+ * on the sort pool of the {@link SortEngine}.
+ */
+public final class StringRadixSort {
+
+	private StringRadixSort() {
+	}
+
+	/**
+	 * @param cmp
+	 *                a comparator
+	 * @return <code>true</code> if the comparator is known to be the order
+	 *         of {@link String#compareTo(String)}, so that this sort can
+	 *         replace it
+	 */
+	public static boolean isNaturalOrder(Comparator<String> cmp) {
+		return cmp == null || cmp == ExternalSortCallable.defaultcomparator
+				|| cmp == ExternalSort.defaultcomparator
+				|| cmp == ExternalSortParallelStreamSort.defaultcomparator;
+	}
+
+	/**
+	 * Sorts a list, like {@link java.util.Collections#sort(List)}.
+	 *
+	 * @param list
+	 *                the strings to sort
+	 */
+	public static void sort(List<String> list) {
+		String[] a = list.toArray(new String[list.size()]);
+		sort(a, 0, a.length);
+		ListIterator<String> i = list.listIterator();
+		for (String s : a) {
+			i.next();
+			i.set(s);
+		}
+	}
+
+	/**
+	 * Sorts a[lo, hi), in parallel if the range is large enough.
+	 *
+	 * @param a
+	 *                the strings to sort
+	 * @param lo
+	 *                first index, inclusive
+	 * @param hi
+	 *                last index, exclusive
+	 */
+	public static void sort(String[] a, int lo, int hi) {
+		int[] keys = new int[a.length];
+		if (hi - lo < PARALLELTHRESHOLD)
+			sort(a, keys, lo, hi, 0, new int[BUCKETS + 1], new int[BUCKETS]);
+		else if (ForkJoinTask.inForkJoinPool())
+			// already on a sort thread, fork from there
+			new SortTask(a, keys, lo, hi, 0).invoke();
+		else
+			SortEngine.getDefault().sortPool().invoke(
+					new SortTask(a, keys, lo, hi, 0));
+	}
+
+	/**
+	 * Sequential sort of a[lo, hi), whose strings are known to share
+	 * their first i characters.
+	 */
+	private static void sort(String[] a, int[] keys, int lo, int hi, int i,
+			int[] start, int[] next) {
+		while (hi - lo > INSERTIONSORTTHRESHOLD) {
+			int shift = distribute(a, keys, lo, hi, i, start, next);
+			if (shift < 0) {
+				// a single bucket: nothing moved, look at the next character
+				if (keys[lo] == 0)
+					return;
+				++i;
+				continue;
+			}
+			// the strings that ended are equal, there is nothing to sort
+			// among them; the buckets of a high byte split share the same
+			// character i and are split again on it
+			int first = shift == 0 && keys[start[0]] == 0 ? 1 : 0;
+			int nexti = shift == 0 ? i + 1 : i;
+			// recurse on all the buckets but the largest, whose range is
+			// kept in the loop: the recursion depth stays logarithmic
+			// whatever the length of the common prefixes
+			int largest = first;
+			for (int b = first + 1; b < BUCKETS; ++b)
+				if (start[b + 1] - start[b] > start[largest + 1]
+						- start[largest])
+					largest = b;
+			int[] bounds = start.clone();
+			for (int b = first; b < BUCKETS; ++b)
+				if (b != largest && bounds[b + 1] - bounds[b] > 1)
+					sort(a, keys, bounds[b], bounds[b + 1], nexti, start, next);
+			lo = bounds[largest];
+			hi = bounds[largest + 1];
+			i = nexti;
+		}
+		insertionSort(a, lo, hi, i);
+	}
+
+	/**
+	 * Moves the strings of a[lo, hi) to the buckets of their i-th
+	 * character. On return start[b] to start[b + 1] is the range of bucket
+	 * b, and keys[j] is the i-th character of a[j] plus one, 0 if a[j] is
+	 * shorter.
+	 *
+	 * @return the shift applied to the keys to get their bucket (0 or 8),
+	 *         -1 if all the strings were in the same bucket, in which case
+	 *         nothing was moved and start is not set
+	 */
+	private static int distribute(String[] a, int[] keys, int lo, int hi,
+			int i, int[] start, int[] next) {
+		int min = Integer.MAX_VALUE;
+		int max = -1;
+		for (int j = lo; j < hi; ++j) {
+			String s = a[j];
+			int key = i < s.length() ? s.charAt(i) + 1 : 0;
+			keys[j] = key;
+			if (key < min)
+				min = key;
+			if (key > max)
+				max = key;
+		}
+		if (min == max)
+			return -1;
+		int shift = max - min < BUCKETS - 1 ? 0 : 8;
+		int base = min >>> shift;
+		int[] count = next;
+		for (int b = 0; b < BUCKETS; ++b)
+			count[b] = 0;
+		for (int j = lo; j < hi; ++j)
+			++count[(keys[j] >>> shift) - base];
+		start[0] = lo;
+		for (int b = 0; b < BUCKETS; ++b)
+			start[b + 1] = start[b] + count[b];
+		System.arraycopy(start, 0, next, 0, BUCKETS);
+		// American flag permutation: follow the cycles until every slot
+		// of a bucket holds one of its strings
+		for (int b = 0; b < BUCKETS; ++b) {
+			int end = start[b + 1];
+			while (next[b] < end) {
+				String s = a[next[b]];
+				int key = keys[next[b]];
+				int k = (key >>> shift) - base;
+				while (k != b) {
+					int j = next[k]++;
+					String t = a[j];
+					int tkey = keys[j];
+					a[j] = s;
+					keys[j] = key;
+					s = t;
+					key = tkey;
+					k = (key >>> shift) - base;
+				}
+				int j = next[b]++;
+				a[j] = s;
+				keys[j] = key;
+			}
+		}
+		return shift;
+	}
+
+	/**
+	 * Insertion sort of a[lo, hi), whose strings are known to share their
+	 * first `from` characters.
+	 */
+	private static void insertionSort(String[] a, int lo, int hi, int from) {
+		for (int i = lo + 1; i < hi; ++i) {
+			String s = a[i];
+			int j = i - 1;
+			while (j >= lo && compareFrom(a[j], s, from) > 0) {
+				a[j + 1] = a[j];
+				--j;
+			}
+			a[j + 1] = s;
+		}
+	}
+
+	private static int compareFrom(String x, String y, int from) {
+		int n = Math.min(x.length(), y.length());
+		for (int i = from; i < n; ++i) {
+			char cx = x.charAt(i);
+			char cy = y.charAt(i);
+			if (cx != cy)
+				return cx - cy;
+		}
+		return x.length() - y.length();
+	}
+
+	/**
+	 * Distributes a large range on one character, then sorts the buckets as
+	 * separate tasks.
+	 */
+	private static final class SortTask extends RecursiveAction {
+
+		SortTask(String[] a, int[] keys, int lo, int hi, int i) {
+			this.a = a;
+			this.keys = keys;
+			this.lo = lo;
+			this.hi = hi;
+			this.i = i;
+		}
+
+		@Override
+		protected void compute() {
+			int[] start = new int[BUCKETS + 1];
+			int[] next = new int[BUCKETS];
+			if (hi - lo < PARALLELTHRESHOLD) {
+				sort(a, keys, lo, hi, i, start, next);
+				return;
+			}
+			int i = this.i;
+			int shift;
+			while ((shift = distribute(a, keys, lo, hi, i, start, next)) < 0) {
+				if (keys[lo] == 0)
+					return;
+				++i;
+			}
+			int first = shift == 0 && keys[start[0]] == 0 ? 1 : 0;
+			int nexti = shift == 0 ? i + 1 : i;
+			int n = 0;
+			SortTask[] tasks = new SortTask[BUCKETS];
+			for (int b = first; b < BUCKETS; ++b)
+				if (start[b + 1] - start[b] > 1)
+					tasks[n++] = new SortTask(a, keys, start[b],
+							start[b + 1], nexti);
+			for (int t = 0; t < n; ++t)
+				tasks[t].fork();
+			for (int t = n - 1; t >= 0; --t)
+				tasks[t].join();
+		}
+
+		private final String[] a;
+
+		private final int[] keys;
+
+		private final int lo;
+
+		private final int hi;
+
+		private final int i;
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	/** 256 values and the end of the string */
+	private static final int BUCKETS = 257;
+
+	private static final int INSERTIONSORTTHRESHOLD = 32;
+
+	/** below this many strings a range is sorted by a single thread */
+	private static final int PARALLELTHRESHOLD = 1 << 16;
+
+}
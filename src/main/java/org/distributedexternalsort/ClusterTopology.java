@@ -0,0 +1,206 @@
+package org.distributedexternalsort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.jppf.client.AbstractJPPFClientConnection;
+import org.jppf.client.JPPFClient;
+import org.jppf.client.JPPFClientConnection;
+import org.jppf.management.JMXDriverConnectionWrapper;
+import org.jppf.management.JMXNodeConnectionWrapper;
+import org.jppf.management.JPPFManagementInfo;
+import org.jppf.management.JPPFSystemInformation;
+import org.jppf.utils.TypedProperties;
+
+/**
+ * The JPPF nodes connected to the driver, with their processors and
+ * maximum heap, asked for before each sort so that the number of pieces and
+ * their sizes follow the cluster.
+ *
+ * The capacity of a node is its number of processors, reduced to one per
+ * {@link #MEMORYPERPROCESSOR} bytes of heap: a node with many processors
+ * and a small heap writes many small runs and does not sort faster. Each
+ * node gets a piece whose size is proportional to its capacity.
+ */
+public class ClusterTopology {
+
+	private ClusterTopology(String[] uuids, String[] hosts, int[] processors,
+			long[] maxMemory) {
+		this.uuids = uuids;
+		this.hosts = hosts;
+		this.processors = processors;
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Asks the driver the client is connected to for its nodes.
+	 *
+	 * @param client
+	 *                a JPPF client
+	 * @param timeout
+	 *                how long to wait for the connection to the driver (in
+	 *                milliseconds)
+	 * @return the nodes, null if the driver could not be asked or has none
+	 */
+	public static ClusterTopology discover(JPPFClient client, long timeout) {
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (!client.hasAvailableConnection()
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(POLLINTERVAL);
+			JPPFClientConnection c = client.getClientConnection();
+			if (!(c instanceof AbstractJPPFClientConnection))
+				return null;
+			JMXDriverConnectionWrapper jmx = ((AbstractJPPFClientConnection) c)
+					.getJmxConnection();
+			if (jmx == null)
+				return null;
+			if (!jmx.isConnected())
+				jmx.connectAndWait(Math.max(1,
+						deadline - System.currentTimeMillis()));
+			if (!jmx.isConnected())
+				return null;
+			Collection<JPPFManagementInfo> infos = jmx.nodesInformation();
+			List<String> uuids = new ArrayList<String>();
+			List<String> hosts = new ArrayList<String>();
+			List<Integer> processors = new ArrayList<Integer>();
+			List<Long> maxMemory = new ArrayList<Long>();
+			for (JPPFManagementInfo info : infos) {
+				if (!info.isNode() || !info.isActive())
+					continue;
+				JPPFSystemInformation system = systemInformation(info);
+				TypedProperties runtime = system == null ? null : system
+						.getRuntime();
+				uuids.add(info.getUuid());
+				hosts.add(info.getHost());
+				processors.add(runtime == null ? 1 : Math.max(1,
+						runtime.getInt("availableProcessors", 1)));
+				maxMemory.add(runtime == null ? 0 : runtime.getLong(
+						"maxMemory", 0));
+			}
+			if (uuids.isEmpty())
+				return null;
+			int[] p = new int[processors.size()];
+			long[] m = new long[maxMemory.size()];
+			for (int i = 0; i < p.length; ++i) {
+				p[i] = processors.get(i);
+				m[i] = maxMemory.get(i);
+			}
+			return new ClusterTopology(uuids.toArray(new String[uuids.size()]),
+					hosts.toArray(new String[hosts.size()]), p, m);
+		} catch (Exception e) {
+			System.out.println("ClusterTopology: cannot query the driver: "
+					+ e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	public int nodes() {
+		return uuids.length;
+	}
+
+	/**
+	 * @return the uuid of each node, which JPPF execution policies match as
+	 *         the "jppf.uuid" property
+	 */
+	public String[] uuids() {
+		return uuids.clone();
+	}
+
+	public String host(int node) {
+		return hosts[node];
+	}
+
+	public int processors(int node) {
+		return processors[node];
+	}
+
+	public long maxMemory(int node) {
+		return maxMemory[node];
+	}
+
+	/**
+	 * @return the capacity of the node, see {@link ClusterTopology}
+	 */
+	public int capacity(int node) {
+		if (maxMemory[node] <= 0)
+			return processors[node];
+		return (int) Math.max(1,
+				Math.min(processors[node], maxMemory[node] / MEMORYPERPROCESSOR));
+	}
+
+	/**
+	 * @return the share of the input each node should sort, they add up to 1
+	 */
+	public double[] weights() {
+		double[] weights = new double[uuids.length];
+		double total = 0;
+		for (int i = 0; i < weights.length; ++i)
+			total += weights[i] = capacity(i);
+		for (int i = 0; i < weights.length; ++i)
+			weights[i] /= total;
+		return weights;
+	}
+
+	/**
+	 * @param pieces
+	 *                a number of pieces
+	 * @return that many equal shares
+	 */
+	public static double[] equalWeights(int pieces) {
+		double[] weights = new double[pieces];
+		Arrays.fill(weights, 1.0 / pieces);
+		return weights;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < uuids.length; ++i)
+			sb.append(i == 0 ? "" : ", ").append(hosts[i]).append(" (")
+					.append(processors[i]).append(" processors, ")
+					.append(maxMemory[i] / (1024 * 1024)).append("MB)");
+		return sb.toString();
+	}
+
+	/**
+	 * @return what the node told the driver about itself, or what it tells
+	 *         when asked directly
+	 */
+	private static JPPFSystemInformation systemInformation(
+			JPPFManagementInfo info) throws Exception {
+		if (info.getSystemInfo() != null)
+			return info.getSystemInfo();
+		JMXNodeConnectionWrapper node = new JMXNodeConnectionWrapper(
+				info.getHost(), info.getPort(), info.isSecure());
+		try {
+			node.connectAndWait(NODETIMEOUT);
+			return node.isConnected() ? node.systemInformation() : null;
+		} finally {
+			node.close();
+		}
+	}
+
+	private final String[] uuids;
+
+	private final String[] hosts;
+
+	private final int[] processors;
+
+	private final long[] maxMemory;
+
+	/**
+	 * Heap a processor needs to be worth a share of the input.
+	 */
+	public static final long MEMORYPERPROCESSOR = 256L * 1024 * 1024;
+
+	private static final long POLLINTERVAL = 100;
+
+	private static final long NODETIMEOUT = 5000;
+
+}
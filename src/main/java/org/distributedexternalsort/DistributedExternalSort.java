@@ -4,8 +4,22 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+
+import com.google.code.externalsorting.ByteLineComparator;
+import com.google.code.externalsorting.MergePlanner;
+import com.google.code.externalsorting.OffHeapArena;
+import com.google.code.externalsorting.ParallelMerge;
+import com.google.code.externalsorting.PrefixComparator;
+import com.google.code.externalsorting.PrefixComparators;
+import com.google.code.externalsorting.RunCodec;
+import com.google.code.externalsorting.RunStats;
+import com.google.code.externalsorting.SortEngine;
 
 /**
  * Goal: offer a generic distributed external-memory sorting program in Java.
@@ -15,12 +29,23 @@ import java.util.List;
  * 
  * This software is in the public domain.
  * 
- * This software will count the number of lines of input file assuming a record per line.
- * Then split the input file into pieces and distribute the pieces into available JPPF nodes.
- * These pieces has to be stored at some shared location accessible to all of the JPPF nodes.
+ * This software will cut the input file into ranges of bytes, each starting at a line, assuming
+ * a record per line, and distribute the ranges into available JPPF nodes. The input file has to
+ * be readable by all of the JPPF nodes at the same path: each node reads its range in place.
+ * With the --split flag the input file is instead split into pieces by line count, stored at
+ * some shared location accessible to all of the JPPF nodes.
  * Each JPPF node will internally execute com/google/code/externalsorting/ExternalSort to sort
- * the allocated piece of file and store the sorted piece at the same shared location.
- * DistributedExternalSort will then merge the sorted pieces into a final sorted output file.
+ * the allocated piece of file and store the sorted piece at the shared location.
+ * DistributedExternalSort will then merge the sorted pieces into a final sorted output file,
+ * having merged them a few at a time as they came back while the others were being sorted,
+ * see IncrementalMerger.
+ * 
+ * With the -p flag the input is split by ranges of keys instead, see RangePartitioner: the
+ * sorted pieces do not overlap and are concatenated into the output file, or moved into an
+ * output directory with --partitiondir, instead of being merged.
+ * 
+ * The plan of the job and its progress are kept in the shared store, see JobManifest: after a
+ * failure, the same command with --resume keeps the pieces already sorted and carries on.
  * 
  * JPPF (Java Parallel Processing Framework): Please Refer http://www.jppf.org/
  * 
@@ -63,9 +88,43 @@ public class DistributedExternalSort {
 		System.out
 		.println("-z or --gzip: use compression for the temporary files");
 		System.out
+		.println("--codec (followed by " + RunCodec.names() + "): compression of the temporary files and of the sorted pieces in the shared store");
+		System.out
+		.println("--outputcodec (followed by a codec): compression of the output file (default: none)");
+		System.out
 		.println("-H or --header (followed by an integer): ignore the first few lines");
 		System.out
 		.println("-s or --store (following by a path): where to store the temporary files on JPPF nodes");
+		System.out
+		.println("-f or --maxopenfiles (followed by an integer): specify an upper bound on the number of files merged at once");
+		System.out
+		.println("-b or --bytes: sort the encoded lines as bytes, without decoding them (UTF-8 or US-ASCII only)");
+		System.out
+		.println("-o or --offheap (followed by a size such as 24g): sort as bytes in that much direct memory on the JPPF nodes instead of the heap");
+		System.out
+		.println("-j or --threads (followed by an integer): number of threads sorting blocks on each JPPF node and merging the sorted pieces (default: one per processor)");
+		System.out
+		.println("--iothreads (followed by an integer): number of threads writing and merging the temporary files on each JPPF node");
+		System.out
+		.println("-r or --replacementselection: generate the temporary files on the JPPF nodes by replacement selection (strings only)");
+		System.out
+		.println("-m or --mmap: merge the uncompressed files through memory maps, on the JPPF nodes and here (bytes only)");
+		System.out
+		.println("--split: copy pieces of the input to the sharedstore with split -l, for nodes that cannot read inputfile at its path");
+		System.out
+		.println("--tasks (followed by an integer): pieces per JPPF node, handed out to the nodes as they become free (default: " + DEFAULTTASKSPERNODE + "); 1 gives each node one piece sized by its processors and heap");
+		System.out
+		.println("--timeline (followed by a file name): write when and where each piece was sorted, as comma separated values");
+		System.out
+		.println("-p or --partition: split the input by ranges of sampled keys, so that the sorted pieces are concatenated instead of merged");
+		System.out
+		.println("--partitiondir: like -p, the outputfile is a directory receiving the sorted pieces as part-00000, part-00001...");
+		System.out
+		.println("--incrementalmerge (followed by an integer): merge that many sorted pieces at a time while the others are still sorting, 0 to wait for all of them (default: " + DEFAULTINCREMENTALMERGE + ")");
+		System.out
+		.println("--tasktimeout (followed by a number of minutes): how long a piece may take on its node before it is sorted again on another one (default: " + SortJPPFRunner.DEFAULTTASKTIMEOUT / 60000 + ")");
+		System.out
+		.println("--resume: carry on with the job checkpointed in sharedstore by the same command, skipping the pieces already sorted");
 		System.out.println("-h or --help: display this message");
 	}
 
@@ -82,8 +141,25 @@ public class DistributedExternalSort {
 		Charset cs = Charset.defaultCharset();
 		String inputfile = null, outputfile = null, sharedstore = null;
 		File tempFileStore = null;
-		boolean usegzip = false;
+		RunCodec codec = RunCodec.NONE;
+		RunCodec outputcodec = RunCodec.NONE;
 		int headersize = 0;
+		int maxopenfiles = MergePlanner.DEFAULTMAXOPENFILES;
+		boolean bytes = false;
+		int threads = 0;
+		boolean mmap = false;
+		boolean partition = false;
+		boolean partitiondir = false;
+		boolean split = false;
+		int tasksPerNode = DEFAULTTASKSPERNODE;
+		String timelinefile = null;
+		boolean resume = false;
+		int incrementalmerge = DEFAULTINCREMENTALMERGE;
+		// flags forwarded to ExternalSortCallable on the JPPF nodes; the
+		// statistics of the sorted pieces tell the merge which ones can be
+		// concatenated
+		List<String> sortOptions = new ArrayList<String>();
+		sortOptions.add("--stats");
 		for (int param = 0; param < args.length; ++param) {
 			if (args[param].equals("-v")
 					|| args[param].equals("--verbose")) {
@@ -95,11 +171,14 @@ public class DistributedExternalSort {
 			} else if ((args[param].equals("-d") || args[param]
 					.equals("--distinct"))) {
 				distinct = true;
+				sortOptions.add("--distinct");
 			} else if ((args[param].equals("-t") || args[param]
 					.equals("--maxtmpfiles"))
 					&& args.length > param + 1) {
 				param++;
 				maxtmpfiles = Integer.parseInt(args[param]);
+				sortOptions.add("--maxtmpfiles");
+				sortOptions.add(args[param]);
 				if (headersize < 0) {
 					System.err
 					.println("maxtmpfiles should be positive");
@@ -109,9 +188,21 @@ public class DistributedExternalSort {
 					&& args.length > param + 1) {
 				param++;
 				cs = Charset.forName(args[param]);
+				sortOptions.add("--charset");
+				sortOptions.add(args[param]);
 			} else if ((args[param].equals("-z") || args[param]
 					.equals("--gzip"))) {
-				usegzip = true;
+				sortOptions.add("--gzip");
+			} else if (args[param].equals("--codec")
+					&& args.length > param + 1) {
+				param++;
+				codec = RunCodec.forName(args[param]);
+				sortOptions.add("--codec");
+				sortOptions.add(args[param]);
+			} else if (args[param].equals("--outputcodec")
+					&& args.length > param + 1) {
+				param++;
+				outputcodec = RunCodec.forName(args[param]);
 			} else if ((args[param].equals("-H") || args[param]
 					.equals("--header")) && args.length > param + 1) {
 				param++;
@@ -124,6 +215,85 @@ public class DistributedExternalSort {
 					.equals("--store")) && args.length > param + 1) {
 				param++;
 				tempFileStore = new File(args[param]);
+				sortOptions.add("--store");
+				sortOptions.add(args[param]);
+			} else if ((args[param].equals("-f") || args[param]
+					.equals("--maxopenfiles")) && args.length > param + 1) {
+				param++;
+				maxopenfiles = Integer.parseInt(args[param]);
+				if (maxopenfiles < 2) {
+					System.err
+					.println("maxopenfiles should be at least 2");
+				}
+				sortOptions.add("--maxopenfiles");
+				sortOptions.add(args[param]);
+			} else if ((args[param].equals("-b") || args[param]
+					.equals("--bytes"))) {
+				bytes = true;
+				sortOptions.add("--bytes");
+			} else if ((args[param].equals("-o") || args[param]
+					.equals("--offheap")) && args.length > param + 1) {
+				param++;
+				// checked here rather than on every node
+				OffHeapArena.parseSize(args[param]);
+				bytes = true;
+				sortOptions.add("--offheap");
+				sortOptions.add(args[param]);
+			} else if ((args[param].equals("-j") || args[param]
+					.equals("--threads")) && args.length > param + 1) {
+				param++;
+				threads = Integer.parseInt(args[param]);
+				sortOptions.add("--threads");
+				sortOptions.add(args[param]);
+			} else if (args[param].equals("--iothreads")
+					&& args.length > param + 1) {
+				param++;
+				sortOptions.add("--iothreads");
+				sortOptions.add(args[param]);
+			} else if ((args[param].equals("-r") || args[param]
+					.equals("--replacementselection"))) {
+				sortOptions.add("--replacementselection");
+			} else if ((args[param].equals("-m") || args[param]
+					.equals("--mmap"))) {
+				mmap = true;
+				sortOptions.add("--mmap");
+			} else if ((args[param].equals("-p") || args[param]
+					.equals("--partition"))) {
+				partition = true;
+			} else if (args[param].equals("--split")) {
+				split = true;
+			} else if (args[param].equals("--tasks")
+					&& args.length > param + 1) {
+				param++;
+				tasksPerNode = Integer.parseInt(args[param]);
+				if (tasksPerNode < 1) {
+					System.err
+					.println("tasks should be positive");
+					tasksPerNode = 1;
+				}
+			} else if (args[param].equals("--timeline")
+					&& args.length > param + 1) {
+				param++;
+				timelinefile = args[param];
+			} else if (args[param].equals("--partitiondir")) {
+				partition = true;
+				partitiondir = true;
+			} else if (args[param].equals("--tasktimeout")
+					&& args.length > param + 1) {
+				param++;
+				long minutes = Long.parseLong(args[param]);
+				if (minutes < 1) {
+					System.err
+					.println("tasktimeout should be positive");
+					minutes = 1;
+				}
+				SortJPPFRunner.setTaskTimeout(minutes * 60000);
+			} else if (args[param].equals("--resume")) {
+				resume = true;
+			} else if (args[param].equals("--incrementalmerge")
+					&& args.length > param + 1) {
+				param++;
+				incrementalmerge = Integer.parseInt(args[param]);
 			} else {
 				if (inputfile == null)
 					inputfile = args[param];
@@ -149,34 +319,205 @@ public class DistributedExternalSort {
 			return;
 		}
 
-		// Single task - Count lines of input file
-		System.out.println("DistributedExternalSort: Counting lines -------------------------------");
-		long inputFileLinesCount = CountLines.countLines(inputfile);
+		if (partition && !ParallelMerge.splittable(cs)) {
+			System.out.println("DistributedExternalSort: " + cs
+					+ " lines cannot be cut at '\\n' bytes, splitting by line count");
+			partition = false;
+			partitiondir = false;
+		}
+		if (partition && !partitiondir && outputcodec != RunCodec.NONE
+				&& outputcodec != RunCodec.GZIP) {
+			System.out.println("DistributedExternalSort: " + outputcodec
+					+ " files cannot be concatenated, writing an output directory");
+			partitiondir = true;
+		}
+		// the sorted ranges are the output, compressed as such; otherwise
+		// the pieces are compressed with --codec and the merge reads their
+		// header
+		sortOptions.add("--outputcodec");
+		sortOptions.add((partition ? outputcodec : codec).name());
+
+		// Single task - Ask the JPPF driver for its nodes; the topology is asked for again on every run
+		ClusterTopology topology = SortJPPFRunner.topology();
+		int numberOfNodes = DEFAULTNODES;
+		String[] nodes = null;
+		if (topology != null) {
+			numberOfNodes = topology.nodes();
+			nodes = topology.uuids();
+		}
+		// many small pieces handed out to the nodes as they become free, so that a slow node does
+		// not hold up the job, or one piece per node sized by its processors and heap
+		int numberOfPieces = numberOfNodes * tasksPerNode;
+		boolean queue = tasksPerNode > 1;
+		double[] weights = !queue && topology != null ? topology.weights()
+				: ClusterTopology.equalWeights(numberOfPieces);
+
+		// the plan of the job and how far it went, kept in the shared store
+		JobManifest manifest = new JobManifest(new File(sharedstore, JobManifest.NAME));
+		String input = new File(inputfile).getAbsolutePath();
+		String fingerprint = JobManifest.fingerprint(new File(inputfile));
+		String settings = sortOptions + " --charset " + cs.name() + " --outputcodec " + outputcodec.name()
+				+ (partition ? " --partition" : "")
+				+ (partitiondir ? " --partitiondir" : "") + (split ? " --split" : "")
+				+ " " + new File(outputfile).getAbsolutePath();
+		boolean resumed = false;
+		if (resume) {
+			resumed = manifest.load() && manifest.matches(input, fingerprint, settings);
+			System.out.println("DistributedExternalSort: " + (resumed ? "Resuming " + manifest
+					: "No checkpoint of this job in " + sharedstore + ", starting over"));
+			if (resumed && JobManifest.DONE.equals(manifest.phase())) {
+				System.out.println("DistributedExternalSort: The job is already done");
+				SortJPPFRunner.close();
+				return;
+			}
+		}
+
+		// pieces copied to the shared store, or ranges read in place
+		String[] fileNames = null;
+		long[] offsets = null;
+		// where each piece is sorted to
+		String[] outputs = null;
+		if (resumed) {
+			offsets = manifest.offsets();
+			fileNames = manifest.inputs();
+			outputs = manifest.outputs();
+		} else if (partition) {
+			// Single task - Sample the input and split it by ranges of keys
+			System.out.println("DistributedExternalSort: Partitioning input -------------------------------");
+			Comparator<byte[]> keycmp = ByteLineComparator.supports(cs) ? ByteLineComparator.INSTANCE
+					: RunStats.keyComparator(defaultcomparator, cs);
+			byte[][] splitters = RangePartitioner.splitters(new File(inputfile), weights, keycmp);
+			fileNames = RangePartitioner.partition(inputfile, splitters, keycmp, sharedstore, "ExSortRange");
+		} else if (!split && ParallelMerge.splittable(cs)) {
+			// Single task - Cut the input file into ranges of bytes at line starts
+			System.out.println("DistributedExternalSort: Cutting input into ranges -------------------------------");
+			offsets = SplitFile.splitFileByBytes(inputfile, weights);
+			outputs = new String[numberOfPieces];
+			for(int i=0; i<numberOfPieces; i++) {
+				outputs[i] = sharedstore + "/ExSortPiece" + String.format("%05d", i) + "_sorted";
+				System.out.println("DistributedExternalSort: Range["+i+"]: "+offsets[i]+"-"+offsets[i+1]);
+			}
+		} else {
+			// Single task - Count lines of input file
+			System.out.println("DistributedExternalSort: Counting lines -------------------------------");
+			long inputFileLinesCount = CountLines.countLines(inputfile);
 
-		// Single task - Calculate lines per file on basis of total number of lines and number of nodes
-		int numberOfNodes = 4; // TODO: Call JPPF API to get available running node count
-		long linesPerFile = inputFileLinesCount / numberOfNodes;
+			// Single task - Calculate lines per file on basis of total number of lines and number of nodes
+			// the pieces are of the same size, for any node
+			long linesPerFile = Math.max(1, inputFileLinesCount / numberOfPieces);
+			if (!queue)
+				nodes = null;
 
-		// Single task - Split input file
-		System.out.println("DistributedExternalSort: Splitting files -------------------------------");
-		//String sharedstore = "/tmp";
-		//String sharedstore = "//FileStore_IP/testdata";
+			// Single task - Split input file
+			System.out.println("DistributedExternalSort: Splitting files -------------------------------");
+			//String sharedstore = "/tmp";
+			//String sharedstore = "//FileStore_IP/testdata";
 
-		String[] fileNames = SplitFile.splitFileByLines(inputfile, linesPerFile, sharedstore, "ExSortSplit");
-		for(int i=0; fileNames!=null && i<fileNames.length; i++) {
-			fileNames[i] = sharedstore + "/" + fileNames[i];
-			//fileNames[i] = sharedstore + "\\" + fileNames[i];
-			System.out.println("DistributedExternalSort: Split file name["+i+"]: "+fileNames[i]);
+			fileNames = SplitFile.splitFileByLines(inputfile, linesPerFile, sharedstore, "ExSortSplit");
 		}
+		if (!resumed) {
+			for(int i=0; fileNames!=null && i<fileNames.length; i++) {
+				fileNames[i] = sharedstore + "/" + fileNames[i];
+				//fileNames[i] = sharedstore + "\\" + fileNames[i];
+				System.out.println("DistributedExternalSort: Split file name["+i+"]: "+fileNames[i]);
+			}
+			if (outputs == null && fileNames != null) {
+				outputs = new String[fileNames.length];
+				for(int i=0; i<fileNames.length; i++)
+					outputs[i] = fileNames[i] + "_sorted";
+			}
+			if (outputs != null) {
+				// sorted pieces of an earlier job by the same names would pass for ours on --resume
+				for(String output: outputs)
+					RunStats.delete(new File(output));
+				manifest.start(input, fingerprint, settings);
+				manifest.plan(offsets, fileNames, outputs);
+				manifest.save();
+			}
+		}
+		// intermediate runs of an earlier run of the job that the manifest does not point to
+		Set<String> referenced = new HashSet<String>();
+		for(int i=0; outputs!=null && i<outputs.length; i++)
+			referenced.add(new File(outputs[i]).getName());
+		File[] stored = new File(sharedstore).listFiles();
+		for(int i=0; stored!=null && i<stored.length; i++)
+			if (stored[i].getName().startsWith(IncrementalMerger.PREFIX) && stored[i].getName().endsWith(IncrementalMerger.SUFFIX)
+					&& !referenced.contains(stored[i].getName()))
+				RunStats.delete(stored[i]);
 
 		System.out.println("DistributedExternalSort: Sorting split files -------------------------------");
-		if(fileNames!=null && fileNames.length > 0) {
-			// Distributed task - Call JPPF and sort the split files in distributed mode
-			List<String> outputFileNames = SortJPPFRunner.sortFiles(fileNames);
-			if(outputFileNames!=null && outputFileNames.size() > 0) {
+		int pieces = outputs != null ? outputs.length : 0;
+		if(pieces > 0) {
+			// the pieces sorted before the job stopped, or already in the output
+			List<Integer> todo = new ArrayList<Integer>();
+			for(int i=0; i<pieces; i++) {
+				if (resumed && (i < manifest.merged() || sorted(outputs[i])))
+					manifest.sorted(i, outputs[i]);
+				else
+					todo.add(i);
+			}
+			if (resumed)
+				System.out.println("DistributedExternalSort: Pieces left to sort: "+todo.size()+" of "+pieces);
+			if (!todo.isEmpty()) {
+				// Distributed task - Call JPPF and sort the split files in distributed mode
+				String[] options = sortOptions.toArray(new String[sortOptions.size()]);
+				// the queue takes any number of pieces, not only one per node
+				if (nodes != null && !queue && todo.size() != nodes.length)
+					queue = true;
+				String[] names = new String[todo.size()];
+				for(int k=0; k<names.length; k++)
+					names[k] = offsets != null ? outputs[todo.get(k)] : fileNames[todo.get(k)];
+				// the pieces to merge are merged a few at a time while the others are sorting
+				IncrementalMerger merger = null;
+				if (!partition && incrementalmerge > 1 && todo.size() > incrementalmerge) {
+					SortEngine.configure(threads, 0);
+					merger = new IncrementalMerger(new File(sharedstore), incrementalmerge, bytes, defaultcomparator, cs,
+							distinct, codec, maxopenfiles, mmap);
+					merger.checkpoint(manifest, todo);
+					SortJPPFRunner.setResultListener(merger);
+				}
+				List<String> outputFileNames;
+				try {
+					if (offsets != null) {
+						long[] starts = new long[names.length];
+						long[] ends = new long[names.length];
+						for(int k=0; k<names.length; k++) {
+							starts[k] = offsets[todo.get(k)];
+							ends[k] = offsets[todo.get(k) + 1];
+						}
+						outputFileNames = SortJPPFRunner.sortRanges(input, starts, ends, names, nodes, queue, options);
+					} else {
+						outputFileNames = SortJPPFRunner.sortFiles(names, nodes, queue, options);
+					}
+				} finally {
+					if (merger != null)
+						merger.finish();
+				}
+				if (timelinefile != null && SortJPPFRunner.timeline() != null)
+					SortJPPFRunner.timeline().write(new File(timelinefile));
+				for(int k=0; k<todo.size(); k++) {
+					int i = todo.get(k);
+					// a speculative copy of a task writes its piece under another name
+					if (outputFileNames != null && outputFileNames.size() == todo.size())
+						outputs[i] = outputFileNames.get(k);
+					if (merger != null)
+						outputs[i] = merger.runOf(outputs[i]);
+					if (sorted(outputs[i]))
+						manifest.sorted(i, outputs[i]);
+				}
+				manifest.save();
+			} else {
+				SortJPPFRunner.close();
+			}
+			if(manifest.sortedCount() < pieces) {
+				System.out.println("Error: Some pieces were not sorted, --resume sorts them again.");
+			} else {
+				manifest.phase(JobManifest.MERGE);
+				manifest.save();
 				File f;
 				List<File> fileList = new ArrayList<File>();
-				for(String fileName: outputFileNames) {
+				// the pieces merged while sorting are in the same run
+				for(String fileName: new LinkedHashSet<String>(Arrays.asList(outputs))) {
 					f = new File(fileName);
 					f.setReadable(true);
 					f.setWritable(true);
@@ -185,20 +526,38 @@ public class DistributedExternalSort {
 				}
 
 				// Single task - Merge the sorted split files into output file
-				System.out.println("DistributedExternalSort: Merging split files -------------------------------");
-				MergeFiles.mergeSortedFiles(fileList, new File(outputfile), defaultcomparator, cs,
-						distinct, false, usegzip);
-				
-			} else {
-				System.out.println("Error: No files to merge.");
+				// the results come in the order of the tasks, that is of
+				// the ranges
+				if (partitiondir) {
+					System.out.println("DistributedExternalSort: Moving sorted ranges -------------------------------");
+					RangePartitioner.moveTo(fileList, new File(outputfile), manifest);
+				} else if (partition) {
+					System.out.println("DistributedExternalSort: Concatenating sorted ranges -------------------------------");
+					RangePartitioner.concatenate(fileList, new File(outputfile), manifest);
+				} else {
+					System.out.println("DistributedExternalSort: Merging split files -------------------------------");
+					SortEngine.configure(threads, 0);
+					// -z only applies to the temporary files on the nodes, the
+					// sorted pieces are compressed with --codec
+					if (bytes && ByteLineComparator.supports(cs))
+						MergeFiles.mergeSortedByteFiles(fileList, new File(outputfile),
+								distinct, false, codec, outputcodec, maxopenfiles, mmap);
+					else
+						MergeFiles.mergeSortedFiles(fileList, new File(outputfile), defaultcomparator, cs,
+								distinct, false, codec, outputcodec, maxopenfiles);
+				}
+				manifest.merged(pieces, new File(outputfile).length());
+				manifest.phase(JobManifest.DONE);
+				manifest.save();
 			}
 		} else {
 			System.out.println("Error: No split files found.");
+			SortJPPFRunner.close();
 		}
 		
-		// Single task - Delete the split files into output file
+		// Single task - Delete the split files into output file, once they are of no use to --resume
 		File f;
-		for(int i=0; fileNames!=null && i<fileNames.length; i++) {
+		for(int i=0; JobManifest.DONE.equals(manifest.phase()) && fileNames!=null && i<fileNames.length; i++) {
 			f = new File(fileNames[i]);
 			f.delete();
 			System.out.println("DistributedExternalSort: Deleted file name["+i+"]: "+fileNames[i]);
@@ -206,14 +565,31 @@ public class DistributedExternalSort {
 		System.out.println("DistributedExternalSort: Total time (ms): "+ (System.currentTimeMillis() - startTime));
 	}
 
+	/**
+	 * @param output a sorted piece.
+	 * @return whether it was sorted to the end: its statistics are written last.
+	 */
+	private static boolean sorted(String output) {
+		try {
+			return new File(output).isFile() && RunStats.read(new File(output)) != null;
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * default comparator between strings.
 	 */
-	public static Comparator<String> defaultcomparator = new Comparator<String>() {
+	public static Comparator<String> defaultcomparator = new PrefixComparator<String>() {
 		//@Override
 		public int compare(String r1, String r2) {
 			return r1.compareTo(r2);
 		}
+
+		//@Override
+		public long prefix(String r) {
+			return PrefixComparators.stringPrefix(r);
+		}
 	};
 
 	/**
@@ -221,4 +597,19 @@ public class DistributedExternalSort {
 	 */
 	public static final int DEFAULTMAXTEMPFILES = 1024;
 
+	/**
+	 * Number of pieces when the JPPF driver cannot tell how many nodes there are.
+	 */
+	public static final int DEFAULTNODES = 4;
+
+	/**
+	 * Default number of pieces per node.
+	 */
+	public static final int DEFAULTTASKSPERNODE = 8;
+
+	/**
+	 * Default number of sorted pieces merged at a time while the others are sorting.
+	 */
+	public static final int DEFAULTINCREMENTALMERGE = MergePlanner.MINFANIN;
+
 }
@@ -0,0 +1,273 @@
+package org.distributedexternalsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.code.externalsorting.ByteLineComparator;
+import com.google.code.externalsorting.RunCodec;
+import com.google.code.externalsorting.RunStats;
+
+/**
+ * Merges the sorted pieces into intermediate runs as they come back from
+ * the JPPF nodes, while the other pieces are still being sorted: the disk
+ * and the processors of the client would otherwise wait for the last node,
+ * and the final merge has fewer runs to read.
+ *
+ * One merge runs at a time. It starts once enough pieces are waiting,
+ * the fan-in, and takes all the pieces waiting then, so that it catches up
+ * when the pieces come back faster than it merges them. The pieces still
+ * waiting when the sort is over are left to the final merge rather than
+ * merged twice.
+ *
+ * The intermediate runs are written next to the pieces, compressed like
+ * them and with their statistics, so that the manifest of the job can point
+ * to them in place of the pieces they hold. The merges delete the pieces,
+ * each one is recorded in the manifest as soon as it is done, see
+ * {@link #checkpoint(JobManifest, List)}.
+ */
+public class IncrementalMerger implements SortJPPFRunner.ResultListener {
+
+	/**
+	 * @param directory
+	 *                where to write the intermediate runs
+	 * @param fanIn
+	 *                how many pieces must be waiting to start a merge
+	 * @param bytes
+	 *                whether to merge the encoded lines as bytes
+	 * @param cmp
+	 *                the order of the lines, unless they are merged as bytes
+	 * @param cs
+	 *                their character set
+	 * @param distinct
+	 *                whether the merges discard duplicate lines
+	 * @param codec
+	 *                compression of the pieces and of the intermediate runs
+	 * @param maxopenfiles
+	 *                upper bound on the number of files merged at once
+	 * @param mmap
+	 *                whether to memory-map the plain files merged as bytes
+	 */
+	public IncrementalMerger(File directory, int fanIn, boolean bytes,
+			Comparator<String> cmp, Charset cs, boolean distinct,
+			RunCodec codec, int maxopenfiles, boolean mmap) {
+		this.directory = directory;
+		this.fanIn = Math.max(2, fanIn);
+		this.bytes = bytes && ByteLineComparator.supports(cs);
+		this.cmp = cmp;
+		this.cs = cs;
+		this.keycmp = this.bytes ? ByteLineComparator.INSTANCE : RunStats
+				.keyComparator(cmp, cs);
+		this.distinct = distinct;
+		this.codec = codec;
+		this.maxopenfiles = maxopenfiles;
+		this.mmap = mmap;
+	}
+
+	/**
+	 * Records each merge in the manifest of the job, saved, as soon as it is
+	 * done: a job restarted with --resume then finds the pieces merged so
+	 * far in their run instead of sorting them again.
+	 *
+	 * @param manifest
+	 *                the manifest of the job
+	 * @param pieces
+	 *                the index in the manifest of the piece of each task
+	 */
+	public synchronized void checkpoint(JobManifest manifest,
+			List<Integer> pieces) {
+		this.manifest = manifest;
+		this.pieces = pieces;
+	}
+
+	/**
+	 * Takes a sorted piece, and merges the pieces waiting if there are
+	 * enough of them and no merge is running.
+	 */
+	//@Override
+	public synchronized void sorted(int task, String outputFileName) {
+		if (finished)
+			return;
+		waiting.add(outputFileName);
+		waitingTasks.add(task);
+		startMerge();
+	}
+
+	/**
+	 * Waits for the merge under way, no other one starts.
+	 *
+	 * @throws IOException
+	 *                 if a merge failed
+	 */
+	public void finish() throws IOException {
+		synchronized (this) {
+			finished = true;
+			try {
+				while (merging)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while merging");
+			} finally {
+				executor.shutdown();
+			}
+		}
+		if (merges > 0)
+			System.out.println("IncrementalMerger: " + merged.size()
+					+ " pieces merged into " + merges + " runs while sorting");
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * @param piece
+	 *                a sorted piece
+	 * @return the run it was merged into, or the piece itself
+	 */
+	public synchronized String runOf(String piece) {
+		String run = merged.get(piece);
+		return run == null ? piece : run;
+	}
+
+	private void startMerge() {
+		if (merging || finished || error != null || waiting.size() < fanIn)
+			return;
+		final List<String> inputs = new ArrayList<String>(waiting);
+		final List<Integer> tasks = new ArrayList<Integer>(waitingTasks);
+		waiting.clear();
+		waitingTasks.clear();
+		merging = true;
+		executor.submit(new Runnable() {
+			//@Override
+			public void run() {
+				IOException failure = null;
+				String output = null;
+				try {
+					output = merge(inputs);
+				} catch (IOException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					failure = new IOException(e);
+				}
+				synchronized (IncrementalMerger.this) {
+					if (output != null) {
+						for (String input : inputs)
+							merged.put(input, output);
+						++merges;
+						try {
+							checkpoint(tasks, output);
+						} catch (IOException e) {
+							error = e;
+						}
+					} else {
+						error = failure;
+					}
+					merging = false;
+					IncrementalMerger.this.notifyAll();
+					startMerge();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Points the manifest to the run in place of the pieces of the tasks.
+	 */
+	private void checkpoint(List<Integer> tasks, String output)
+			throws IOException {
+		if (manifest == null)
+			return;
+		for (int task : tasks)
+			manifest.sorted(pieces.get(task), output);
+		manifest.save();
+	}
+
+	/**
+	 * @return the name of the merged run
+	 */
+	private String merge(List<String> inputs) throws IOException {
+		long startTime = System.currentTimeMillis();
+		List<File> files = new ArrayList<File>();
+		for (String input : inputs)
+			files.add(new File(input));
+		File output = File.createTempFile(PREFIX, SUFFIX, directory);
+		// read before the pieces are merged and deleted
+		RunStats stats = RunStats.merged(files, keycmp, distinct);
+		int lines = bytes ? MergeFiles.mergeSortedByteFiles(files, output,
+				distinct, false, codec, codec, maxopenfiles, mmap) : MergeFiles
+				.mergeSortedFiles(files, output, cmp, cs, distinct, false,
+						codec, codec, maxopenfiles);
+		// the merge counts the lines it read, duplicates included
+		if (stats != null)
+			stats.count(distinct ? RunStats.countLines(output) : lines,
+					output.length()).write(output, false);
+		System.out.println("IncrementalMerger: merged " + inputs.size()
+				+ " pieces into " + output + " in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+		return output.getPath();
+	}
+
+	private final File directory;
+
+	private final int fanIn;
+
+	private final boolean bytes;
+
+	private final Comparator<String> cmp;
+
+	private final Charset cs;
+
+	private final Comparator<byte[]> keycmp;
+
+	private final boolean distinct;
+
+	private final RunCodec codec;
+
+	private final int maxopenfiles;
+
+	private final boolean mmap;
+
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor();
+
+	/** the pieces not merged yet */
+	private final List<String> waiting = new ArrayList<String>();
+
+	/** the task of each piece waiting */
+	private final List<Integer> waitingTasks = new ArrayList<Integer>();
+
+	/** the run each merged piece went into */
+	private final Map<String, String> merged = new HashMap<String, String>();
+
+	private boolean merging;
+
+	private boolean finished;
+
+	private int merges;
+
+	private IOException error;
+
+	private JobManifest manifest;
+
+	/** the index in the manifest of the piece of each task */
+	private List<Integer> pieces;
+
+	/**
+	 * Start of the names of the intermediate runs.
+	 */
+	public static final String PREFIX = "ExSortMerged";
+
+	/**
+	 * End of the names of the intermediate runs.
+	 */
+	public static final String SUFFIX = "_sorted";
+
+}
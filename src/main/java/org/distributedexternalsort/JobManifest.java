@@ -0,0 +1,293 @@
+package org.distributedexternalsort;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * The plan of a sort and how far it went, kept in the shared store so that
+ * a job restarted with --resume carries on where it stopped: the input it
+ * sorts, its fingerprint and the settings of the job, the pieces it was cut
+ * into, the pieces sorted and how many of them are in the output.
+ *
+ * The manifest only holds for the same input, unchanged, sorted with the
+ * same settings. The pieces of the plan are listed once the sort phase ends,
+ * a piece found sorted with its statistics in the store is sorted as well.
+ * The manifest is written to a temporary file which is then renamed, so that
+ * a crash leaves the previous version.
+ */
+public class JobManifest {
+
+	/**
+	 * @param file
+	 *                where the manifest is kept
+	 */
+	public JobManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param input
+	 *                a file
+	 * @return its length, time of last modification and a checksum of its
+	 *         first and last {@link #FINGERPRINTSIZE} bytes
+	 * @throws IOException
+	 */
+	public static String fingerprint(File input) throws IOException {
+		CRC32 crc = new CRC32();
+		RandomAccessFile raf = new RandomAccessFile(input, "r");
+		try {
+			long length = raf.length();
+			byte[] chunk = new byte[(int) Math.min(FINGERPRINTSIZE, length)];
+			raf.readFully(chunk);
+			crc.update(chunk);
+			raf.seek(length - chunk.length);
+			raf.readFully(chunk);
+			crc.update(chunk);
+			return length + ":" + input.lastModified() + ":"
+					+ Long.toHexString(crc.getValue());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the manifest.
+	 *
+	 * @return false if there is none
+	 * @throws IOException
+	 */
+	public boolean load() throws IOException {
+		properties.clear();
+		if (!file.isFile())
+			return false;
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the manifest.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, "DistributedExternalSort job");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+			throw new IOException("cannot write " + file);
+	}
+
+	/**
+	 * @return whether the manifest is the one of a job sorting that input,
+	 *         unchanged since, with those settings
+	 */
+	public boolean matches(String input, String fingerprint, String settings) {
+		return input.equals(properties.getProperty("input"))
+				&& fingerprint.equals(properties.getProperty("fingerprint"))
+				&& settings.equals(properties.getProperty("settings"));
+	}
+
+	/**
+	 * Forgets any earlier job and starts a new one.
+	 *
+	 * @param input
+	 *                the path of the input
+	 * @param fingerprint
+	 *                its fingerprint, see {@link #fingerprint(File)}
+	 * @param settings
+	 *                the settings the pieces depend on
+	 */
+	public void start(String input, String fingerprint, String settings) {
+		properties.clear();
+		properties.setProperty("input", input);
+		properties.setProperty("fingerprint", fingerprint);
+		properties.setProperty("settings", settings);
+		phase(SORT);
+	}
+
+	/**
+	 * Records how the input was cut.
+	 *
+	 * @param offsets
+	 *                the starts of the ranges of the input followed by the
+	 *                end of the last one, or null
+	 * @param inputs
+	 *                the pieces copied out of the input, or null
+	 * @param outputs
+	 *                where each piece is sorted to
+	 */
+	public void plan(long[] offsets, String[] inputs, String[] outputs) {
+		properties.setProperty("pieces", Integer.toString(outputs.length));
+		for (int i = 0; offsets != null && i < offsets.length; ++i)
+			properties.setProperty("offset." + i, Long.toString(offsets[i]));
+		for (int i = 0; i < outputs.length; ++i) {
+			if (inputs != null)
+				properties.setProperty("input." + i, inputs[i]);
+			properties.setProperty("output." + i, outputs[i]);
+		}
+	}
+
+	/**
+	 * @return the number of pieces
+	 */
+	public int pieces() {
+		return Integer.parseInt(properties.getProperty("pieces", "0"));
+	}
+
+	/**
+	 * @return the ranges of the input, see
+	 *         {@link #plan(long[], String[], String[])}, null if it was not
+	 *         cut into ranges
+	 */
+	public long[] offsets() {
+		if (properties.getProperty("offset.0") == null)
+			return null;
+		long[] offsets = new long[pieces() + 1];
+		for (int i = 0; i < offsets.length; ++i)
+			offsets[i] = Long.parseLong(properties.getProperty("offset." + i));
+		return offsets;
+	}
+
+	/**
+	 * @return the pieces copied out of the input, null if it was not copied
+	 */
+	public String[] inputs() {
+		if (properties.getProperty("input.0") == null)
+			return null;
+		String[] inputs = new String[pieces()];
+		for (int i = 0; i < inputs.length; ++i)
+			inputs[i] = properties.getProperty("input." + i);
+		return inputs;
+	}
+
+	/**
+	 * @return where each piece is sorted to
+	 */
+	public String[] outputs() {
+		String[] outputs = new String[pieces()];
+		for (int i = 0; i < outputs.length; ++i)
+			outputs[i] = properties.getProperty("output." + i);
+		return outputs;
+	}
+
+	/**
+	 * @return whether the piece is sorted
+	 */
+	public boolean sorted(int piece) {
+		return properties.getProperty("sorted." + piece) != null;
+	}
+
+	/**
+	 * Records a sorted piece.
+	 *
+	 * @param piece
+	 *                the index of the piece
+	 * @param output
+	 *                where it was sorted to
+	 */
+	public void sorted(int piece, String output) {
+		properties.setProperty("output." + piece, output);
+		properties.setProperty("sorted." + piece, "true");
+	}
+
+	/**
+	 * @return the number of pieces sorted
+	 */
+	public int sortedCount() {
+		int count = 0;
+		for (int i = 0; i < pieces(); ++i)
+			if (sorted(i))
+				++count;
+		return count;
+	}
+
+	/**
+	 * @return {@link #SORT}, {@link #MERGE} or {@link #DONE}
+	 */
+	public String phase() {
+		return properties.getProperty("phase");
+	}
+
+	public void phase(String phase) {
+		properties.setProperty("phase", phase);
+	}
+
+	/**
+	 * @return the number of pieces, in order, already in the output
+	 */
+	public int merged() {
+		return Integer.parseInt(properties.getProperty("merged", "0"));
+	}
+
+	/**
+	 * @return the length of the output once they are in it
+	 */
+	public long mergedLength() {
+		return Long.parseLong(properties.getProperty("mergedlength", "0"));
+	}
+
+	/**
+	 * Records the progress of the output.
+	 *
+	 * @param pieces
+	 *                the number of pieces, in order, in the output
+	 * @param length
+	 *                the length of the output
+	 */
+	public void merged(int pieces, long length) {
+		properties.setProperty("merged", Integer.toString(pieces));
+		properties.setProperty("mergedlength", Long.toString(length));
+	}
+
+	@Override
+	public String toString() {
+		return file + ": " + phase() + " phase, " + sortedCount() + " of "
+				+ pieces() + " pieces sorted, " + merged() + " in the output";
+	}
+
+	private final File file;
+
+	private final Properties properties = new Properties();
+
+	/**
+	 * Name of the manifest in the shared store.
+	 */
+	public static final String NAME = "ExSortJob.manifest";
+
+	/**
+	 * The input is being cut and the pieces sorted.
+	 */
+	public static final String SORT = "sort";
+
+	/**
+	 * The sorted pieces are being merged into the output.
+	 */
+	public static final String MERGE = "merge";
+
+	/**
+	 * The output is written.
+	 */
+	public static final String DONE = "done";
+
+	/**
+	 * Bytes read at each end of the input for its fingerprint.
+	 */
+	public static final int FINGERPRINTSIZE = 64 * 1024;
+
+}
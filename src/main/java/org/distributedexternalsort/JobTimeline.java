@@ -0,0 +1,149 @@
+package org.distributedexternalsort;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * When each task of a sort ran and on which node, to see where the time of
+ * a job goes. The tail is the time from the moment the first node ran out
+ * of work to the end of the job: the cluster is only partly busy then, and
+ * smaller tasks handed out on demand make it shorter.
+ */
+public class JobTimeline {
+
+	/**
+	 * @param start
+	 *                when the job started, the times are relative to it
+	 */
+	public JobTimeline(long start) {
+		this.start = start;
+	}
+
+	/**
+	 * Records a task.
+	 *
+	 * @param task
+	 *                the index of the task
+	 * @param node
+	 *                where it ran
+	 * @param begin
+	 *                when it started (in milliseconds)
+	 * @param end
+	 *                when it ended
+	 */
+	public synchronized void add(int task, String node, long begin, long end) {
+		entries.add(new Entry(task, node, begin - start, end - start));
+	}
+
+	/**
+	 * @return the time from the start of the job to the end of its last
+	 *         task (in milliseconds)
+	 */
+	public synchronized long makespan() {
+		long makespan = 0;
+		for (Entry e : entries)
+			makespan = Math.max(makespan, e.end);
+		return makespan;
+	}
+
+	/**
+	 * @return the time from the end of the node that finished first to the
+	 *         end of the job (in milliseconds)
+	 */
+	public synchronized long tail() {
+		Map<String, Long> ends = nodeEnds();
+		if (ends.isEmpty())
+			return 0;
+		long first = Long.MAX_VALUE;
+		for (long end : ends.values())
+			first = Math.min(first, end);
+		return makespan() - first;
+	}
+
+	/**
+	 * Prints the tasks of each node, what they kept it busy for and when
+	 * it was done.
+	 */
+	public synchronized void report() {
+		Map<String, Long> ends = nodeEnds();
+		for (String node : ends.keySet()) {
+			int tasks = 0;
+			long busy = 0;
+			for (Entry e : entries)
+				if (e.node.equals(node)) {
+					++tasks;
+					busy += e.end - e.begin;
+				}
+			System.out.println("JobTimeline: " + node + ": " + tasks
+					+ " tasks, busy " + busy + " ms, done at "
+					+ ends.get(node) + " ms");
+		}
+		long makespan = makespan();
+		System.out.println("JobTimeline: " + entries.size() + " tasks in "
+				+ makespan + " ms, tail " + tail() + " ms ("
+				+ (makespan == 0 ? 0 : 100 * tail() / makespan)
+				+ "% of the job)");
+	}
+
+	/**
+	 * Writes the tasks as comma separated values: task, node, start, end.
+	 *
+	 * @param f
+	 *                the file
+	 * @throws IOException
+	 */
+	public synchronized void write(File f) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(f));
+		try {
+			out.println("task,node,start,end");
+			for (Entry e : entries)
+				out.println(e.task + "," + e.node + "," + e.begin + ","
+						+ e.end);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return when each node ended its last task, in the order the nodes
+	 *         were first seen
+	 */
+	private Map<String, Long> nodeEnds() {
+		Map<String, Long> ends = new LinkedHashMap<String, Long>();
+		for (Entry e : entries) {
+			Long end = ends.get(e.node);
+			if (end == null || end < e.end)
+				ends.put(e.node, e.end);
+		}
+		return ends;
+	}
+
+	private static final class Entry {
+
+		Entry(int task, String node, long begin, long end) {
+			this.task = task;
+			this.node = node;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		final int task;
+
+		final String node;
+
+		final long begin;
+
+		final long end;
+	}
+
+	private final long start;
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+}
@@ -1,22 +1,18 @@
 package org.distributedexternalsort;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.zip.GZIPInputStream;
 
 import com.google.code.externalsorting.BinaryFileBuffer;
+import com.google.code.externalsorting.ByteExternalSort;
+import com.google.code.externalsorting.ExternalSortCallable;
+import com.google.code.externalsorting.MergePlanner;
+import com.google.code.externalsorting.RunCodec;
+import com.google.code.externalsorting.SortEngine;
 
 /**
  * This class merges the sorted pieces of the input file.
@@ -62,31 +58,192 @@ public class MergeFiles {
 	public static int mergeSortedFiles(List<File> files, File outputfile,
 			final Comparator<String> cmp, Charset cs, boolean distinct,
 			boolean append, boolean usegzip) throws IOException {
+		return mergeSortedFiles(files, outputfile, cmp, cs, distinct, append,
+				usegzip, MergePlanner.DEFAULTMAXOPENFILES);
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files, in several passes if
+	 * there are more of them than we can open at once. Unless they are
+	 * compressed, the last pass runs on the sort threads of the
+	 * {@link SortEngine}, one range of keys each.
+	 * 
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded. (elchetz@gmail.com)
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param cmp
+	 *                The {@link Comparator} to use to compare
+	 *                {@link String}s.
+	 * @param cs
+	 *                The {@link Charset} to be used for the byte to
+	 *                character conversion.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                assumes we used gzip compression for temporary files
+	 * @param maxopenfiles
+	 *                upper bound on the number of files merged at once
+	 * @return The number of lines sorted. (P. Beaudoin)
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(List<File> files, File outputfile,
+			final Comparator<String> cmp, final Charset cs,
+			final boolean distinct, boolean append, final boolean usegzip,
+			int maxopenfiles) throws IOException {
+		return mergeSortedFiles(files, outputfile, cmp, cs, distinct, append,
+				RunCodec.of(usegzip), RunCodec.NONE, maxopenfiles);
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files, whatever the codec they
+	 * were written with: it is read from the header of each file.
+	 * 
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param cmp
+	 *                The {@link Comparator} to use to compare
+	 *                {@link String}s.
+	 * @param cs
+	 *                The {@link Charset} to be used for the byte to
+	 *                character conversion.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param codec
+	 *                compression of the intermediate merges
+	 * @param outputcodec
+	 *                compression of the output file
+	 * @param maxopenfiles
+	 *                upper bound on the number of files merged at once
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedFiles(List<File> files, File outputfile,
+			Comparator<String> cmp, Charset cs, boolean distinct,
+			boolean append, RunCodec codec, RunCodec outputcodec,
+			int maxopenfiles) throws IOException {
 		long startTime = System.currentTimeMillis();
 		System.out.println("MergeFiles: Started");
-		ArrayList<BinaryFileBuffer> bfbs = new ArrayList<BinaryFileBuffer>();
-		for (File f : files) {
-			final int BUFFERSIZE = 2048;
-			InputStream in = new FileInputStream(f);
-			BufferedReader br;
-			if (usegzip) {
-				br = new BufferedReader(
-						new InputStreamReader(
-								new GZIPInputStream(in,
-										BUFFERSIZE), cs));
-			} else {
-				br = new BufferedReader(new InputStreamReader(
-						in, cs));
-			}
+		MergePlanner planner = new MergePlanner(
+				ExternalSortCallable.estimateAvailableMemory(), maxopenfiles,
+				SortEngine.getDefault());
+		int rowcounter = ExternalSortCallable.mergeSortedFiles(files,
+				outputfile, cmp, cs, distinct, append, codec, outputcodec,
+				planner);
+		System.out.println("MergeFiles: Completed");
+		System.out.println("MergeFiles: Total time: "+(System.currentTimeMillis() - startTime));
+		return rowcounter;
+	}
 
-			BinaryFileBuffer bfb = new BinaryFileBuffer(br);
-			bfbs.add(bfb);
-		}
-		BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(outputfile, append), cs));
-		int rowcounter = mergeSortedFiles(fbw, cmp, distinct, bfbs);
-		for (File f : files)
-			f.delete();
+	/**
+	 * This merges a bunch of temporary flat files as bytes, without
+	 * decoding the lines. The files must be UTF-8 or US-ASCII encoded. As
+	 * with {@link #mergeSortedFiles(List, File, Comparator, Charset, boolean,
+	 * boolean, boolean, int)} the last pass runs on several threads.
+	 * 
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                assumes we used gzip compression for temporary files
+	 * @param maxopenfiles
+	 *                upper bound on the number of files merged at once
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedByteFiles(List<File> files, File outputfile,
+			boolean distinct, boolean append, boolean usegzip,
+			int maxopenfiles) throws IOException {
+		return mergeSortedByteFiles(files, outputfile, distinct, append,
+				usegzip, maxopenfiles, false);
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files as bytes, without
+	 * decoding the lines, optionally through memory maps.
+	 * 
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param usegzip
+	 *                assumes we used gzip compression for temporary files
+	 * @param maxopenfiles
+	 *                upper bound on the number of files merged at once
+	 * @param mmap
+	 *                Pass <code>true</code> to memory-map the files instead
+	 *                of reading them, ignored if they are compressed.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedByteFiles(List<File> files, File outputfile,
+			boolean distinct, boolean append, boolean usegzip,
+			int maxopenfiles, boolean mmap) throws IOException {
+		return mergeSortedByteFiles(files, outputfile, distinct, append,
+				RunCodec.of(usegzip), RunCodec.NONE, maxopenfiles, mmap);
+	}
+
+	/**
+	 * This merges a bunch of temporary flat files as bytes, whatever the
+	 * codec they were written with: it is read from the header of each
+	 * file.
+	 * 
+	 * @param files
+	 *                The {@link List} of sorted {@link File}s to be merged.
+	 * @param outputfile
+	 *                The output {@link File} to merge the results to.
+	 * @param distinct
+	 *                Pass <code>true</code> if duplicate lines should be
+	 *                discarded.
+	 * @param append
+	 *                Pass <code>true</code> if result should append to
+	 *                {@link File} instead of overwrite.
+	 * @param codec
+	 *                compression of the intermediate merges
+	 * @param outputcodec
+	 *                compression of the output file
+	 * @param maxopenfiles
+	 *                upper bound on the number of files merged at once
+	 * @param mmap
+	 *                Pass <code>true</code> to memory-map the files instead
+	 *                of reading them, ignored if they are compressed.
+	 * @return The number of lines sorted.
+	 * @throws IOException
+	 */
+	public static int mergeSortedByteFiles(List<File> files, File outputfile,
+			boolean distinct, boolean append, RunCodec codec,
+			RunCodec outputcodec, int maxopenfiles, boolean mmap)
+			throws IOException {
+		long startTime = System.currentTimeMillis();
+		System.out.println("MergeFiles: Started");
+		MergePlanner planner = new MergePlanner(
+				ExternalSortCallable.estimateAvailableMemory(), maxopenfiles,
+				SortEngine.getDefault());
+		int rowcounter = ByteExternalSort.mergeSortedFiles(files, outputfile,
+				distinct, append, codec, outputcodec, planner, mmap);
 		System.out.println("MergeFiles: Completed");
 		System.out.println("MergeFiles: Total time: "+(System.currentTimeMillis() - startTime));
 		return rowcounter;
@@ -112,43 +269,8 @@ public class MergeFiles {
 	public static int mergeSortedFiles(BufferedWriter fbw,
 			final Comparator<String> cmp, boolean distinct,
 			List<BinaryFileBuffer> buffers) throws IOException {
-		PriorityQueue<BinaryFileBuffer> pq = new PriorityQueue<BinaryFileBuffer>(
-				11, new Comparator<BinaryFileBuffer>() {
-					//@Override
-					public int compare(BinaryFileBuffer i,
-							BinaryFileBuffer j) {
-						return cmp.compare(i.peek(), j.peek());
-					}
-				});
-		for (BinaryFileBuffer bfb : buffers)
-			if (!bfb.empty())
-				pq.add(bfb);
-		int rowcounter = 0;
-		String lastLine = null;
-		try {
-			while (pq.size() > 0) {
-				BinaryFileBuffer bfb = pq.poll();
-				String r = bfb.pop();
-				// Skip duplicate lines
-				if (!distinct || !r.equals(lastLine)) {
-					fbw.write(r);
-					fbw.newLine();
-					lastLine = r;
-				}
-				++rowcounter;
-				if (bfb.empty()) {
-					bfb.fbr.close();
-				} else {
-					pq.add(bfb); // add it back
-				}
-			}
-		} finally {
-			fbw.close();
-			for (BinaryFileBuffer bfb : pq)
-				bfb.close();
-		}
-		return rowcounter;
-
+		return ExternalSortCallable.mergeSortedFiles(fbw, cmp, distinct,
+				buffers);
 	}
 
 }
@@ -0,0 +1,341 @@
+package org.distributedexternalsort;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.code.externalsorting.RunStats;
+
+/**
+ * Splits the input file by ranges of keys rather than by line count, as
+ * TeraSort does: lines sampled across the input give the splitters, the
+ * keys cutting it into ranges of about the same size, and each line goes to
+ * the piece of its range. Once every piece is sorted on its own node, the
+ * sorted pieces hold ranges that do not overlap and the output is their
+ * concatenation in the order of the ranges, with no merge on the client.
+ *
+ * The lines are cut at '\n' bytes, the character set must encode it as
+ * that single byte. Keys are compared without their terminator and without
+ * the '\r' of a CRLF. Equal lines always fall in the same range, so that a
+ * key repeated over much of the input makes its range larger than the
+ * others.
+ */
+public class RangePartitioner {
+
+	/**
+	 * @param input
+	 *                the file to sample
+	 * @param ranges
+	 *                the number of ranges
+	 * @param keycmp
+	 *                the order of the lines, the order of the sort
+	 * @return the ranges - 1 splitters, in order: range i holds the lines
+	 *         not smaller than splitter i - 1 and smaller than splitter i;
+	 *         fewer if the file is empty
+	 * @throws IOException
+	 */
+	public static byte[][] splitters(File input, int ranges,
+			Comparator<byte[]> keycmp) throws IOException {
+		return splitters(input, ClusterTopology.equalWeights(ranges), keycmp);
+	}
+
+	/**
+	 * @param input
+	 *                the file to sample
+	 * @param weights
+	 *                the share of the lines each range should get, adding
+	 *                up to 1
+	 * @param keycmp
+	 *                the order of the lines, the order of the sort
+	 * @return one splitter less than there are weights, see
+	 *         {@link #splitters(File, int, Comparator)}
+	 * @throws IOException
+	 */
+	public static byte[][] splitters(File input, double[] weights,
+			Comparator<byte[]> keycmp) throws IOException {
+		int ranges = weights.length;
+		List<byte[]> samples = sample(input, ranges * SAMPLESPERRANGE);
+		if (samples.isEmpty())
+			return new byte[0][];
+		Collections.sort(samples, keycmp);
+		byte[][] splitters = new byte[ranges - 1][];
+		double share = 0;
+		for (int k = 1; k < ranges; ++k) {
+			share += weights[k - 1];
+			splitters[k - 1] = samples.get(Math.min(samples.size() - 1,
+					(int) (share * samples.size())));
+		}
+		return splitters;
+	}
+
+	/**
+	 * Reads the lines starting after evenly spaced offsets of the file.
+	 *
+	 * @param input
+	 *                the file to sample
+	 * @param k
+	 *                the number of offsets
+	 * @return the lines found, without terminator
+	 * @throws IOException
+	 */
+	public static List<byte[]> sample(File input, int k) throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		RandomAccessFile raf = new RandomAccessFile(input, "r");
+		try {
+			long length = raf.length();
+			byte[] chunk = new byte[SplitFile.CHUNKSIZE];
+			for (long i = 0; i < k; ++i) {
+				long pos = length * i / k;
+				// the first line of the file, or the first one after pos
+				long start = pos == 0 ? 0 : SplitFile.endOfLine(raf, pos - 1, chunk) + 1;
+				if (start >= length)
+					continue;
+				long eol = SplitFile.endOfLine(raf, start, chunk);
+				byte[] line = new byte[(int) (eol - start)];
+				raf.seek(start);
+				raf.readFully(line);
+				samples.add(key(line, line.length));
+			}
+		} finally {
+			raf.close();
+		}
+		return samples;
+	}
+
+	/**
+	 * @param key
+	 *                a line, without terminator
+	 * @param splitters
+	 *                the splitters
+	 * @param keycmp
+	 *                the order of the lines
+	 * @return the range of the line: the number of splitters not larger
+	 *         than it
+	 */
+	public static int range(byte[] key, byte[][] splitters,
+			Comparator<byte[]> keycmp) {
+		int lo = 0, hi = splitters.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keycmp.compare(splitters[mid], key) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Writes each line of the file to the piece of its range. A last line
+	 * without terminator gets one, since the sorted pieces are concatenated.
+	 *
+	 * @param fileName
+	 *                the input file
+	 * @param splitters
+	 *                the splitters, see
+	 *                {@link #splitters(File, int, Comparator)}
+	 * @param keycmp
+	 *                the order of the lines
+	 * @param outputDirectory
+	 *                where to write the pieces
+	 * @param prefix
+	 *                the start of their names, followed by the number of
+	 *                their range
+	 * @return the names of the pieces in outputDirectory, one per range in
+	 *         order, empty ones included
+	 * @throws IOException
+	 */
+	public static String[] partition(String fileName, byte[][] splitters,
+			Comparator<byte[]> keycmp, String outputDirectory, String prefix)
+			throws IOException {
+		long startTime = System.currentTimeMillis();
+		System.out.println("RangePartitioner: started");
+		String[] fileNames = new String[splitters.length + 1];
+		long[] counts = new long[fileNames.length];
+		OutputStream[] pieces = new OutputStream[fileNames.length];
+		InputStream in = new BufferedInputStream(new FileInputStream(
+				fileName), BUFFERSIZE);
+		try {
+			for (int i = 0; i < pieces.length; ++i) {
+				fileNames[i] = prefix + String.format("%05d", i);
+				pieces[i] = new BufferedOutputStream(new FileOutputStream(
+						new File(outputDirectory, fileNames[i])), BUFFERSIZE);
+			}
+			byte[] chunk = new byte[BUFFERSIZE];
+			byte[] line = new byte[256];
+			int length = 0;
+			int n;
+			while ((n = in.read(chunk)) > 0) {
+				int off = 0;
+				while (off < n) {
+					int newline = off;
+					while (newline < n && chunk[newline] != '\n')
+						++newline;
+					int m = newline - off;
+					if (length + m > line.length)
+						line = Arrays.copyOf(line, Math.max(length + m,
+								2 * line.length));
+					System.arraycopy(chunk, off, line, length, m);
+					length += m;
+					off = newline;
+					if (off < n) {
+						write(line, length, splitters, keycmp, pieces, counts);
+						length = 0;
+						++off;
+					}
+				}
+			}
+			if (length > 0)
+				write(line, length, splitters, keycmp, pieces, counts);
+		} finally {
+			in.close();
+			for (OutputStream piece : pieces)
+				if (piece != null)
+					piece.close();
+		}
+		System.out.println("RangePartitioner: lines per range "
+				+ Arrays.toString(counts));
+		System.out.println("RangePartitioner: completed");
+		System.out.println("RangePartitioner: Total time: "
+				+ (System.currentTimeMillis() - startTime));
+		return fileNames;
+	}
+
+	/**
+	 * Concatenates the sorted pieces into the output, in the order of their
+	 * ranges, with {@link java.nio.channels.FileChannel#transferTo}. The
+	 * pieces are deleted.
+	 *
+	 * @param pieces
+	 *                the sorted pieces, plain or gzip
+	 * @param output
+	 *                the output file
+	 * @throws IOException
+	 */
+	public static void concatenate(List<File> pieces, File output)
+			throws IOException {
+		concatenate(pieces, output, null);
+	}
+
+	/**
+	 * Concatenates the sorted pieces into the output one at a time,
+	 * recording in the manifest how many of them are in the output and its
+	 * length: the output of a resumed job is cut back to that length and the
+	 * next piece appended. The pieces are deleted.
+	 *
+	 * @param pieces
+	 *                the sorted pieces, plain or gzip
+	 * @param output
+	 *                the output file
+	 * @param manifest
+	 *                the manifest of the job, or null
+	 * @throws IOException
+	 */
+	public static void concatenate(List<File> pieces, File output,
+			JobManifest manifest) throws IOException {
+		int first = manifest == null ? 0 : manifest.merged();
+		if (first > 0) {
+			RandomAccessFile raf = new RandomAccessFile(output, "rw");
+			try {
+				raf.setLength(manifest.mergedLength());
+			} finally {
+				raf.close();
+			}
+		}
+		for (int i = first; i < pieces.size(); ++i) {
+			RunStats.concatenate(Collections.singletonList(pieces.get(i)),
+					output, i > 0);
+			if (manifest != null) {
+				manifest.merged(i + 1, output.length());
+				manifest.save();
+			}
+			RunStats.delete(pieces.get(i));
+		}
+	}
+
+	/**
+	 * Moves the sorted pieces into a directory, as part-00000, part-00001...
+	 * in the order of their ranges.
+	 *
+	 * @param pieces
+	 *                the sorted pieces
+	 * @param directory
+	 *                the output directory, created if need be
+	 * @throws IOException
+	 */
+	public static void moveTo(List<File> pieces, File directory)
+			throws IOException {
+		moveTo(pieces, directory, null);
+	}
+
+	/**
+	 * Moves the sorted pieces into a directory, recording in the manifest
+	 * how many of them were moved: a resumed job moves the next one.
+	 *
+	 * @param pieces
+	 *                the sorted pieces
+	 * @param directory
+	 *                the output directory, created if need be
+	 * @param manifest
+	 *                the manifest of the job, or null
+	 * @throws IOException
+	 */
+	public static void moveTo(List<File> pieces, File directory,
+			JobManifest manifest) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create " + directory);
+		for (int i = manifest == null ? 0 : manifest.merged(); i < pieces.size(); ++i) {
+			File piece = pieces.get(i);
+			File part = new File(directory, "part-" + String.format("%05d", i));
+			if (!(part.delete() || !part.exists()) || !piece.renameTo(part))
+				RunStats.concatenate(Collections.singletonList(piece), part,
+						false);
+			RunStats.delete(piece);
+			if (manifest != null) {
+				manifest.merged(i + 1, 0);
+				manifest.save();
+			}
+		}
+	}
+
+	/**
+	 * Writes a line, without its terminator, to the piece of its range.
+	 */
+	private static void write(byte[] line, int length, byte[][] splitters,
+			Comparator<byte[]> keycmp, OutputStream[] pieces, long[] counts)
+			throws IOException {
+		int r = splitters.length == 0 ? 0 : range(key(line, length),
+				splitters, keycmp);
+		pieces[r].write(line, 0, length);
+		pieces[r].write('\n');
+		++counts[r];
+	}
+
+	/**
+	 * @return the line without the '\r' of a CRLF
+	 */
+	private static byte[] key(byte[] line, int length) {
+		if (length > 0 && line[length - 1] == '\r')
+			--length;
+		return length == line.length ? line : Arrays.copyOf(line, length);
+	}
+
+	/**
+	 * Number of lines sampled per range.
+	 */
+	public static final int SAMPLESPERRANGE = 1000;
+
+	private static final int BUFFERSIZE = 64 * 1024;
+
+}
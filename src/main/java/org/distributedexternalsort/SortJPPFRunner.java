@@ -17,13 +17,34 @@
  */
 package org.distributedexternalsort;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import org.jppf.client.JPPFClient;
 import org.jppf.client.JPPFJob;
 import org.jppf.client.JPPFResultCollector;
+import org.jppf.client.event.TaskResultEvent;
+import org.jppf.node.policy.Equal;
+import org.jppf.node.policy.ExecutionPolicy;
+import org.jppf.scheduling.JPPFSchedule;
 import org.jppf.server.protocol.JPPFTask;
+import org.jppf.utils.JPPFConfiguration;
+import org.jppf.utils.TypedProperties;
+
+import com.google.code.externalsorting.RunStats;
 
 /**
  * This is a JPPF application runner.
@@ -39,8 +60,201 @@ public class SortJPPFRunner {
 	 */
 	private static JPPFClient jppfClient =  null;
 	private static List<String> resultList = null;
+	private static JobTimeline timeline = null;
+	private static ResultListener resultListener = null;
+	// the tasks the listener was told about
+	private static boolean[] notified = null;
+
+	/**
+	 * Told about each piece as soon as it is sorted, while the other pieces are still being sorted.
+	 */
+	public interface ResultListener {
+		/**
+		 * @param task the index of the task, in the order the pieces were given.
+		 * @param outputFileName the sorted piece.
+		 */
+		void sorted(int task, String outputFileName);
+	}
+
+	/**
+	 * How long to wait for the driver when asking for the nodes (in milliseconds).
+	 */
+	private static final long TOPOLOGYTIMEOUT = 10000;
+
+	/**
+	 * Connections to each driver, when the configuration does not set jppf.pool.size.
+	 */
+	private static final int POOLSIZE = 16;
+
+	/**
+	 * Appended to the output of a speculative copy of a task, so that it does not write over the original.
+	 */
+	private static final String SPECULATIVESUFFIX = ".speculative";
+
+	/**
+	 * Appended to the output of a task run again after its job timed out, followed by the number of
+	 * timeouts, so that it does not write over an attempt that is still running on a slow node.
+	 */
+	private static final String RETRYSUFFIX = ".retry";
+
+	/**
+	 * How many times a task that failed, or whose node was lost, is run again before the sort fails.
+	 */
+	private static final int MAXRETRIES = 3;
+
+	/**
+	 * How long a task may wait for its node and sort its piece before it is cancelled and run again
+	 * on another node, by default (in milliseconds).
+	 */
+	public static final long DEFAULTTASKTIMEOUT = 60 * 60 * 1000L;
+
+	/**
+	 * How much longer than the expiration of a job the client waits for the driver to send it back
+	 * (in milliseconds).
+	 */
+	private static final long EXPIRATIONGRACE = 60000;
+
+	// the time allowed to each task, see setTaskTimeout
+	private static long taskTimeout = DEFAULTTASKTIMEOUT;
 
 	public static List<String> sortFiles(String[] fileNames) {
+		return sortFiles(fileNames, new String[0]);
+	}
+
+	/**
+	 * Asks the JPPF driver for the nodes connected to it. The client stays open
+	 * for the sort that follows.
+	 * @return the nodes, null if they are not known.
+	 */
+	public static ClusterTopology topology() {
+		ClusterTopology topology = ClusterTopology.discover(client(), TOPOLOGYTIMEOUT);
+		System.out.println("SortJPPFRunner: Nodes: "+(topology == null ? "unknown" : topology.toString()));
+		return topology;
+	}
+
+	/**
+	 * Closes the client left open by {@link #topology()} when there is nothing to sort.
+	 */
+	public static void close() {
+		if (jppfClient != null) jppfClient.close();
+		jppfClient = null;
+	}
+
+	public static List<String> sortFiles(String[] fileNames, String[] options) {
+		return sortFiles(fileNames, null, false, options);
+	}
+
+	public static List<String> sortFiles(String[] fileNames, String[] nodes, String[] options) {
+		return sortFiles(fileNames, nodes, false, options);
+	}
+
+	/**
+	 * Sets the listener of the next sort, which is cleared once the sort is over.
+	 * The jobs are run in non-blocking mode and their results collected as they come back.
+	 * @param listener told about each piece as soon as it is sorted.
+	 */
+	public static synchronized void setResultListener(ResultListener listener) {
+		resultListener = listener;
+	}
+
+	/**
+	 * Sets how long a task may take, waiting for its node and sorting its piece: the job of a task
+	 * still out by then, on a node that was lost for instance, is cancelled and the task run again
+	 * like the ones that failed. The jobs of several tasks get as long for each of them.
+	 * @param millis the time allowed to each task (in milliseconds).
+	 */
+	public static synchronized void setTaskTimeout(long millis) {
+		taskTimeout = millis;
+	}
+
+	/**
+	 * @return when and where the tasks of the last sort ran, null if it failed.
+	 */
+	public static JobTimeline timeline() {
+		return timeline;
+	}
+
+	/**
+	 * Sorts the pieces of the input file on the JPPF nodes.
+	 * @param fileNames the pieces to sort, on the shared store.
+	 * @param nodes the uuid of the node to sort each piece on, or null to let the driver choose.
+	 * @param queue if true, nodes are the nodes to hand the pieces out to, one at a time each.
+	 * @param options flags passed on to ExternalSortCallable on the nodes.
+	 * @return the names of the sorted pieces.
+	 */
+	public static List<String> sortFiles(String[] fileNames, String[] nodes, boolean queue, String[] options) {
+		System.out.println("SortJPPFRunner: Files to sort:"+fileNames.length);
+		List<SortJPPFTask> tasks = new ArrayList<SortJPPFTask>();
+		for(int i=0; i<fileNames.length; i++) {
+			System.out.println("SortJPPFRunner: File["+i+"]: "+fileNames[i]);
+			tasks.add(new SortJPPFTask(fileNames[i], options));
+		}
+		return sort(tasks, nodes, queue);
+	}
+
+	public static List<String> sortRanges(String fileName, long[] offsets, String[] outputFileNames, String[] options) {
+		return sortRanges(fileName, offsets, outputFileNames, null, false, options);
+	}
+
+	public static List<String> sortRanges(String fileName, long[] offsets, String[] outputFileNames, String[] nodes, String[] options) {
+		return sortRanges(fileName, offsets, outputFileNames, nodes, false, options);
+	}
+
+	/**
+	 * Sorts ranges of the input file on the JPPF nodes, each node reads its range
+	 * from the input file itself.
+	 * @param fileName the input file, at a path the nodes can read.
+	 * @param offsets the starts of the ranges followed by the end of the last one,
+	 * each of them at the start of a line.
+	 * @param outputFileNames where to write each sorted range, on the shared store.
+	 * @param nodes the uuid of the node to sort each range on, or null to let the driver choose.
+	 * @param queue if true, nodes are the nodes to hand the ranges out to, one at a time each.
+	 * @param options flags passed on to ExternalSortCallable on the nodes.
+	 * @return the names of the sorted ranges.
+	 */
+	public static List<String> sortRanges(String fileName, long[] offsets, String[] outputFileNames, String[] nodes, boolean queue, String[] options) {
+		return sortRanges(fileName, Arrays.copyOf(offsets, outputFileNames.length),
+				Arrays.copyOfRange(offsets, 1, outputFileNames.length + 1), outputFileNames, nodes, queue, options);
+	}
+
+	/**
+	 * Sorts ranges of the input file on the JPPF nodes, which need not follow each other,
+	 * see {@link #sortRanges(String, long[], String[], String[], boolean, String[])}.
+	 * @param fileName the input file, at a path the nodes can read.
+	 * @param starts the start of each range, at the start of a line.
+	 * @param ends the end of each range, at the start of a line or the end of the file.
+	 * @param outputFileNames where to write each sorted range, on the shared store.
+	 * @param nodes the uuid of the node to sort each range on, or null to let the driver choose.
+	 * @param queue if true, nodes are the nodes to hand the ranges out to, one at a time each.
+	 * @param options flags passed on to ExternalSortCallable on the nodes.
+	 * @return the names of the sorted ranges.
+	 */
+	public static List<String> sortRanges(String fileName, long[] starts, long[] ends, String[] outputFileNames, String[] nodes, boolean queue, String[] options) {
+		System.out.println("SortJPPFRunner: Ranges to sort:"+outputFileNames.length);
+		List<SortJPPFTask> tasks = new ArrayList<SortJPPFTask>();
+		for(int i=0; i<outputFileNames.length; i++) {
+			System.out.println("SortJPPFRunner: Range["+i+"]: "+starts[i]+"-"+ends[i]);
+			tasks.add(new SortJPPFTask(fileName, starts[i], ends[i], outputFileNames[i], options));
+		}
+		return sort(tasks, nodes, queue);
+	}
+
+	/**
+	 * Runs the tasks as one job, or as one job per node when each task is meant for a node:
+	 * an execution policy on the uuid of the node keeps the job from running anywhere else.
+	 * With a queue, each node is sent the next task as soon as it is done with the previous one.
+	 * The tasks that fail are run again on other nodes, up to {@link #MAXRETRIES} times, the
+	 * pieces already sorted are kept.
+	 * @param tasks the tasks.
+	 * @param nodes the uuid of the node to run each task on, the nodes to run them on with a queue, or null.
+	 * @param queue whether to hand the tasks out to the nodes one at a time.
+	 * @return the names of the sorted pieces, in the order of the tasks, null if a task failed
+	 * every time.
+	 */
+	private static List<String> sort(List<SortJPPFTask> tasks, String[] nodes, boolean queue) {
+		resultList = null;
+		timeline = null;
+		notified = new boolean[tasks.size()];
 		try {
 			System.out.println("SortJPPFRunner: Started");
 
@@ -48,24 +262,68 @@ public class SortJPPFRunner {
 
 			// create the JPPFClient. This constructor call causes JPPF to read the configuration file
 			// and connect with one or multiple JPPF drivers.
-			jppfClient = new MyJPPFClient();
-
-			// Create a job
-			JPPFJob job = createJob();
-			System.out.println("SortJPPFRunner: Job created");
-
-			System.out.println("SortJPPFRunner: Files to sort:"+fileNames.length);
-			for(int i=0; i<fileNames.length; i++) {
-				System.out.println("SortJPPFRunner: File["+i+"]: "+fileNames[i]);
-				SortJPPFTask s = (SortJPPFTask) job.addTask(new SortJPPFTask(fileNames[i]));
-				s.setName("SortJPPFTask "+i);
-				s.setId("SortJPPFTask "+i);
+			client();
+
+			JPPFTask[] results;
+			if (nodes != null && queue) {
+				results = executeWorkQueue(tasks, nodes);
+			} else if (nodes == null) {
+				// Create a job
+				JPPFJob job = createJob();
+				System.out.println("SortJPPFRunner: Job created");
+
+				for(int i=0; i<tasks.size(); i++) {
+					SortJPPFTask s = (SortJPPFTask) job.addTask(tasks.get(i));
+					s.setName("SortJPPFTask "+i);
+					s.setId("SortJPPFTask "+i);
+				}
+
+				//job.getSLA().setSuspended(true);
+
+				// execute a non-blocking job, the listener is told about each task as it comes back
+				submitNonBlockingJob(job, null);
+				results = waitForResults(job).toArray(new JPPFTask[tasks.size()]);
+				retryFailedTasks(tasks, results, null);
+			} else {
+				// the tasks of each node, in order
+				Map<String, List<Integer>> byNode = new LinkedHashMap<String, List<Integer>>();
+				for(int i=0; i<tasks.size(); i++) {
+					if (!byNode.containsKey(nodes[i]))
+						byNode.put(nodes[i], new ArrayList<Integer>());
+					byNode.get(nodes[i]).add(i);
+				}
+				List<JPPFJob> jobs = new ArrayList<JPPFJob>();
+				for(Map.Entry<String, List<Integer>> e: byNode.entrySet()) {
+					JPPFJob job = createJob();
+					job.setName("DistributedExternalSort "+e.getKey());
+					job.getSLA().setExecutionPolicy(new Equal("jppf.uuid", false, e.getKey()));
+					for(int i: e.getValue()) {
+						SortJPPFTask s = (SortJPPFTask) job.addTask(tasks.get(i));
+						s.setName("SortJPPFTask "+i);
+						s.setId("SortJPPFTask "+i);
+					}
+					System.out.println("SortJPPFRunner: Job created for node "+e.getKey());
+					submitNonBlockingJob(job, e.getValue());
+					jobs.add(job);
+				}
+				// the results of each job come in the order of its tasks
+				results = new JPPFTask[tasks.size()];
+				int j = 0;
+				for(List<Integer> indices: byNode.values()) {
+					List<JPPFTask> jobResults = waitForResults(jobs.get(j++));
+					for(int k=0; k<indices.size(); k++)
+						results[indices.get(k)] = jobResults.get(k);
+				}
+				retryFailedTasks(tasks, results, nodes);
+			}
+			processExecutionResults(Arrays.asList(results));
+			if (timeline != null)
+				timeline.report();
+			int failed = failedTasks(results).size();
+			if (failed > 0) {
+				System.out.println("SortJPPFRunner: "+failed+" tasks failed after "+MAXRETRIES+" retries, the sort failed");
+				resultList = null;
 			}
-
-			//job.getSLA().setSuspended(true);
-
-			// execute a blocking job
-			executeBlockingJob(job);
 
 			System.out.println("SortJPPFRunner: ---------Output:"+resultList);
 
@@ -79,11 +337,227 @@ public class SortJPPFRunner {
 			System.out.println("SortJPPFRunner: Exception");
 			e.printStackTrace();
 		} finally {
-			if (jppfClient != null) jppfClient.close();
+			close();
+			setResultListener(null);
 		}
 		return resultList;
 	}
 
+	/**
+	 * @return the JPPF client, created if need be.
+	 */
+	private static JPPFClient client() {
+		if (jppfClient == null) {
+			// a connection runs one job at a time: the jobs of the nodes need one each to run
+			// side by side, unless the configuration says otherwise
+			TypedProperties config = JPPFConfiguration.getProperties();
+			if (config.getProperty("jppf.pool.size") == null)
+				config.setProperty("jppf.pool.size", Integer.toString(POOLSIZE));
+			for (String driver: config.getString("jppf.drivers", "").trim().split("\\s+"))
+				if (driver.length() > 0 && config.getProperty(driver + ".jppf.pool.size") == null)
+					config.setProperty(driver + ".jppf.pool.size", Integer.toString(POOLSIZE));
+			jppfClient = new MyJPPFClient();
+		}
+		return jppfClient;
+	}
+
+	/**
+	 * Hands the tasks out to the nodes through a queue: each node is sent one task in a job pinned
+	 * to it and gets the next one when it returns, so that the fast nodes sort more pieces and the
+	 * slow ones do not hold the others up.
+	 * Once the queue is empty, a free node runs a copy of a task that is much slower than the others,
+	 * see {@link WorkQueue}: the first of the two to finish is kept, the other one is cancelled and
+	 * its output deleted. A task that fails, or whose job cannot be sent, goes back to the queue for
+	 * another node. A node whose task times out gets no more tasks.
+	 * @param tasks the tasks, smaller and more of them than nodes.
+	 * @param nodes the uuids of the nodes.
+	 * @return the results, in the order of the tasks.
+	 * @throws Exception if a worker is interrupted.
+	 */
+	private static JPPFTask[] executeWorkQueue(final List<SortJPPFTask> tasks, String[] nodes) throws Exception {
+		final JPPFTask[] results = new JPPFTask[tasks.size()];
+		final WorkQueue queue = new WorkQueue(tasks.size(), nodes.length, MAXRETRIES);
+		final JobTimeline queueTimeline = new JobTimeline(System.currentTimeMillis());
+		// how many times the job of each task timed out
+		final int[] timeouts = new int[tasks.size()];
+		ExecutorService executor = Executors.newFixedThreadPool(nodes.length);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for(int n=0; n<nodes.length; n++) {
+				final String node = nodes[n];
+				final int worker = n;
+				workers.add(executor.submit(new Callable<Void>() {
+					//@Override
+					public Void call() throws Exception {
+						for(WorkQueue.Attempt a=queue.next(worker); a!=null; a=queue.next(worker)) {
+							int i = a.task;
+							int timedOut;
+							synchronized (timeouts) {
+								timedOut = timeouts[i];
+							}
+							SortJPPFTask task = tasks.get(i).copy(suffix(timedOut, a.speculative));
+							JPPFJob job = createJob();
+							job.setName("DistributedExternalSort "+i+(a.speculative ? " speculative" : ""));
+							job.getSLA().setExecutionPolicy(new Equal("jppf.uuid", false, node));
+							SortJPPFTask s = (SortJPPFTask) job.addTask(task);
+							s.setName("SortJPPFTask "+i);
+							s.setId("SortJPPFTask "+i);
+							a.job = job.getUuid();
+							JPPFTask result;
+							try {
+								submitNonBlockingJob(job, null, false);
+								result = waitForResults(job).get(0);
+							} catch(Exception e) {
+								System.out.println("SortJPPFRunner: Task "+i+" could not run on node "+worker+": "+e);
+								result = task;
+								result.setException(e);
+							}
+							boolean succeeded = !failed(result);
+							if (result.getException() instanceof TimeoutException) {
+								synchronized (timeouts) {
+									timeouts[i]++;
+								}
+							}
+							for(WorkQueue.Attempt loser: queue.finish(a, succeeded)) {
+								System.out.println("SortJPPFRunner: Task "+i+" done, cancelling its other attempt");
+								if (loser.job != null)
+									jppfClient.cancelJob(loser.job);
+							}
+							// a retry writes to the same file as the attempt that failed, unless it timed out:
+							// the attempt may still be running
+							if (queue.won(a)) {
+								results[i] = result;
+								completed(i, result);
+							}
+							// a copy that failed or lost only takes its own output along, the queue
+							// leaves the failures and retries of the task to the original
+							else if (a.speculative || queue.decided(i))
+								RunStats.delete(new File(task.outputFileName));
+							String host = ((SortJPPFTask) result).getHost();
+							queueTimeline.add(i, (host == null ? "" : host + " ") + "node " + worker
+									+ (a.speculative ? " (speculative)" : ""), a.begin, System.currentTimeMillis());
+							if (result.getException() instanceof TimeoutException) {
+								// the node is most likely lost, its tasks go to the others
+								System.out.println("SortJPPFRunner: Node "+worker+" timed out, no more tasks for it");
+								queue.retire(worker);
+								break;
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> worker: workers)
+				worker.get();
+		} finally {
+			executor.shutdown();
+		}
+		if (queue.copies() > 0)
+			System.out.println("SortJPPFRunner: Speculative copies: "+queue.copies());
+		timeline = queueTimeline;
+		return results;
+	}
+
+	/**
+	 * Runs the tasks that failed again, each in a job of its own kept away from the nodes it failed
+	 * on, as long as another node is known: one that sorted a piece, or one of the nodes given.
+	 * @param tasks the tasks.
+	 * @param results their results, the ones of the tasks run again are replaced.
+	 * @param nodes the uuid of the node each task was meant for, or null.
+	 * @throws Exception if a job cannot be submitted.
+	 */
+	private static void retryFailedTasks(List<SortJPPFTask> tasks, JPPFTask[] results, String[] nodes) throws Exception {
+		Set<String> known = new LinkedHashSet<String>();
+		List<Set<String>> failedOn = new ArrayList<Set<String>>();
+		// how many times the job of each task timed out
+		int[] timeouts = new int[results.length];
+		for (int i=0; i<results.length; i++) {
+			failedOn.add(new HashSet<String>());
+			if (nodes != null)
+				known.add(nodes[i]);
+		}
+		for (int retry=1; retry<=MAXRETRIES; retry++) {
+			List<Integer> failed = failedTasks(results);
+			if (failed.isEmpty())
+				return;
+			System.out.println("SortJPPFRunner: Retrying "+failed.size()+" failed tasks, retry "+retry+" of "+MAXRETRIES);
+			for (int i=0; i<results.length; i++) {
+				String node = results[i] instanceof SortJPPFTask ? ((SortJPPFTask) results[i]).getNode() : null;
+				if (node == null && nodes != null)
+					node = nodes[i];
+				if (node == null)
+					continue;
+				known.add(node);
+				if (failed(results[i]))
+					failedOn.get(i).add(node);
+			}
+			List<JPPFJob> jobs = new ArrayList<JPPFJob>();
+			for (int i: failed) {
+				JPPFJob job = createJob();
+				job.setName("DistributedExternalSort "+i+" retry "+retry);
+				ExecutionPolicy policy = null;
+				for (String node: known)
+					if (!failedOn.get(i).contains(node))
+						policy = policy == null ? new Equal("jppf.uuid", false, node) : policy.or(new Equal("jppf.uuid", false, node));
+				if (policy != null)
+					job.getSLA().setExecutionPolicy(policy);
+				if (results[i] != null && results[i].getException() instanceof TimeoutException)
+					timeouts[i]++;
+				SortJPPFTask s = (SortJPPFTask) job.addTask(tasks.get(i).copy(suffix(timeouts[i], false)));
+				s.setName("SortJPPFTask "+i);
+				s.setId("SortJPPFTask "+i);
+				submitNonBlockingJob(job, Collections.singletonList(i));
+				jobs.add(job);
+			}
+			for (int k=0; k<failed.size(); k++)
+				results[failed.get(k)] = waitForResults(jobs.get(k)).get(0);
+		}
+	}
+
+	/**
+	 * @param timeouts how many times the job of the task timed out.
+	 * @param speculative whether the attempt is a speculative copy.
+	 * @return appended to the output of an attempt of a task, so that it writes over no attempt
+	 * that may still be running.
+	 */
+	private static String suffix(int timeouts, boolean speculative) {
+		return (timeouts > 0 ? RETRYSUFFIX + timeouts : "") + (speculative ? SPECULATIVESUFFIX : "");
+	}
+
+	/**
+	 * Tells the result listener about a task, once, if it sorted its piece.
+	 * @param index the index of the task.
+	 * @param task the task after execution.
+	 */
+	private static void completed(int index, JPPFTask task) {
+		ResultListener listener;
+		synchronized (SortJPPFRunner.class) {
+			if (resultListener == null || failed(task) || notified[index])
+				return;
+			notified[index] = true;
+			listener = resultListener;
+		}
+		listener.sorted(index, (String) task.getResult());
+	}
+
+	/**
+	 * @return whether the task failed: it raised an exception, it did not return or it has no result.
+	 */
+	private static boolean failed(JPPFTask task) {
+		return task == null || task.getException() != null || task.getResult() == null;
+	}
+
+	/**
+	 * @return the indices of the tasks that failed.
+	 */
+	private static List<Integer> failedTasks(JPPFTask[] results) {
+		List<Integer> failed = new ArrayList<Integer>();
+		for (int i=0; i<results.length; i++)
+			if (failed(results[i]))
+				failed.add(i);
+		return failed;
+	}
+
 	/**
 	 * The entry point for this application runner to be run from a Java command line.
 	 * @param args by default, we do not use the command line arguments,
@@ -113,19 +587,17 @@ public class SortJPPFRunner {
 	 * Execute a job in blocking mode. The application will be blocked until the job
 	 * execution is complete.
 	 * @param job the JPPF job to execute.
+	 * @return the tasks after execution, in the order they were added to the job.
 	 * @throws Exception if an error occurs while executing the job.
 	 */
-	private static void executeBlockingJob(final JPPFJob job) throws Exception {
+	private static List<JPPFTask> executeBlockingJob(final JPPFJob job) throws Exception {
 		// set the job in blocking mode.
 		job.setBlocking(true);
 
 		// Submit the job and wait until the results are returned.
 		// The results are returned as a list of JPPFTask instances,
 		// in the same order as the one in which the tasks where initially added the job.
-		List<JPPFTask> results = jppfClient.submit(job);
-
-		// process the results
-		processExecutionResults(results);
+		return jppfClient.submit(job);
 	}
 
 	/**
@@ -163,8 +635,34 @@ public class SortJPPFRunner {
 	 * @throws Exception if an error occurs while executing the job.
 	 */
 	private static JPPFResultCollector submitNonBlockingJob(final JPPFJob job) throws Exception {
+		return submitNonBlockingJob(job, null);
+	}
+
+	/**
+	 * Execute a job in non-blocking mode, telling the result listener about each task that
+	 * sorted its piece as soon as it comes back.
+	 * @param job the JPPF job to execute.
+	 * @param indices the index of each task of the job among the tasks of the sort, null if they are the same.
+	 * @return a JPPFResultCollector used to obtain the execution results at a later time.
+	 * @throws Exception if an error occurs while executing the job.
+	 */
+	private static JPPFResultCollector submitNonBlockingJob(final JPPFJob job, final List<Integer> indices) throws Exception {
+		return submitNonBlockingJob(job, indices, true);
+	}
+
+	/**
+	 * Execute a job in non-blocking mode. The driver cancels it if it is still out once each of its
+	 * tasks had the time allowed, see {@link #setTaskTimeout(long)}.
+	 * @param job the JPPF job to execute.
+	 * @param indices the index of each task of the job among the tasks of the sort, null if they are the same.
+	 * @param notify whether to tell the result listener about each task that sorted its piece.
+	 * @return a JPPFResultCollector used to obtain the execution results at a later time.
+	 * @throws Exception if an error occurs while executing the job.
+	 */
+	private static JPPFResultCollector submitNonBlockingJob(final JPPFJob job, final List<Integer> indices, boolean notify) throws Exception {
 		// set the job in non-blocking (or asynchronous) mode.
 		job.setBlocking(false);
+		job.getSLA().setJobExpirationSchedule(new JPPFSchedule(timeout(job)));
 
 		// We need to be notified of when the job execution has completed.
 		// To this effect, we define an instance of the TaskResultListener interface,
@@ -172,7 +670,7 @@ public class SortJPPFRunner {
 		// Here, we use an instance of JPPFResultCollector, conveniently provided by the JPPF API.
 		// JPPFResultCollector implements TaskResultListener and has a constructor that takes
 		// the number of tasks in the job as a parameter.
-		JPPFResultCollector collector = new JPPFResultCollector(job);
+		JPPFResultCollector collector = new TimedResultCollector(job, indices, notify);
 		job.setResultListener(collector);
 
 		// Submit the job. This call returns immediately without waiting for the execution of
@@ -186,14 +684,92 @@ public class SortJPPFRunner {
 		return collector;
 	}
 
+	/**
+	 * Waits for the results of a job submitted by {@link #submitNonBlockingJob(JPPFJob, List, boolean)},
+	 * a little longer than the driver lets it run: a job that does not come back by then is cancelled,
+	 * and its tasks without a result are given a {@link TimeoutException} so that they are run again
+	 * like the ones that failed.
+	 * @param job the job.
+	 * @return the tasks after execution, in the order they were added to the job.
+	 * @throws Exception if the job cannot be cancelled.
+	 */
+	private static List<JPPFTask> waitForResults(JPPFJob job) throws Exception {
+		TimedResultCollector collector = (TimedResultCollector) job.getResultListener();
+		List<JPPFTask> results = collector.waitForResults(timeout(job) + EXPIRATIONGRACE);
+		if (results != null)
+			return results;
+		System.out.println("SortJPPFRunner: "+job.getName()+" timed out, cancelling it");
+		jppfClient.cancelJob(job.getUuid());
+		return collector.timedOut(new TimeoutException(job.getName()+" timed out after "+timeout(job)+" ms"));
+	}
+
+	/**
+	 * @return how long the tasks of the job may take (in milliseconds).
+	 */
+	private static long timeout(JPPFJob job) {
+		synchronized (SortJPPFRunner.class) {
+			return taskTimeout * Math.max(1, job.getTasks().size());
+		}
+	}
+
+	/**
+	 * Collects the results of a job, telling the result listener about each task that sorted its
+	 * piece as it comes back, unless the job timed out.
+	 */
+	private static class TimedResultCollector extends JPPFResultCollector {
+
+		private final List<Integer> indices;
+
+		private boolean notify;
+
+		TimedResultCollector(JPPFJob job, List<Integer> indices, boolean notify) {
+			super(job);
+			this.indices = indices;
+			this.notify = notify;
+		}
+
+		@Override
+		public synchronized void resultsReceived(TaskResultEvent event) {
+			super.resultsReceived(event);
+			if (notify && event.getTaskList() != null)
+				for (JPPFTask task: event.getTaskList())
+					completed(indices == null ? task.getPosition() : indices.get(task.getPosition()), task);
+		}
+
+		/**
+		 * Gives up on the job: the results come no more to the listener, they are run again instead.
+		 * @param cause set on the tasks still out.
+		 * @return the tasks that came back and copies of the others failed with the cause, in order.
+		 */
+		synchronized List<JPPFTask> timedOut(Exception cause) {
+			notify = false;
+			List<JPPFTask> results = new ArrayList<JPPFTask>();
+			for (JPPFTask task: job.getTasks()) {
+				if (jobResults.hasResult(task.getPosition())) {
+					results.add(jobResults.getResult(task.getPosition()));
+				} else {
+					SortJPPFTask failed = ((SortJPPFTask) task).copy("");
+					failed.setId(task.getId());
+					failed.setException(cause);
+					results.add(failed);
+				}
+			}
+			return results;
+		}
+	}
+
 	/**
 	 * Process the execution results of each submitted task. 
 	 * @param results the tasks results after execution on the grid.
 	 */
 	private static void processExecutionResults(final List<JPPFTask> results) {
 		resultList = new ArrayList<String>();
+		if (timeline == null)
+			timeline = nodeTimeline(results);
 		// process the results
 		for (JPPFTask task: results) {
+			if (task == null)
+				continue;
 			// if the task execution resulted in an exception
 			if (task.getException() != null) {
 				// process the exception here ...
@@ -209,5 +785,24 @@ public class SortJPPFRunner {
 		}
 	}
 
+	/**
+	 * @param results the tasks after execution.
+	 * @return when and where they ran, by the clocks of the nodes.
+	 */
+	private static JobTimeline nodeTimeline(final List<JPPFTask> results) {
+		long start = Long.MAX_VALUE;
+		for (JPPFTask task: results)
+			if (task instanceof SortJPPFTask && ((SortJPPFTask) task).getHost() != null)
+				start = Math.min(start, ((SortJPPFTask) task).getStartTime());
+		JobTimeline nodeTimeline = new JobTimeline(start);
+		for (int i=0; i<results.size(); i++) {
+			if (!(results.get(i) instanceof SortJPPFTask))
+				continue;
+			SortJPPFTask task = (SortJPPFTask) results.get(i);
+			if (task.getHost() != null)
+				nodeTimeline.add(i, task.getHost(), task.getStartTime(), task.getEndTime());
+		}
+		return nodeTimeline;
+	}
 
 }
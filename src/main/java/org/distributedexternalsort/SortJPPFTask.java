@@ -17,11 +17,16 @@
  */
 package org.distributedexternalsort;
 
+import java.io.File;
+import java.net.InetAddress;
+
+import org.jppf.node.NodeRunner;
 import org.jppf.server.protocol.JPPFTask;
 
 //import com.google.code.externalsorting.ExternalSort;
 import com.google.code.externalsorting.ExternalSortCallable;
 import com.google.code.externalsorting.ExternalSortParallelStreamSort;
+import com.google.code.externalsorting.RunStats;
 
 /**
  * This class is a JPPF task.
@@ -47,14 +52,56 @@ public class SortJPPFTask extends JPPFTask
 
 	private String name;
 	String fileName;
+	String outputFileName;
+	long start;
+	long end = -1;
+	String[] options;
+	// where and when the task ran, by the clock of the node
+	String host;
+	String node;
+	long startTime;
+	long endTime;
+	// set on the node when the job is cancelled, the sort itself is not interrupted
+	transient volatile boolean cancelled;
 	/**
 	 * Perform initializations on the client side,
 	 * before the task is executed by the node.
 	 */
 	public SortJPPFTask(String fileName)
+	{
+		this(fileName, new String[0]);
+	}
+
+	/**
+	 * Perform initializations on the client side,
+	 * before the task is executed by the node.
+	 * @param fileName the piece of the input file to sort.
+	 * @param options flags passed on to ExternalSortCallable.
+	 */
+	public SortJPPFTask(String fileName, String[] options)
 	{
 		// perform initializations here ...
 		this.fileName = fileName;
+		this.outputFileName = fileName + "_sorted";
+		this.options = options;
+	}
+
+	/**
+	 * Perform initializations on the client side,
+	 * before the task is executed by the node.
+	 * @param fileName the input file, read in place by the node.
+	 * @param start offset of the first line of the range to sort.
+	 * @param end offset after the last line of the range.
+	 * @param outputFileName where to write the sorted range.
+	 * @param options flags passed on to ExternalSortCallable.
+	 */
+	public SortJPPFTask(String fileName, long start, long end, String outputFileName, String[] options)
+	{
+		this.fileName = fileName;
+		this.start = start;
+		this.end = end;
+		this.outputFileName = outputFileName;
+		this.options = options;
 	}
 
 	/**
@@ -71,21 +118,43 @@ public class SortJPPFTask extends JPPFTask
 	//@Override
 	public void run()
 	{
-		String outputFileName = fileName + "_sorted";
+		startTime = System.currentTimeMillis();
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch(Exception e) {
+			host = "unknown";
+		}
+		node = NodeRunner.getUuid();
 		try {
-			long startTime = System.currentTimeMillis();
 			// write your task code here.
 			System.out.println("SortJPPFTask: Executing - "+name);
 
-			String[] param = new String[2];
+			// a range is read from the input file itself
+			int ranged = end >= 0 ? 3 : 0;
+			String[] param = new String[2 + options.length + ranged];
 			param[0] = fileName;
 			param[1] = outputFileName;
+			System.arraycopy(options, 0, param, 2, options.length);
+			if (end >= 0) {
+				param[2 + options.length] = "--range";
+				param[3 + options.length] = Long.toString(start);
+				param[4 + options.length] = Long.toString(end);
+			}
 			// Compatible upto Java 7: Without multi threading
 			//ExternalSort.main(param);
-			// Compatible Java 8: With multi threading and Executor Service
+			// Compatible Java 8: With multi threading and Executor Service,
+			// the sort threads are shared by all the tasks of this node
 			ExternalSortCallable.main(param);
 			// Compatible Java 8: Without multi threading but with Executor Service
 			//ExternalSortParallelStreamSort.main(param);
+
+			if (cancelled) {
+				// another attempt won, its output is the one kept
+				RunStats.delete(new File(outputFileName));
+				System.out.println("SortJPPFTask: "+name+" cancelled, output deleted");
+				endTime = System.currentTimeMillis();
+				return;
+			}
 			
 			System.out.println("SortJPPFTask: "+name+" Total time: "+(System.currentTimeMillis()-startTime));
 			System.out.println("SortJPPFTask: "+name+" ended...");
@@ -94,8 +163,15 @@ public class SortJPPFTask extends JPPFTask
 			System.out.println("SortJPPFTask: "+name+": Exception occured..."+e.getMessage());
 			e.printStackTrace();
 			setException(e);
+			if (cancelled) {
+				// interrupted by the cancel, its partial output is left behind
+				RunStats.delete(new File(outputFileName));
+				System.out.println("SortJPPFTask: "+name+" cancelled, output deleted");
+			}
+			endTime = System.currentTimeMillis();
 			return;
 		}
+		endTime = System.currentTimeMillis();
 		System.out.println("SortJPPFTask: "+name+" ended : "+name);
 
 		// eventually set the execution results
@@ -103,6 +179,50 @@ public class SortJPPFTask extends JPPFTask
 		//setResult(name+":Done.");
 	}
 
+	/**
+	 * Called on the node when the job of the task is cancelled.
+	 */
+	//@Override
+	public void onCancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @param suffix appended to the name of the output.
+	 * @return a task sorting the same piece into another file, to run next to this one.
+	 */
+	public SortJPPFTask copy(String suffix) {
+		return new SortJPPFTask(fileName, start, end, outputFileName + suffix, options);
+	}
+
+	/**
+	 * @return the host of the node the task ran on, null before it ran.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the uuid of the node the task ran on, null before it ran.
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * @return when the task started on the node, by its clock.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return when the task ended on the node, by its clock.
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
 	public String getName() {
 		return name;
 	}
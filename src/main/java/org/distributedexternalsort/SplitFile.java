@@ -3,6 +3,8 @@ package org.distributedexternalsort;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 /**
  * This is a simple class to split the input file line count wise.
@@ -26,23 +28,46 @@ public class SplitFile {
 		}
 	}*/
 
+	/**
+	 * Splits the input file into pieces of as many lines with split -l, named prefix followed by a
+	 * number. The files of the output directory starting with prefix are deleted first: pieces,
+	 * sorted pieces and statistics left by an earlier job would otherwise pass for pieces of this one.
+	 * @param fileName the input file.
+	 * @param numberOfLines the number of lines of each piece.
+	 * @param outputDirectory where to write the pieces.
+	 * @param prefix the start of the names of the pieces.
+	 * @return the names of the pieces, in order, null if split failed.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
 	public static String[] splitFileByLines(String fileName, long numberOfLines, String outputDirectory, final String prefix) throws IOException, InterruptedException {
 		long startTime = System.currentTimeMillis();
 		System.out.println("SplitFile: started");
 		String[] fileNames = null;
+		File dir = new File(outputDirectory);
+		File[] stale = dir.listFiles(new FilenameFilter() {
+			//@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix);
+			}
+		});
+		for(int i=0; stale!=null && i<stale.length; i++)
+			stale[i].delete();
+		if (stale != null && stale.length > 0)
+			System.out.println("SplitFile: deleted "+stale.length+" files left by an earlier job");
 		String splitFileCommand = "split -l "+numberOfLines+" "+fileName+" "+outputDirectory+"/"+prefix+" --numeric-suffixes";
 		System.out.println("Executing: "+splitFileCommand);
 		Process p = Runtime.getRuntime().exec(splitFileCommand);
 		p.waitFor();
 		System.out.println("split p.exitValue()="+p.exitValue());
 		if(p.exitValue()==0) {
-			File dir = new File(outputDirectory);
 			fileNames = dir.list(new FilenameFilter() {
 				//@Override
 			    public boolean accept(File dir, String name) {
-			        return name.startsWith(prefix);
+			        return name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+");
 			    }
 			});
+			Arrays.sort(fileNames);
 			System.out.println("SplitFile: split fileNames length="+fileNames.length);
 		}
 		System.out.println("SplitFile: completed");
@@ -50,4 +75,65 @@ public class SplitFile {
 		return fileNames;
 	}
 
+	/**
+	 * Cuts the input file into ranges of about the same number of bytes, each starting at a line,
+	 * without reading more than the lines around the cuts. The nodes then read their range from
+	 * the input file itself, so it is neither counted nor copied.
+	 * @param fileName the input file.
+	 * @param numberOfPieces the number of ranges.
+	 * @return the starts of the ranges followed by the length of the file, numberOfPieces + 1 offsets.
+	 * @throws IOException
+	 */
+	public static long[] splitFileByBytes(String fileName, int numberOfPieces) throws IOException {
+		return splitFileByBytes(fileName, ClusterTopology.equalWeights(numberOfPieces));
+	}
+
+	/**
+	 * Cuts the input file into ranges of bytes in proportion to the weights, each starting at a line.
+	 * @param fileName the input file.
+	 * @param weights the share of the file each range should get, adding up to 1.
+	 * @return the starts of the ranges followed by the length of the file, one more offset than weights.
+	 * @throws IOException
+	 */
+	public static long[] splitFileByBytes(String fileName, double[] weights) throws IOException {
+		int numberOfPieces = weights.length;
+		long[] offsets = new long[numberOfPieces + 1];
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		try {
+			long length = raf.length();
+			byte[] chunk = new byte[CHUNKSIZE];
+			double share = 0;
+			for(int i=1; i<numberOfPieces; i++) {
+				// the first line starting at or after the cut
+				share += weights[i-1];
+				long cut = Math.min(length, (long) (length * share));
+				offsets[i] = cut == 0 ? 0 : Math.max(offsets[i-1], Math.min(length, endOfLine(raf, cut - 1, chunk) + 1));
+			}
+			offsets[numberOfPieces] = length;
+		} finally {
+			raf.close();
+		}
+		return offsets;
+	}
+
+	/**
+	 * @return the offset of the first '\n' at or after pos, the length of the file if there is none.
+	 */
+	static long endOfLine(RandomAccessFile raf, long pos, byte[] chunk) throws IOException {
+		long length = raf.length();
+		while (pos < length) {
+			raf.seek(pos);
+			int n = raf.read(chunk);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; ++i)
+				if (chunk[i] == '\n')
+					return pos + i;
+			pos += n;
+		}
+		return length;
+	}
+
+	static final int CHUNKSIZE = 4096;
+
 }
@@ -0,0 +1,280 @@
+package org.distributedexternalsort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tasks of a sort, handed out to the workers, one per node, as they
+ * become free. Once every task has been handed out, a free worker runs a
+ * speculative copy of a straggler instead of waiting: a task running more
+ * than {@link #SLOWDOWN} times the median time of the finished ones, on
+ * another worker. The first attempt of a task to succeed wins, the others
+ * are to be cancelled and their output deleted.
+ *
+ * The median is only trusted once half of the tasks are done, and a task
+ * gets one copy at most, never on a worker it failed on. A copy that fails
+ * while the original is still running does not count as a failure of the
+ * task: it only counts if no other attempt is left.
+ *
+ * A task whose attempts all failed goes back to the queue, ahead of the
+ * tasks not started yet, for a worker it has not failed on yet: a task is
+ * only given up after as many retries as allowed.
+ */
+class WorkQueue {
+
+	/**
+	 * @param tasks
+	 *                the number of tasks
+	 * @param workers
+	 *                the number of workers
+	 * @param retries
+	 *                how many times a task that failed is run again
+	 */
+	WorkQueue(int tasks, int workers, int retries) {
+		this.tasks = tasks;
+		this.retries = retries;
+		this.winners = new Attempt[tasks];
+		this.failures = new int[tasks];
+		this.copied = new boolean[tasks];
+		this.failedOn = new boolean[tasks][workers];
+	}
+
+	/**
+	 * One run of a task on a worker.
+	 */
+	static final class Attempt {
+
+		Attempt(int task, int worker, boolean speculative, long begin) {
+			this.task = task;
+			this.worker = worker;
+			this.speculative = speculative;
+			this.begin = begin;
+		}
+
+		/** the index of the task */
+		final int task;
+
+		final int worker;
+
+		/** whether this is a copy of a straggler */
+		final boolean speculative;
+
+		/** when it started (in milliseconds) */
+		final long begin;
+
+		/** the uuid of the job running it, to cancel it */
+		volatile String job;
+	}
+
+	/**
+	 * Waits for something for the worker to do.
+	 *
+	 * @param worker
+	 *                the worker asking
+	 * @return a task to retry, the next task not started yet, or a copy of a
+	 *         straggler, null once every task is done
+	 * @throws InterruptedException
+	 */
+	synchronized Attempt next(int worker) throws InterruptedException {
+		while (true) {
+			if (done == tasks)
+				return null;
+			for (int i = 0; i < retry.size(); ++i) {
+				int task = retry.get(i);
+				if (!failedOn[task][worker] || failedEverywhere(task)) {
+					retry.remove(i);
+					return start(task, worker, false);
+				}
+			}
+			if (nextTask < tasks)
+				return start(nextTask++, worker, false);
+			Attempt straggler = straggler(worker, System.currentTimeMillis());
+			if (straggler != null) {
+				System.out.println("WorkQueue: task " + straggler.task
+						+ " has been running for "
+						+ (System.currentTimeMillis() - straggler.begin)
+						+ " ms, against a median of " + median()
+						+ " ms: copying it to worker " + worker);
+				return start(straggler.task, worker, true);
+			}
+			wait(POLLINTERVAL);
+		}
+	}
+
+	/**
+	 * Records the end of an attempt.
+	 *
+	 * @param attempt
+	 *                the attempt
+	 * @param succeeded
+	 *                whether it sorted its piece
+	 * @return the attempts of the same task to cancel, if this one won
+	 *         (or failed for good)
+	 */
+	synchronized List<Attempt> finish(Attempt attempt, boolean succeeded) {
+		running.remove(attempt);
+		notifyAll();
+		if (winners[attempt.task] != null)
+			return Collections.emptyList();
+		List<Attempt> others = new ArrayList<Attempt>();
+		for (Attempt a : running)
+			if (a.task == attempt.task)
+				others.add(a);
+		if (!succeeded) {
+			failedOn[attempt.task][attempt.worker] = true;
+			// a failed attempt leaves the task to the others, if any, a
+			// failed copy does not use up the retries of the task then
+			if (!others.isEmpty()) {
+				if (!attempt.speculative)
+					++failures[attempt.task];
+				return Collections.emptyList();
+			}
+			++failures[attempt.task];
+			if (failures[attempt.task] <= retries) {
+				System.out.println("WorkQueue: task " + attempt.task
+						+ " failed on worker " + attempt.worker
+						+ ", retry " + failures[attempt.task] + " of "
+						+ retries);
+				retry.add(attempt.task);
+				return others;
+			}
+			System.out.println("WorkQueue: task " + attempt.task
+					+ " failed " + failures[attempt.task]
+					+ " times, giving up");
+		}
+		winners[attempt.task] = attempt;
+		++done;
+		if (succeeded)
+			durations.add(System.currentTimeMillis() - attempt.begin);
+		return others;
+	}
+
+	/**
+	 * Gives the worker no more tasks, its node being lost: the tasks to
+	 * retry count it among the workers they failed on.
+	 *
+	 * @param worker
+	 *                the worker
+	 */
+	synchronized void retire(int worker) {
+		for (boolean[] failed : failedOn)
+			failed[worker] = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return whether the attempt is the one whose result is kept
+	 */
+	synchronized boolean won(Attempt attempt) {
+		return winners[attempt.task] == attempt;
+	}
+
+	/**
+	 * @return whether the task is done, by an attempt that won or that
+	 *         failed for good
+	 */
+	synchronized boolean decided(int task) {
+		return winners[task] != null;
+	}
+
+	/**
+	 * @return the number of speculative copies started
+	 */
+	synchronized int copies() {
+		return copies;
+	}
+
+	private Attempt start(int task, int worker, boolean speculative) {
+		Attempt a = new Attempt(task, worker, speculative,
+				System.currentTimeMillis());
+		running.add(a);
+		if (speculative) {
+			copied[task] = true;
+			++copies;
+		}
+		return a;
+	}
+
+	/**
+	 * @return the attempt running the longest beyond {@link #SLOWDOWN}
+	 *         times the median, alone on its task, on another worker and
+	 *         of a task neither copied yet nor failed on this worker, null
+	 *         if there is none
+	 */
+	private Attempt straggler(int worker, long now) {
+		if (durations.isEmpty() || 2 * durations.size() < tasks)
+			return null;
+		long limit = (long) (SLOWDOWN * median());
+		Attempt straggler = null;
+		for (Attempt a : running) {
+			if (a.worker == worker || now - a.begin <= limit
+					|| copied[a.task] || failedOn[a.task][worker]
+					|| attempts(a.task) > 1)
+				continue;
+			if (straggler == null || a.begin < straggler.begin)
+				straggler = a;
+		}
+		return straggler;
+	}
+
+	private int attempts(int task) {
+		int n = 0;
+		for (Attempt a : running)
+			if (a.task == task)
+				++n;
+		return n + (winners[task] != null ? 1 : 0);
+	}
+
+	private boolean failedEverywhere(int task) {
+		for (boolean failed : failedOn[task])
+			if (!failed)
+				return false;
+		return true;
+	}
+
+	private long median() {
+		List<Long> sorted = new ArrayList<Long>(durations);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+
+	private final int tasks;
+
+	private final int retries;
+
+	private int nextTask;
+
+	private int done;
+
+	private int copies;
+
+	private final Attempt[] winners;
+
+	private final int[] failures;
+
+	/** whether each task got its speculative copy */
+	private final boolean[] copied;
+
+	/** the workers each task failed on */
+	private final boolean[][] failedOn;
+
+	/** the tasks to run again, in the order they failed */
+	private final List<Integer> retry = new ArrayList<Integer>();
+
+	private final List<Attempt> running = new ArrayList<Attempt>();
+
+	/** how long the tasks that succeeded took (in milliseconds) */
+	private final List<Long> durations = new ArrayList<Long>();
+
+	/**
+	 * How many times slower than the median a task must be to get a copy.
+	 */
+	static final double SLOWDOWN = 2.0;
+
+	/**
+	 * How often an idle worker looks for stragglers (in milliseconds).
+	 */
+	static final long POLLINTERVAL = 1000;
+
+}
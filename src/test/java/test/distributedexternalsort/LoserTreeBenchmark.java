@@ -0,0 +1,136 @@
+package test.distributedexternalsort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.google.code.externalsorting.LoserTree;
+
+/**
+ * This is a benchmark comparing the k-way merge with a PriorityQueue
+ * (poll() then add()) to the merge with the LoserTree, at fan-in 16, 256
+ * and 1024. The runs are kept in memory so that only the merge is measured.
+ *
+ * Usage: java test.distributedexternalsort.LoserTreeBenchmark [total number of lines]
+ */
+public class LoserTreeBenchmark {
+
+	private static final int[] FANINS = { 16, 256, 1024 };
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int total = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		System.out.println("fan-in\tmerge\tcomparisons/line\tms (best of "
+				+ ROUNDS + ")");
+		for (int k : FANINS) {
+			String[][] runs = createRuns(k, total / k, new Random(k));
+			report(k, "PriorityQueue", runs, false);
+			report(k, "LoserTree", runs, true);
+		}
+	}
+
+	private static void report(int k, String name, String[][] runs,
+			boolean losertree) {
+		CountingComparator cmp = new CountingComparator();
+		long best = Long.MAX_VALUE;
+		long lines = 0;
+		for (int round = 0; round < ROUNDS; ++round) {
+			cmp.count = 0;
+			long startTime = System.nanoTime();
+			lines = losertree ? mergeWithLoserTree(runs, cmp)
+					: mergeWithPriorityQueue(runs, cmp);
+			best = Math.min(best, System.nanoTime() - startTime);
+		}
+		System.out.println(k + "\t" + name + "\t"
+				+ String.format("%.2f", (double) cmp.count / lines) + "\t"
+				+ best / 1000000);
+	}
+
+	private static long mergeWithPriorityQueue(String[][] runs,
+			final Comparator<String> cmp) {
+		PriorityQueue<Run> pq = new PriorityQueue<Run>(11,
+				new Comparator<Run>() {
+					public int compare(Run i, Run j) {
+						return cmp.compare(i.peek(), j.peek());
+					}
+				});
+		for (String[] lines : runs)
+			pq.add(new Run(lines));
+		long checksum = 0, count = 0;
+		while (pq.size() > 0) {
+			Run run = pq.poll();
+			checksum += run.pop().length();
+			++count;
+			if (!run.empty())
+				pq.add(run);
+		}
+		return checksum > 0 ? count : 0;
+	}
+
+	private static long mergeWithLoserTree(String[][] runs,
+			final Comparator<String> cmp) {
+		List<Run> sources = new ArrayList<Run>();
+		for (String[] lines : runs)
+			sources.add(new Run(lines));
+		LoserTree<Run> lt = new LoserTree<Run>(sources, new Comparator<Run>() {
+			public int compare(Run i, Run j) {
+				return cmp.compare(i.peek(), j.peek());
+			}
+		});
+		long checksum = 0, count = 0;
+		while (!lt.isEmpty()) {
+			Run run = lt.peek();
+			checksum += run.pop().length();
+			++count;
+			lt.replay(run.empty());
+		}
+		return checksum > 0 ? count : 0;
+	}
+
+	private static String[][] createRuns(int k, int linesPerRun, Random r) {
+		String[][] runs = new String[k][];
+		for (int i = 0; i < k; ++i) {
+			runs[i] = new String[linesPerRun];
+			for (int j = 0; j < linesPerRun; ++j)
+				runs[i][j] = "key-" + Long.toString(r.nextLong() >>> 1, 36);
+			Arrays.sort(runs[i]);
+		}
+		return runs;
+	}
+
+	private static final class Run {
+		Run(String[] lines) {
+			this.lines = lines;
+		}
+
+		boolean empty() {
+			return pos == lines.length;
+		}
+
+		String peek() {
+			return lines[pos];
+		}
+
+		String pop() {
+			return lines[pos++];
+		}
+
+		private final String[] lines;
+
+		private int pos;
+	}
+
+	private static final class CountingComparator implements Comparator<String> {
+		long count;
+
+		public int compare(String r1, String r2) {
+			++count;
+			return r1.compareTo(r2);
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package test.distributedexternalsort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.google.code.externalsorting.ExternalSortCallable;
+import com.google.code.externalsorting.StringRadixSort;
+
+/**
+ * This is a benchmark comparing the sort of a block with
+ * Collections.sort and the default comparator (what SortAndSaveCallable
+ * used to do) to the StringRadixSort, on random words, on keys sharing a
+ * long prefix and on non ASCII text. Blocks of 1M lines and more are
+ * sorted in parallel by StringRadixSort.
+ *
+ * Usage: java test.distributedexternalsort.RadixSortBenchmark [number of lines]
+ */
+public class RadixSortBenchmark {
+
+	private static final String[] DATASETS = { "words", "prefixed", "unicode" };
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int[] sizes = args.length > 0 ? new int[] { Integer.parseInt(args[0]) }
+				: new int[] { 10000, 100000, 1000000 };
+		System.out.println("lines\tdata\tsort\tms (best of " + ROUNDS + ")");
+		for (int n : sizes) {
+			for (String dataset : DATASETS) {
+				List<String> lines = createLines(dataset, n, new Random(n));
+				List<String> expected = new ArrayList<String>(lines);
+				Collections.sort(expected);
+				report(n, dataset, "Collections.sort", lines, expected, false);
+				report(n, dataset, "StringRadixSort", lines, expected, true);
+			}
+		}
+	}
+
+	private static void report(int n, String dataset, String name,
+			List<String> lines, List<String> expected, boolean radix) {
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; ++round) {
+			List<String> block = new ArrayList<String>(lines);
+			long startTime = System.nanoTime();
+			if (radix)
+				StringRadixSort.sort(block);
+			else
+				Collections.sort(block, ExternalSortCallable.defaultcomparator);
+			best = Math.min(best, System.nanoTime() - startTime);
+			if (!block.equals(expected))
+				throw new IllegalStateException(name + " did not sort "
+						+ dataset);
+		}
+		System.out.println(n + "\t" + dataset + "\t" + name + "\t" + best
+				/ 1000000);
+	}
+
+	private static List<String> createLines(String dataset, int n, Random r) {
+		List<String> lines = new ArrayList<String>(n);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; ++i) {
+			sb.setLength(0);
+			if (dataset.equals("prefixed")) {
+				sb.append("/data/customers/eu-west/2014/10/");
+				sb.append(r.nextInt(n / 10 + 1)).append('/');
+				sb.append(r.nextInt(1000000));
+			} else {
+				int words = 1 + r.nextInt(4);
+				for (int w = 0; w < words; ++w) {
+					if (w > 0)
+						sb.append(' ');
+					int length = 2 + r.nextInt(8);
+					for (int c = 0; c < length; ++c)
+						if (dataset.equals("unicode") && r.nextInt(4) == 0)
+							sb.append((char) (0xC0 + r.nextInt(0x2000)));
+						else
+							sb.append((char) ('a' + r.nextInt(26)));
+				}
+			}
+			lines.add(sb.toString());
+		}
+		return lines;
+	}
+
+}